@@ -0,0 +1,498 @@
+package pathsent;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Long-running analysis server on localhost, so that the JVM, the JIT-compiled soot and
+// FlowDroid code and the Z3 native library are loaded once instead of once per APK.
+//
+// Jobs (an APK and optionally a list of target methods) are submitted over HTTP, queued and
+// analyzed one at a time, since soot's scene is a process-wide singleton that is reset
+// between jobs.  Our analysis classes keep soot objects in static fields, so each job loads
+// them in a fresh class loader; soot, FlowDroid, Z3 and the other libraries are loaded by
+// the parent class loader and shared by all jobs.  Output is shared as well, so progress
+// lines of the running job can be streamed back to the client.  A job keeps its last
+// MAX_PROGRESS_LINES progress lines, and finished jobs are forgotten after JOB_RETENTION
+// (their output directories are kept).
+//
+//   POST /jobs                  {"apk": "...", "targets": ["<...>", ...], "timeout": minutes}
+//   GET  /jobs                  status of all jobs
+//   GET  /jobs/<id>             status of a job
+//   GET  /jobs/<id>/progress    progress lines, streamed until the job finishes
+//   GET  /jobs/<id>/appInfo     appInfo.json of a finished job
+
+public class AnalysisDaemon {
+    // Options that only make sense for the daemon itself or that are set per job.
+    private static final List<String> DAEMON_OPTIONS = List.of("p", "o", "t", "b", "w", "s", "l");
+
+    private static final int MAX_PROGRESS_LINES = 10000;
+    private static final long JOB_RETENTION = 24 * 60 * 60000; // 1 day
+
+    private final int _port;
+    private final List<String> _jobArguments;
+    private final File _jobsDirectory;
+
+    private final AtomicInteger _nextJobId = new AtomicInteger(1);
+    private final Map<Integer, Job> _jobs = new LinkedHashMap<Integer, Job>();
+    private final LinkedBlockingQueue<Job> _queue = new LinkedBlockingQueue<Job>();
+
+    private static class Job {
+        public final int Id;
+        public final String ApkFile;
+        public final File Directory;
+        public final List<String> Arguments;
+        // The last MAX_PROGRESS_LINES progress lines, of NumProgressLines lines in total
+        private final ArrayDeque<String> _progress = new ArrayDeque<String>();
+        private long _numProgressLines = 0;
+        public final long QueuedTime = System.currentTimeMillis();
+
+        public String Status = "queued";
+        public String Error = null;
+        public String OutputDirectory = null;
+        public long StartTime = 0;
+        public long EndTime = 0;
+
+        public Job(int id, String apkFile, File directory, List<String> arguments) {
+            Id = id;
+            ApkFile = apkFile;
+            Directory = directory;
+            Arguments = arguments;
+        }
+
+        public synchronized boolean isFinished() {
+            return EndTime != 0;
+        }
+
+        public synchronized void addProgress(String line) {
+            _progress.addLast(line);
+            if (_progress.size() > MAX_PROGRESS_LINES) {
+                _progress.removeFirst();
+            }
+            _numProgressLines++;
+            notifyAll();
+        }
+
+        public synchronized long getNumProgressLines() {
+            return _numProgressLines;
+        }
+
+        // Number of the oldest progress line that is still kept
+        public synchronized long getFirstProgressLine() {
+            return _numProgressLines - _progress.size();
+        }
+
+        // The kept progress lines from the given line number on
+        public synchronized List<String> getProgress(long firstLine) {
+            // Only walk the new lines, from the end.
+            long numLines = _numProgressLines - Math.max(firstLine, getFirstProgressLine());
+            List<String> lines = new ArrayList<String>();
+            Iterator<String> iterator = _progress.descendingIterator();
+            for (long i = 0; i < numLines; i++) {
+                lines.add(iterator.next());
+            }
+            Collections.reverse(lines);
+            return lines;
+        }
+
+        public synchronized boolean isExpired(long now) {
+            return isFinished() && now - EndTime > JOB_RETENTION;
+        }
+
+        public synchronized void finish(String status, String error) {
+            Status = status;
+            Error = error;
+            EndTime = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        public synchronized JsonObject toJson() {
+            JsonObject jobJson = new JsonObject();
+            jobJson.addProperty("Id", Id);
+            jobJson.addProperty("Apk", ApkFile);
+            jobJson.addProperty("Status", Status);
+            jobJson.addProperty("Queued", new Date(QueuedTime).toString());
+            if (StartTime != 0) {
+                jobJson.addProperty("Started", new Date(StartTime).toString());
+            }
+            if (EndTime != 0 && StartTime != 0) {
+                jobJson.addProperty("WallTimeMs", EndTime - StartTime);
+            }
+            if (OutputDirectory != null) {
+                jobJson.addProperty("OutputDirectory", OutputDirectory);
+            }
+            if (Error != null) {
+                jobJson.addProperty("Error", Error);
+            }
+            if (!_progress.isEmpty()) {
+                jobJson.addProperty("LastProgress", _progress.peekLast());
+            }
+            return jobJson;
+        }
+    }
+
+    // Loads our analysis classes itself (child first) so that their static state is fresh
+    // for every job, and delegates everything else, including Output, to the parent.
+    private static class JobClassLoader extends URLClassLoader {
+        public JobClassLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            if (!name.startsWith("pathsent.") || name.startsWith(Output.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> klass = findLoadedClass(name);
+                if (klass == null) {
+                    try {
+                        klass = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        klass = super.loadClass(name, false);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(klass);
+                }
+                return klass;
+            }
+        }
+    }
+
+    public AnalysisDaemon(int port, CommandLine commands) {
+        _port = port;
+        _jobArguments = getJobArguments(commands);
+        _jobsDirectory = new File(PathSentStaticAnalysis.Config.BaseOutputDirectory, "jobs");
+        _jobsDirectory.mkdirs();
+    }
+
+    public void run() throws IOException {
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), _port), 0);
+        server.createContext("/jobs", this::handleRequest);
+        // Progress streams block, so requests are served by their own threads.
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        Output.progress("Analysis daemon listening on http://"
+                + InetAddress.getLoopbackAddress().getHostAddress() + ":" + _port + "/jobs");
+
+        while (true) {
+            Job job;
+            try {
+                job = _queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            runJob(job);
+        }
+
+        server.stop(0);
+    }
+
+    private void runJob(Job job) {
+        synchronized (job) {
+            job.Status = "running";
+            job.StartTime = System.currentTimeMillis();
+        }
+
+        // Output is shared with the job, its progress times are relative to the job start.
+        PathSentStaticAnalysis.Config.StartTime = job.StartTime;
+        Consumer<String> progressListener = job::addProgress;
+        Output.setProgressListener(progressListener);
+
+        try (JobClassLoader classLoader = new JobClassLoader(getClassPath(),
+                AnalysisDaemon.class.getClassLoader())) {
+            Class<?> analysisClass = classLoader.loadClass(PathSentStaticAnalysis.class.getName());
+            Method runMethod = analysisClass.getMethod("run", String[].class);
+
+            List<String> arguments = new ArrayList<String>(job.Arguments);
+            arguments.add(job.ApkFile);
+            runMethod.invoke(null, (Object)arguments.toArray(new String[0]));
+
+            Object config = analysisClass.getField("Config").get(null);
+            String outputDirectory =
+                    (String)config.getClass().getField("OutputDirectory").get(config);
+            synchronized (job) {
+                job.OutputDirectory = outputDirectory;
+            }
+            job.finish("success", null);
+
+        } catch (InvocationTargetException e) {
+            Output.error("Job " + job.Id + " failed: " + e.getCause());
+            job.finish("failed", String.valueOf(e.getCause()));
+        } catch (Throwable e) {
+            Output.error("Job " + job.Id + " failed: " + e);
+            job.finish("failed", e.toString());
+        } finally {
+            Output.setProgressListener(null);
+            Output.flush();
+
+            // Drop the job's scene (and with it the job's classes) before waiting for the
+            // next job.
+            soot.G.reset();
+        }
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+            String method = exchange.getRequestMethod();
+
+            if (path.length == 2 && method.equals("POST")) {
+                submitJob(exchange);
+            } else if (path.length == 2 && method.equals("GET")) {
+                JsonArray jobsJson = new JsonArray();
+                synchronized (_jobs) {
+                    removeExpiredJobs();
+                    _jobs.values().forEach(j -> { jobsJson.add(j.toJson()); });
+                }
+                sendJson(exchange, 200, jobsJson);
+            } else if (path.length >= 3 && method.equals("GET")) {
+                Job job = getJob(path[2]);
+                if (job == null) {
+                    sendError(exchange, 404, "No such job: " + path[2]);
+                } else if (path.length == 3) {
+                    sendJson(exchange, 200, job.toJson());
+                } else if (path.length == 4 && path[3].equals("progress")) {
+                    streamProgress(exchange, job);
+                } else if (path.length == 4 && path[3].equals("appInfo")) {
+                    sendAppInfo(exchange, job);
+                } else {
+                    sendError(exchange, 404, "Not found");
+                }
+            } else {
+                sendError(exchange, 405, "Unsupported request");
+            }
+        } catch (Exception e) {
+            sendError(exchange, 500, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submitJob(HttpExchange exchange) throws IOException {
+        JsonObject request;
+        try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(),
+                StandardCharsets.UTF_8)) {
+            request = JsonParser.parseReader(reader).getAsJsonObject();
+        } catch (Exception e) {
+            sendError(exchange, 400, "Invalid job: " + e.getMessage());
+            return;
+        }
+
+        if (!request.has("apk") || !new File(request.get("apk").getAsString()).isFile()) {
+            sendError(exchange, 400, "Job needs an existing \"apk\" file");
+            return;
+        }
+        String apkFile = new File(request.get("apk").getAsString()).getAbsolutePath();
+
+        int id = _nextJobId.getAndIncrement();
+        File jobDirectory = new File(_jobsDirectory, Integer.toString(id));
+        jobDirectory.mkdirs();
+
+        // Targets of the job, or the ones the daemon was started with.
+        List<String> targets = new ArrayList<String>();
+        if (request.has("targets")) {
+            for (JsonElement target : request.getAsJsonArray("targets")) {
+                targets.add(target.getAsString());
+            }
+        } else {
+            targets.addAll(PathSentStaticAnalysis.Config.TargetMethods);
+        }
+        File targetsFile = new File(jobDirectory, "targets.txt");
+        Files.write(targetsFile.toPath(), targets, StandardCharsets.UTF_8);
+
+        List<String> arguments = new ArrayList<String>(_jobArguments);
+        arguments.add("-o");
+        arguments.add(jobDirectory.getPath());
+        arguments.add("-t");
+        arguments.add(targetsFile.getPath());
+        if (request.has("timeout")) {
+            int timeoutIndex = arguments.indexOf("-k");
+            if (timeoutIndex >= 0) {
+                arguments.subList(timeoutIndex, timeoutIndex + 2).clear();
+            }
+            arguments.add("-k");
+            arguments.add(Integer.toString(request.get("timeout").getAsInt()));
+        }
+
+        Job job = new Job(id, apkFile, jobDirectory, arguments);
+        synchronized (_jobs) {
+            removeExpiredJobs();
+            _jobs.put(id, job);
+        }
+        _queue.add(job);
+
+        Output.log("Queued job " + id + ": " + apkFile);
+        sendJson(exchange, 202, job.toJson());
+    }
+
+    // Must be called with the lock on _jobs held.
+    private void removeExpiredJobs() {
+        long now = System.currentTimeMillis();
+        _jobs.values().removeIf(job -> job.isExpired(now));
+    }
+
+    private void streamProgress(HttpExchange exchange, Job job) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+
+        try (OutputStream body = exchange.getResponseBody()) {
+            long sent = 0;
+            while (true) {
+                List<String> lines;
+                long dropped;
+                boolean finished;
+                synchronized (job) {
+                    while (sent == job.getNumProgressLines() && !job.isFinished()) {
+                        try {
+                            job.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    // Lines the client was too slow for may have been dropped.
+                    dropped = Math.max(0, job.getFirstProgressLine() - sent);
+                    sent += dropped;
+                    lines = job.getProgress(sent);
+                    finished = job.isFinished();
+                }
+
+                if (dropped > 0) {
+                    body.write(("... " + dropped + " progress lines dropped\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                for (String line : lines) {
+                    body.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                body.flush();
+                sent += lines.size();
+
+                if (finished && lines.isEmpty()) {
+                    body.write(("status: " + job.toJson().get("Status").getAsString() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+        }
+    }
+
+    private void sendAppInfo(HttpExchange exchange, Job job) throws IOException {
+        String outputDirectory;
+        synchronized (job) {
+            outputDirectory = job.OutputDirectory;
+        }
+
+        if (!job.isFinished()) {
+            sendError(exchange, 409, "Job " + job.Id + " has not finished");
+            return;
+        }
+
+        File appInfoFile = (outputDirectory == null)
+                ? null : new File(outputDirectory, "appInfo.json");
+        if (appInfoFile == null || !appInfoFile.isFile()) {
+            sendError(exchange, 404, "Job " + job.Id + " has no appInfo.json");
+            return;
+        }
+
+        byte[] appInfo = Files.readAllBytes(appInfoFile.toPath());
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, appInfo.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(appInfo);
+        }
+    }
+
+    private Job getJob(String id) {
+        try {
+            synchronized (_jobs) {
+                return _jobs.get(Integer.parseInt(id));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, JsonElement json)
+            throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+        byte[] response = gson.toJson(json).getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(response);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message)
+            throws IOException {
+        JsonObject errorJson = new JsonObject();
+        errorJson.addProperty("Error", message);
+        sendJson(exchange, status, errorJson);
+    }
+
+    private static URL[] getClassPath() throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        for (String classPathEntry
+                : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(Paths.get(classPathEntry).toUri().toURL());
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    private static List<String> getJobArguments(CommandLine commands) {
+        List<String> arguments = new ArrayList<String>();
+
+        for (Option option : commands.getOptions()) {
+            if (DAEMON_OPTIONS.contains(option.getOpt())) {
+                continue;
+            }
+
+            arguments.add("-" + option.getOpt());
+            if (option.hasArg()) {
+                arguments.add(option.getValue());
+            }
+        }
+
+        return arguments;
+    }
+}
@@ -0,0 +1,324 @@
+package pathsent;
+
+import pathsent.target.ManifestAnalysis;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Analyzes a directory (or list file) of APKs with a bounded pool of worker JVMs.
+//
+// Each APK is analyzed in its own child JVM: the analysis keeps soot objects in static
+// fields and in soot's global singletons, so APKs cannot safely share a process.  Instead,
+// the children share a class-data archive (AppCDS) that the first child dumps at exit, so
+// that later children map soot, FlowDroid and our classes instead of loading and
+// verifying them again.  A child that runs past its deadline is killed, and the status
+// and wall time of every APK are written to batch_summary.json in the output directory.
+// Every child writes to its own output directory (batch/<index>-<apk>), so APKs of the same
+// package (e.g. two versions of an app) do not overwrite each other's results.
+
+public class BatchAnalysis {
+    // Deadline per APK when no timeout (-k) is given.
+    private static final long DEFAULT_APK_DEADLINE = 60 * 60000; // 1 hour
+    // Extra time given to a child past the (best effort) analysis timeout before killing it.
+    private static final long APK_DEADLINE_GRACE_PERIOD = 120000; // 2 minutes
+
+    // Options that only make sense for the batch driver and are not passed to the workers.
+    // Each worker gets its own output directory (-o) instead.
+    private static final List<String> BATCH_OPTIONS = List.of("b", "w", "o");
+
+    private final List<String> _apkFiles;
+    private final List<String> _workerArguments;
+    private final int _numberOfWorkers;
+    private final long _apkDeadline;
+
+    private final File _batchDirectory;
+    private final File _summaryFile;
+    private final File _classArchive;
+    private boolean _classArchiveInProgress = false;
+
+    private final JsonObject[] _results;
+    private final AtomicInteger _completed = new AtomicInteger();
+
+    public BatchAnalysis(String batchInput, CommandLine commands) throws IOException {
+        _apkFiles = readApkFiles(batchInput);
+        _workerArguments = getWorkerArguments(commands);
+        _numberOfWorkers = PathSentStaticAnalysis.Config.BatchWorkers;
+        _apkDeadline = (PathSentStaticAnalysis.Config.Timeout > 0)
+                ? PathSentStaticAnalysis.Config.Timeout + APK_DEADLINE_GRACE_PERIOD
+                : DEFAULT_APK_DEADLINE;
+
+        String baseDirectory = PathSentStaticAnalysis.Config.BaseOutputDirectory;
+        _batchDirectory = new File(baseDirectory, "batch");
+        _batchDirectory.mkdirs();
+        _summaryFile = new File(baseDirectory, "batch_summary.json");
+        _classArchive = new File(_batchDirectory, "pathsent-classes.jsa");
+
+        _results = new JsonObject[_apkFiles.size()];
+    }
+
+    public void run() {
+        Output.progress("Batch analysis of " + _apkFiles.size() + " APKs with "
+                + _numberOfWorkers + " workers (deadline per APK: "
+                + (_apkDeadline / 60000) + " min)");
+
+        ExecutorService executor = Executors.newFixedThreadPool(_numberOfWorkers);
+        for (int i = 0; i < _apkFiles.size(); i++) {
+            final int apkIndex = i;
+            executor.submit(() -> { analyzeApk(apkIndex); });
+        }
+
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting, every child is bounded by its own deadline.
+            }
+        } catch (InterruptedException e) {
+            Output.warn("Batch analysis was interrupted.");
+            executor.shutdownNow();
+        }
+
+        writeSummary();
+        Output.progress("Batch analysis finished, summary written to " + _summaryFile);
+    }
+
+    private void analyzeApk(int apkIndex) {
+        String apkFile = _apkFiles.get(apkIndex);
+        String apkName = new File(apkFile).getName();
+        File logFile = new File(_batchDirectory, apkIndex + "-" + apkName + ".log");
+        File outputDirectory = new File(_batchDirectory, apkIndex + "-" + apkName);
+
+        JsonObject result = new JsonObject();
+        result.addProperty("Apk", apkFile);
+        result.addProperty("Package", getPackageName(apkFile));
+        result.addProperty("Log", logFile.getPath());
+        result.addProperty("OutputDirectory", outputDirectory.getPath());
+
+        String status;
+        int exitCode = -1;
+        long startTime = System.currentTimeMillis();
+        boolean dumpsClassArchive = false;
+        Process process = null;
+
+        try {
+            List<String> command = new ArrayList<String>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+
+            String classArchiveArgument = getClassArchiveArgument();
+            if (classArchiveArgument != null) {
+                dumpsClassArchive = classArchiveArgument.startsWith("-XX:ArchiveClassesAtExit");
+                command.add(classArchiveArgument);
+                // Old (pre Java 6) library classes cannot be archived, do not warn about each.
+                command.add("-Xlog:cds=error");
+            }
+
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(PathSentStaticAnalysis.class.getName());
+            command.addAll(_workerArguments);
+            command.add("-o");
+            command.add(outputDirectory.getPath());
+            command.add(apkFile);
+
+            process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.to(logFile))
+                    .start();
+
+            if (process.waitFor(_apkDeadline, TimeUnit.MILLISECONDS)) {
+                exitCode = process.exitValue();
+                status = (exitCode == 0) ? "success" : "failed";
+            } else {
+                process.destroyForcibly();
+                process.waitFor();
+                status = "timeout";
+            }
+
+        } catch (InterruptedException e) {
+            // The batch is shutting down, do not leave the child running.
+            if (process != null) {
+                process.destroyForcibly();
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e2) {
+                    // The child has been killed already.
+                }
+            }
+            status = "interrupted";
+        } catch (Exception e) {
+            result.addProperty("Error", e.toString());
+            status = "error";
+        } finally {
+            if (dumpsClassArchive) {
+                onClassArchiveAttemptFinished();
+            }
+        }
+
+        long wallTime = System.currentTimeMillis() - startTime;
+        result.addProperty("Status", status);
+        result.addProperty("ExitCode", exitCode);
+        result.addProperty("WallTimeMs", wallTime);
+
+        synchronized (_results) {
+            _results[apkIndex] = result;
+        }
+
+        Output.progress(String.format("[%d/%d] %s: %s (%.1f s)", _completed.incrementAndGet(),
+                _apkFiles.size(), apkName, status, wallTime / 1000.0));
+        writeSummary();
+    }
+
+    // Returns the JVM option that either dumps the shared class archive (first child only)
+    // or maps it, or null if dynamic archives are not supported.  The JVM only archives
+    // classes loaded from jar files, so this is skipped when running from class directories.
+    private synchronized String getClassArchiveArgument() {
+        if (Runtime.version().feature() < 13) {
+            return null;
+        }
+
+        for (String classPathEntry
+                : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!classPathEntry.endsWith(".jar")) {
+                return null;
+            }
+        }
+
+        // Do not map the archive while a child may still be writing it at exit.
+        if (_classArchiveInProgress) {
+            return null;
+        }
+
+        if (_classArchive.exists()) {
+            return "-XX:SharedArchiveFile=" + _classArchive.getPath();
+        }
+
+        _classArchiveInProgress = true;
+        return "-XX:ArchiveClassesAtExit=" + _classArchive.getPath();
+    }
+
+    private synchronized void onClassArchiveAttemptFinished() {
+        // If the child was killed before exiting normally no archive was written, so let the
+        // next child try again.
+        _classArchiveInProgress = false;
+    }
+
+    private String getPackageName(String apkFile) {
+        // Only the manifest is parsed here, the child JVM does the actual analysis.
+        try {
+            return new ManifestAnalysis(apkFile).getPackageName();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void writeSummary() {
+        synchronized (_results) {
+            JsonObject summaryJson = new JsonObject();
+
+            summaryJson.addProperty("Version", PathSentStaticAnalysis.Config.Version);
+            summaryJson.addProperty("Generated", (new Date()).toString());
+            summaryJson.addProperty("Workers", _numberOfWorkers);
+            summaryJson.addProperty("ApkDeadlineMs", _apkDeadline);
+            summaryJson.addProperty("TotalApks", _apkFiles.size());
+            summaryJson.addProperty("CompletedApks", _completed.get());
+
+            JsonArray apksJson = new JsonArray();
+            for (JsonObject result : _results) {
+                if (result != null) {
+                    apksJson.add(result);
+                }
+            }
+            summaryJson.add("Apks", apksJson);
+
+            File tmpFile = new File(_summaryFile.getPath() + ".tmp");
+            try {
+                Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+                PrintWriter summaryWriter = new PrintWriter(tmpFile, "UTF-8");
+                summaryWriter.print(gson.toJson(summaryJson));
+                summaryWriter.close();
+
+                Files.move(tmpFile.toPath(), _summaryFile.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Batch input is either a directory (searched recursively for .apk files) or a text file
+    // listing one APK path per line.
+    private static List<String> readApkFiles(String batchInput) throws IOException {
+        Path inputPath = Paths.get(batchInput);
+        List<String> apkFiles = new ArrayList<String>();
+
+        if (Files.isDirectory(inputPath)) {
+            try (Stream<Path> paths = Files.walk(inputPath)) {
+                apkFiles.addAll(paths
+                        .filter(p -> Files.isRegularFile(p))
+                        .filter(p -> p.getFileName().toString().endsWith(".apk"))
+                        .map(p -> p.toAbsolutePath().toString())
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        } else {
+            try (BufferedReader br = new BufferedReader(new FileReader(batchInput))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    apkFiles.add(Paths.get(line).toAbsolutePath().toString());
+                }
+            }
+        }
+
+        if (apkFiles.isEmpty()) {
+            Output.warn("No APK files found in " + batchInput);
+        }
+
+        return apkFiles;
+    }
+
+    private static List<String> getWorkerArguments(CommandLine commands) {
+        List<String> arguments = new ArrayList<String>();
+
+        for (Option option : commands.getOptions()) {
+            if (BATCH_OPTIONS.contains(option.getOpt())) {
+                continue;
+            }
+
+            arguments.add("-" + option.getOpt());
+            if (option.hasArg()) {
+                arguments.add(option.getValue());
+            }
+        }
+
+        return arguments;
+    }
+}
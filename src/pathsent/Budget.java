@@ -0,0 +1,145 @@
+package pathsent;
+
+import pathsent.target.StaticAnalysisTimeoutException;
+
+// Time budget for a unit of work (the whole run, a phase, a path, a solver query).
+//
+// Budgets form a hierarchy: a child budget never ends later than its parent, and cancelling
+// a budget also expires all of its children.  Long-running loops poll their budget with
+// check(), which throws StaticAnalysisTimeoutException once the budget has expired, so work
+// stops cooperatively at a safe point instead of being interrupted by a timer.  The budget of
+// the work a thread is doing is kept in a thread-local (see enter()), so code deep in the
+// analysis can check it without it being passed through every call.
+
+public class Budget {
+    private static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static volatile Budget _runBudget = new Budget("run", UNLIMITED, null);
+    private static final ThreadLocal<Budget> _currentBudget = new ThreadLocal<Budget>();
+
+    private final String _name;
+    private final long _deadline;
+    private final Budget _parent;
+    private volatile boolean _cancelled = false;
+
+    private Budget(String name, long deadline, Budget parent) {
+        _name = name;
+        _deadline = deadline;
+        _parent = parent;
+    }
+
+    // Starts the budget of the whole run.  The timeout is measured from Config.StartTime, a
+    // timeout <= 0 means that the run is not limited.
+    public static Budget startRun(long timeoutMillis) {
+        long deadline = UNLIMITED;
+        if (timeoutMillis > 0) {
+            long elapsedMillis = System.currentTimeMillis()
+                    - PathSentStaticAnalysis.Config.StartTime;
+            deadline = addMillis(System.nanoTime(), timeoutMillis - elapsedMillis);
+        }
+
+        _runBudget = new Budget("run", deadline, null);
+        _currentBudget.remove();
+        return _runBudget;
+    }
+
+    public static Budget run() {
+        return _runBudget;
+    }
+
+    // The budget entered by the current thread, or the run budget if there is none.
+    public static Budget current() {
+        Budget budget = _currentBudget.get();
+        return (budget != null) ? budget : _runBudget;
+    }
+
+    // A budget that ends after at most maxMillis (<= 0 for no limit of its own).
+    public Budget child(String name, long maxMillis) {
+        long deadline = (maxMillis > 0) ? addMillis(System.nanoTime(), maxMillis) : UNLIMITED;
+        return new Budget(name, Math.min(deadline, _deadline), this);
+    }
+
+    // A budget of at most maxMillis, but no more than the given fraction of the time left.
+    public Budget share(String name, double fraction, long maxMillis) {
+        if (_deadline == UNLIMITED) {
+            return child(name, maxMillis);
+        }
+
+        long shareMillis = Math.max(1, (long)(remainingMillis() * fraction));
+        return child(name, (maxMillis > 0) ? Math.min(maxMillis, shareMillis) : shareMillis);
+    }
+
+    // Makes this the current budget of the thread until the returned scope is closed.
+    public Scope enter() {
+        Scope scope = new Scope(_currentBudget.get());
+        _currentBudget.set(this);
+        return scope;
+    }
+
+    public class Scope implements AutoCloseable {
+        private final Budget _previous;
+
+        private Scope(Budget previous) {
+            _previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (_previous == null) {
+                _currentBudget.remove();
+            } else {
+                _currentBudget.set(_previous);
+            }
+        }
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public boolean isLimited() {
+        return _deadline != UNLIMITED;
+    }
+
+    public long remainingMillis() {
+        if (isCancelled()) {
+            return 0;
+        }
+        if (_deadline == UNLIMITED) {
+            return UNLIMITED;
+        }
+        return Math.max(0, (_deadline - System.nanoTime()) / 1000000);
+    }
+
+    public boolean isCancelled() {
+        for (Budget budget = this; budget != null; budget = budget._parent) {
+            if (budget._cancelled) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Also true if the thread was interrupted, e.g. by ExecutorService.shutdownNow().
+    public boolean isExpired() {
+        return isCancelled()
+                || (_deadline != UNLIMITED && System.nanoTime() >= _deadline)
+                || Thread.currentThread().isInterrupted();
+    }
+
+    public void check(String phase) {
+        if (isExpired()) {
+            throw new StaticAnalysisTimeoutException(phase + " (" + _name + " budget)");
+        }
+    }
+
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    // Saturates rather than overflowing into the past for very large timeouts.
+    private static long addMillis(long nanoTime, long millis) {
+        long nanos = Math.min(Math.max(0, millis), UNLIMITED / 4000000) * 1000000;
+        return Math.min(nanoTime + nanos, UNLIMITED - 1);
+    }
+}
@@ -0,0 +1,83 @@
+package pathsent;
+
+import java.util.Locale;
+
+// Call graph algorithms selectable with --cg-profile, from fastest and least precise to
+// slowest and most precise.  The profiles fast, balanced and precise select CHA, VTA and
+// Spark; the algorithm names can also be given directly.
+//
+// CHA does not compute a points-to analysis, so heap variables fall back to field-based
+// aliasing (see HeapVariable).  RTA and VTA are run by Spark in their respective modes and
+// produce coarse points-to sets (by type rather than by allocation site).
+
+public enum CallGraphProfile {
+    CHA("cha", "fast"),
+    RTA("rta", null),
+    VTA("vta", "balanced"),
+    SPARK("spark", "precise");
+
+    private final String _algorithm;
+    private final String _profile;
+
+    private CallGraphProfile(String algorithm, String profile) {
+        _algorithm = algorithm;
+        _profile = profile;
+    }
+
+    public static CallGraphProfile parse(String name) throws IllegalArgumentException {
+        String lowerName = name.trim().toLowerCase(Locale.ROOT);
+        for (CallGraphProfile profile : values()) {
+            if (lowerName.equals(profile._algorithm) || lowerName.equals(profile._profile)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown call graph profile: " + name
+                + " (expected fast, balanced, precise, cha, rta, vta or spark)");
+    }
+
+    // The soot phase that builds the call graph, e.g. "cg.spark".
+    public String getPhaseName() {
+        return (this == CHA) ? "cg.cha" : "cg.spark";
+    }
+
+    public String getAlgorithm() {
+        return _algorithm;
+    }
+
+    public boolean hasPointsToAnalysis() {
+        return this != CHA;
+    }
+
+    // Must be called after the soot options are reset and before the cg pack runs.
+    public void setSootOptions() {
+        soot.options.Options sootOptions = soot.options.Options.v();
+
+        switch (this) {
+            case CHA:
+                sootOptions.setPhaseOption("cg.spark", "off");
+                sootOptions.setPhaseOption("cg.cha", "on");
+                break;
+            case RTA:
+                // A single points-to set for all variables; the call graph is not refined
+                // on the fly, so Spark only has to propagate once.
+                sootOptions.setPhaseOption("cg.spark", "on");
+                sootOptions.setPhaseOption("cg.spark", "rta:true");
+                sootOptions.setPhaseOption("cg.spark", "on-fly-cg:false");
+                break;
+            case VTA:
+                // Field-based, type-for-sites propagation with collapsed cycles.
+                sootOptions.setPhaseOption("cg.spark", "on");
+                sootOptions.setPhaseOption("cg.spark", "vta:true");
+                break;
+            case SPARK:
+                sootOptions.setPhaseOption("cg.spark", "on");
+                sootOptions.setPhaseOption("cg.spark", "string-constants:true");
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (_profile != null) ? _profile + " (" + _algorithm + ")" : _algorithm;
+    }
+}
@@ -0,0 +1,548 @@
+package pathsent;
+
+import soot.Body;
+import soot.Context;
+import soot.Kind;
+import soot.Local;
+import soot.PointsToAnalysis;
+import soot.PointsToSet;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.ValueBox;
+import soot.jimple.ClassConstant;
+import soot.jimple.FieldRef;
+import soot.jimple.InstanceFieldRef;
+import soot.jimple.spark.pag.Node;
+import soot.jimple.spark.sets.P2SetVisitor;
+import soot.jimple.spark.sets.PointsToSetInternal;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Binary snapshot of the call graph and of the points-to queries made by HeapVariable.
+//
+// Everything after the cg pack only reads the call graph, the bodies and the points-to
+// sets of field references, so a snapshot taken right after Spark lets a rerun on the same
+// APK skip Spark.  The bodies themselves (including the bridge methods and the
+// CallGraphPatchingTags added in wjpp) are not stored: they are rebuilt identically by the
+// phases that run before the cg pack, and the snapshot only refers to them.
+//
+// Methods, fields and locals are stored by signature/name.  A call site is identified by
+// the hash of its statement text and its ordinal among the statements of its method with
+// the same hash, which survives statements being emitted in a different order.  Points-to
+// sets are stored for the base local and the field of every field reference in an
+// application class, as sorted ids of the allocation sites; identical sets are stored once.
+// On load, set objects are shared the way Spark shares them: one per local and one per
+// static field, while every query for the field of a base local gets a new set.  Sets
+// compare by identity, like Spark's, so HeapVariables and the maps keyed on them behave as
+// after Spark.
+// A snapshot only matches runs with the same call graph profile; for profiles without a
+// points-to analysis (CHA) no points-to sets are stored.
+
+public class CallGraphSnapshot {
+    private static final int MAGIC = 0x50534347; // "PSCG"
+    // Bump when the layout of the snapshot changes.
+    private static final int SNAPSHOT_FORMAT = 2;
+
+    private static final Kind[] EDGE_KINDS = {
+        Kind.INVALID, Kind.STATIC, Kind.VIRTUAL, Kind.INTERFACE, Kind.SPECIAL, Kind.CLINIT,
+        Kind.GENERIC_FAKE, Kind.THREAD, Kind.EXECUTOR, Kind.ASYNCTASK, Kind.FINALIZE,
+        Kind.HANDLER, Kind.INVOKE_FINALIZE, Kind.PRIVILEGED, Kind.NEWINSTANCE,
+        Kind.REFL_INVOKE, Kind.REFL_CONSTR_NEWINSTANCE, Kind.REFL_CLASS_NEWINSTANCE
+    };
+
+    private final String _snapshotFile;
+    private final String _apkHash;
+
+    public CallGraphSnapshot(String snapshotFile, String apkFile) throws IOException {
+        _snapshotFile = snapshotFile;
+        _apkHash = JimpleBodyCache.computeSha256(new File(apkFile));
+    }
+
+    // Must be called after the cg pack.
+    public void save() throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        StringTable strings = new StringTable();
+        List<int[]> edges = new ArrayList<int[]>();
+        SetTable sets = new SetTable();
+        List<int[]> localSets = new ArrayList<int[]>();
+        List<int[]> instanceFieldSets = new ArrayList<int[]>();
+        List<int[]> staticFieldSets = new ArrayList<int[]>();
+
+        // Call edges
+        Map<SootMethod, Map<Unit, int[]>> unitKeys = new HashMap<SootMethod, Map<Unit, int[]>>();
+        for (Edge edge : Scene.v().getCallGraph()) {
+            SootMethod src = edge.src();
+            int[] unitKey = { 0, -1 };
+            if (edge.srcUnit() != null && src.hasActiveBody()) {
+                unitKey = unitKeys.computeIfAbsent(src, m -> computeUnitKeys(m.getActiveBody()))
+                        .getOrDefault(edge.srcUnit(), unitKey);
+            }
+
+            edges.add(new int[] {
+                strings.get(src.getSignature()), unitKey[0], unitKey[1],
+                strings.get(edge.tgt().getSignature()), getKindIndex(edge.kind())
+            });
+        }
+
+        // Points-to sets of field references
+        CallGraphProfile profile = PathSentStaticAnalysis.Config.CallGraphProfile;
+        PointsToAnalysis pointsToAnalysis = Scene.v().getPointsToAnalysis();
+        List<SootClass> pointsToClasses = profile.hasPointsToAnalysis()
+                ? new ArrayList<SootClass>(Scene.v().getApplicationClasses())
+                : Collections.<SootClass>emptyList();
+        for (SootClass klass : pointsToClasses) {
+            for (SootMethod method : new ArrayList<SootMethod>(klass.getMethods())) {
+                if (!method.hasActiveBody()) {
+                    continue;
+                }
+
+                int methodIndex = strings.get(method.getSignature());
+                Map<Local, Boolean> visitedLocals = new IdentityHashMap<Local, Boolean>();
+
+                for (ValueBox box : method.getActiveBody().getUseAndDefBoxes()) {
+                    if (!(box.getValue() instanceof FieldRef)) {
+                        continue;
+                    }
+
+                    FieldRef fieldRef = (FieldRef)box.getValue();
+                    SootField field = fieldRef.getField();
+                    int fieldIndex = strings.get(field.getSignature());
+
+                    if (fieldRef instanceof InstanceFieldRef) {
+                        Local base = (Local)((InstanceFieldRef)fieldRef).getBase();
+                        int localIndex = strings.get(base.getName());
+
+                        instanceFieldSets.add(new int[] { methodIndex, localIndex, fieldIndex,
+                                sets.get(pointsToAnalysis.reachingObjects(base, field)) });
+                        if (visitedLocals.put(base, Boolean.TRUE) == null) {
+                            localSets.add(new int[] { methodIndex, localIndex,
+                                    sets.get(pointsToAnalysis.reachingObjects(base)) });
+                        }
+                    } else {
+                        staticFieldSets.add(new int[] { fieldIndex,
+                                sets.get(pointsToAnalysis.reachingObjects(field)) });
+                    }
+                }
+            }
+        }
+
+        File snapshotFile = new File(_snapshotFile);
+        File tmpFile = new File(_snapshotFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeUTF(PathSentStaticAnalysis.Config.Version);
+            out.writeUTF(_apkHash);
+            out.writeUTF(profile.getAlgorithm());
+
+            out.writeInt(strings.size());
+            for (String string : strings.values()) {
+                out.writeUTF(string);
+            }
+
+            writeRecords(out, edges, 5);
+
+            out.writeInt(sets.size());
+            for (int[] set : sets.values()) {
+                out.writeInt(set.length);
+                for (int id : set) {
+                    out.writeInt(id);
+                }
+            }
+
+            writeRecords(out, localSets, 3);
+            writeRecords(out, instanceFieldSets, 4);
+            writeRecords(out, staticFieldSets, 2);
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Output.progress(String.format("Saved call graph snapshot (%d edges, %d points-to sets) "
+                + "in %.3f s: %s (%d KiB)", edges.size(), sets.size(),
+                (System.currentTimeMillis() - startTime) / 1000.0, _snapshotFile,
+                snapshotFile.length() / 1024));
+    }
+
+    // Must be called where the cg pack would run.  Installs the call graph and points-to
+    // analysis from the snapshot and returns true, or returns false (changing nothing) if the
+    // snapshot does not belong to this APK and version.
+    public boolean load() throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(_snapshotFile))))) {
+            if (in.readInt() != MAGIC || in.readInt() != SNAPSHOT_FORMAT) {
+                Output.warn("Not a call graph snapshot (or an old format): " + _snapshotFile);
+                return false;
+            }
+
+            String version = in.readUTF();
+            String apkHash = in.readUTF();
+            if (!version.equals(PathSentStaticAnalysis.Config.Version)
+                    || !apkHash.equals(_apkHash)) {
+                Output.warn("Call graph snapshot was made for another APK or version: "
+                        + _snapshotFile);
+                return false;
+            }
+
+            CallGraphProfile profile = PathSentStaticAnalysis.Config.CallGraphProfile;
+            String algorithm = in.readUTF();
+            if (!algorithm.equals(profile.getAlgorithm())) {
+                Output.warn("Call graph snapshot was made with the " + algorithm
+                        + " call graph profile: " + _snapshotFile);
+                return false;
+            }
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+
+            List<int[]> edges = readRecords(in, 5);
+
+            int[][] sets = new int[in.readInt()][];
+            for (int i = 0; i < sets.length; i++) {
+                sets[i] = new int[in.readInt()];
+                for (int j = 0; j < sets[i].length; j++) {
+                    sets[i][j] = in.readInt();
+                }
+            }
+
+            List<int[]> localSets = readRecords(in, 3);
+            List<int[]> instanceFieldSets = readRecords(in, 4);
+            List<int[]> staticFieldSets = readRecords(in, 2);
+
+            // Call edges
+            CallGraph callGraph = new CallGraph();
+            Map<SootMethod, Map<Integer, List<Unit>>> unitsByHash =
+                    new HashMap<SootMethod, Map<Integer, List<Unit>>>();
+            int numSkippedEdges = 0;
+
+            for (int[] record : edges) {
+                SootMethod src = Scene.v().grabMethod(strings[record[0]]);
+                SootMethod tgt = Scene.v().grabMethod(strings[record[3]]);
+                if (src == null || tgt == null) {
+                    numSkippedEdges++;
+                    continue;
+                }
+
+                Unit srcUnit = null;
+                if (record[2] >= 0) {
+                    List<Unit> units = null;
+                    if (src.hasActiveBody()) {
+                        units = unitsByHash.computeIfAbsent(src,
+                                m -> groupUnitsByHash(m.getActiveBody())).get(record[1]);
+                    }
+                    if (units == null || record[2] >= units.size()) {
+                        numSkippedEdges++;
+                        continue;
+                    }
+                    srcUnit = units.get(record[2]);
+                }
+
+                callGraph.addEdge(new Edge(src, srcUnit, tgt, EDGE_KINDS[record[4]]));
+            }
+
+            // Points-to sets, keyed by the locals of the current bodies
+            LoadedPointsToAnalysis pointsToAnalysis = new LoadedPointsToAnalysis();
+            Map<String, Map<String, Local>> localsByMethod =
+                    new HashMap<String, Map<String, Local>>();
+
+            for (int[] record : localSets) {
+                Local local = findLocal(localsByMethod, strings[record[0]], strings[record[1]]);
+                if (local != null) {
+                    pointsToAnalysis._localSets.put(local,
+                            new LoadedPointsToSet(sets[record[2]]));
+                }
+            }
+            for (int[] record : instanceFieldSets) {
+                Local local = findLocal(localsByMethod, strings[record[0]], strings[record[1]]);
+                if (local != null) {
+                    pointsToAnalysis._instanceFieldSets
+                            .computeIfAbsent(local, l -> new HashMap<String, int[]>())
+                            .put(strings[record[2]], sets[record[3]]);
+                }
+            }
+            for (int[] record : staticFieldSets) {
+                pointsToAnalysis._staticFieldSets.put(strings[record[0]],
+                        new LoadedPointsToSet(sets[record[1]]));
+            }
+
+            Scene.v().setCallGraph(callGraph);
+            if (profile.hasPointsToAnalysis()) {
+                Scene.v().setPointsToAnalysis(pointsToAnalysis);
+            }
+
+            if (numSkippedEdges > 0) {
+                Output.warn("Call graph snapshot: skipped " + numSkippedEdges
+                        + " edges whose methods or call sites no longer exist");
+            }
+            Output.progress(String.format("Loaded call graph snapshot (%d edges, %d points-to "
+                    + "sets) in %.3f s, skipping call graph construction: %s", callGraph.size(),
+                    sets.length, (System.currentTimeMillis() - startTime) / 1000.0,
+                    _snapshotFile));
+            return true;
+        }
+    }
+
+    private static Map<Unit, int[]> computeUnitKeys(Body body) {
+        Map<Unit, int[]> unitKeys = new HashMap<Unit, int[]>();
+        Map<Integer, Integer> ordinals = new HashMap<Integer, Integer>();
+
+        for (Unit unit : body.getUnits()) {
+            int hash = unit.toString().hashCode();
+            int ordinal = ordinals.merge(hash, 1, Integer::sum) - 1;
+            unitKeys.put(unit, new int[] { hash, ordinal });
+        }
+
+        return unitKeys;
+    }
+
+    private static Map<Integer, List<Unit>> groupUnitsByHash(Body body) {
+        Map<Integer, List<Unit>> unitsByHash = new HashMap<Integer, List<Unit>>();
+        for (Unit unit : body.getUnits()) {
+            unitsByHash.computeIfAbsent(unit.toString().hashCode(), h -> new ArrayList<Unit>())
+                    .add(unit);
+        }
+        return unitsByHash;
+    }
+
+    private static Local findLocal(Map<String, Map<String, Local>> localsByMethod,
+            String methodSignature, String localName) {
+        Map<String, Local> locals = localsByMethod.computeIfAbsent(methodSignature, s -> {
+            Map<String, Local> localsByName = new HashMap<String, Local>();
+            SootMethod method = Scene.v().grabMethod(s);
+            if (method != null && method.hasActiveBody()) {
+                for (Local local : method.getActiveBody().getLocals()) {
+                    localsByName.put(local.getName(), local);
+                }
+            }
+            return localsByName;
+        });
+
+        return locals.get(localName);
+    }
+
+    private static int getKindIndex(Kind kind) {
+        for (int i = 0; i < EDGE_KINDS.length; i++) {
+            if (EDGE_KINDS[i] == kind) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Edge kind not in EDGE_KINDS: " + kind);
+    }
+
+    // Sorted ids of the allocation sites in a points-to set, for Spark's sets and our own.
+    private static int[] getAllocationIds(PointsToSet pointsToSet) {
+        if (pointsToSet instanceof LoadedPointsToSet) {
+            return ((LoadedPointsToSet)pointsToSet)._ids;
+        }
+
+        if (!(pointsToSet instanceof PointsToSetInternal)) {
+            return new int[0];
+        }
+
+        List<Integer> ids = new ArrayList<Integer>();
+        ((PointsToSetInternal)pointsToSet).forall(new P2SetVisitor() {
+            @Override
+            public void visit(Node node) {
+                ids.add(node.getNumber());
+            }
+        });
+
+        return ids.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    private static void writeRecords(DataOutputStream out, List<int[]> records, int width)
+            throws IOException {
+        out.writeInt(records.size());
+        for (int[] record : records) {
+            for (int i = 0; i < width; i++) {
+                out.writeInt(record[i]);
+            }
+        }
+    }
+
+    private static List<int[]> readRecords(DataInputStream in, int width) throws IOException {
+        int size = in.readInt();
+        List<int[]> records = new ArrayList<int[]>(size);
+        for (int i = 0; i < size; i++) {
+            int[] record = new int[width];
+            for (int j = 0; j < width; j++) {
+                record[j] = in.readInt();
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static class StringTable {
+        private final Map<String, Integer> _indices = new LinkedHashMap<String, Integer>();
+
+        public int get(String string) {
+            return _indices.computeIfAbsent(string, s -> _indices.size());
+        }
+
+        public int size() {
+            return _indices.size();
+        }
+
+        public Set<String> values() {
+            return _indices.keySet();
+        }
+    }
+
+    // Interns points-to sets by content.  Allocation site ids are renumbered densely in the
+    // order they are first seen, which keeps them small.
+    private static class SetTable {
+        private final Map<List<Integer>, Integer> _indices =
+                new LinkedHashMap<List<Integer>, Integer>();
+        private final Map<Integer, Integer> _allocationIds = new HashMap<Integer, Integer>();
+
+        public int get(PointsToSet pointsToSet) {
+            List<Integer> ids = new ArrayList<Integer>();
+            for (int id : getAllocationIds(pointsToSet)) {
+                ids.add(_allocationIds.computeIfAbsent(id, i -> _allocationIds.size()));
+            }
+            Collections.sort(ids);
+            return _indices.computeIfAbsent(ids, s -> _indices.size());
+        }
+
+        public int size() {
+            return _indices.size();
+        }
+
+        public List<int[]> values() {
+            List<int[]> values = new ArrayList<int[]>();
+            for (List<Integer> ids : _indices.keySet()) {
+                values.add(ids.stream().mapToInt(Integer::intValue).toArray());
+            }
+            return values;
+        }
+    }
+
+    // Answers only the queries recorded in the snapshot; anything else is an empty set, like
+    // Spark returns for values it has no allocation sites for.  Like Spark, it returns the
+    // same set for each query of a local or a static field, and a new set for each query of
+    // the field of a local.
+    private static class LoadedPointsToAnalysis implements PointsToAnalysis {
+        private static final int[] NO_IDS = new int[0];
+        private static final LoadedPointsToSet EMPTY = new LoadedPointsToSet(NO_IDS);
+
+        private final Map<Local, LoadedPointsToSet> _localSets =
+                new IdentityHashMap<Local, LoadedPointsToSet>();
+        private final Map<Local, Map<String, int[]>> _instanceFieldSets =
+                new IdentityHashMap<Local, Map<String, int[]>>();
+        private final Map<String, LoadedPointsToSet> _staticFieldSets =
+                new HashMap<String, LoadedPointsToSet>();
+
+        @Override
+        public PointsToSet reachingObjects(Local local) {
+            return _localSets.getOrDefault(local, EMPTY);
+        }
+
+        @Override
+        public PointsToSet reachingObjects(Context context, Local local) {
+            return reachingObjects(local);
+        }
+
+        @Override
+        public PointsToSet reachingObjects(SootField field) {
+            return _staticFieldSets.getOrDefault(field.getSignature(), EMPTY);
+        }
+
+        @Override
+        public PointsToSet reachingObjects(PointsToSet set, SootField field) {
+            return EMPTY;
+        }
+
+        @Override
+        public PointsToSet reachingObjects(Local local, SootField field) {
+            Map<String, int[]> fieldSets = _instanceFieldSets.get(local);
+            return new LoadedPointsToSet((fieldSets == null)
+                    ? NO_IDS : fieldSets.getOrDefault(field.getSignature(), NO_IDS));
+        }
+
+        @Override
+        public PointsToSet reachingObjects(Context context, Local local, SootField field) {
+            return reachingObjects(local, field);
+        }
+
+        @Override
+        public PointsToSet reachingObjectsOfArrayElement(PointsToSet set) {
+            return EMPTY;
+        }
+    }
+
+    private static class LoadedPointsToSet implements PointsToSet {
+        private final int[] _ids;
+
+        public LoadedPointsToSet(int[] ids) {
+            _ids = ids;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return _ids.length == 0;
+        }
+
+        @Override
+        public boolean hasNonEmptyIntersection(PointsToSet other) {
+            int[] otherIds = getAllocationIds(other);
+            int i = 0;
+            int j = 0;
+            while (i < _ids.length && j < otherIds.length) {
+                if (_ids[i] == otherIds[j]) {
+                    return true;
+                } else if (_ids[i] < otherIds[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return false;
+        }
+
+        // Types and constants are not recorded, nothing after the cg pack asks for them.
+        @Override
+        public Set<Type> possibleTypes() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<String> possibleStringConstants() {
+            return null;
+        }
+
+        @Override
+        public Set<ClassConstant> possibleClassConstants() {
+            return null;
+        }
+    }
+}
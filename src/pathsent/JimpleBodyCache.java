@@ -0,0 +1,245 @@
+package pathsent;
+
+import soot.Body;
+import soot.ClassProvider;
+import soot.DexClassProvider;
+import soot.JimpleClassProvider;
+import soot.PhaseOptions;
+import soot.Printer;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.SourceLocator;
+import soot.asm.AsmClassProvider;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// Content-addressed cache of the Jimple bodies of an APK's application classes.
+//
+// The cache directory holds one entry per APK SHA-256.  On a miss, the bodies are
+// retrieved once from dex right after the scene is loaded (before any of our transforms
+// modify them) and printed as Jimple.  On a hit, the entry is put on soot's class path and
+// the Jimple class provider is consulted before the dex one, so application classes are
+// parsed from Jimple instead of converted from dex; anything not in the cache still falls
+// back to dex.  An entry is rebuilt when the tool version, the soot version, the soot options
+// that affect the bodies (dex processing, Android jars, jb phase options) or the exclude list
+// change.
+//
+// Only bodies that validate are stored.  After a hit, the cached bodies are parsed and
+// validated again (validateBodies()); if any fails, e.g. because the entry is corrupt, the
+// entry is dropped and the caller loads the scene from dex instead.
+
+public class JimpleBodyCache {
+    // Bump when the layout or contents of a cache entry change.
+    private static final String CACHE_FORMAT = "1";
+
+    private static final String METADATA_FILE = "cache.properties";
+    private static final String JIMPLE_DIRECTORY = "jimple";
+
+    private final File _entryDirectory;
+    private final Properties _expectedMetadata = new Properties();
+    private final boolean _isHit;
+
+    public JimpleBodyCache(String cacheDirectory, String apkFile, List<String> excludeList)
+            throws IOException {
+        _entryDirectory = new File(cacheDirectory, computeSha256(new File(apkFile)));
+
+        _expectedMetadata.setProperty("Format", CACHE_FORMAT);
+        _expectedMetadata.setProperty("Version", PathSentStaticAnalysis.Config.Version);
+        _expectedMetadata.setProperty("ExcludeList", String.join(",", excludeList));
+        _expectedMetadata.setProperty("SootVersion", soot.Main.versionString);
+        _expectedMetadata.setProperty("SourcePrecedence",
+                String.valueOf(soot.options.Options.v().src_prec()));
+        _expectedMetadata.setProperty("ProcessMultipleDex",
+                String.valueOf(soot.options.Options.v().process_multiple_dex()));
+        _expectedMetadata.setProperty("AndroidJars", soot.options.Options.v().android_jars());
+        _expectedMetadata.setProperty("JbOptions",
+                new TreeMap<String, String>(PhaseOptions.v().getPhaseOptions("jb")).toString());
+
+        _isHit = isValidEntry();
+        if (!_isHit && _entryDirectory.exists()) {
+            Output.log("Jimple cache entry is stale and will be rebuilt: " + _entryDirectory);
+            FileUtils.deleteQuietly(_entryDirectory);
+        }
+    }
+
+    public boolean isHit() {
+        return _isHit;
+    }
+
+    // Must be called after the soot options are set (they are part of the cache key) and
+    // before the scene is loaded.
+    public void configureSoot() {
+        if (!_isHit) {
+            return;
+        }
+
+        File jimpleDirectory = new File(_entryDirectory, JIMPLE_DIRECTORY);
+        soot.options.Options.v().set_soot_classpath(jimpleDirectory.getPath()
+                + File.pathSeparator + soot.options.Options.v().soot_classpath());
+
+        List<ClassProvider> classProviders = new ArrayList<ClassProvider>();
+        classProviders.add(new JimpleClassProvider());
+        classProviders.add(new DexClassProvider());
+        classProviders.add(new AsmClassProvider());
+        SourceLocator.v().setClassProviders(classProviders);
+
+        Output.log("Loading application class bodies from Jimple cache: " + _entryDirectory);
+    }
+
+    // Checks that the bodies of the cached classes parse and validate, after the scene is
+    // loaded from a hit.  Otherwise the entry is deleted and false is returned; the scene
+    // must then be loaded again without the cache.
+    public boolean validateBodies() {
+        if (!_isHit) {
+            return true;
+        }
+
+        File jimpleDirectory = new File(_entryDirectory, JIMPLE_DIRECTORY);
+        try {
+            for (SootClass klass : new ArrayList<SootClass>(Scene.v().getApplicationClasses())) {
+                if (klass.isPhantom()
+                        || !new File(jimpleDirectory, klass.getName() + ".jimple").isFile()) {
+                    continue;
+                }
+
+                for (SootMethod method : klass.getMethods()) {
+                    if (method.isConcrete()) {
+                        method.retrieveActiveBody().validate();
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            invalidate("Jimple cache entry is invalid and will be rebuilt: " + e.toString());
+            return false;
+        }
+    }
+
+    // Deletes the entry, after the scene could not be loaded from it.
+    public void invalidate(String reason) {
+        Output.warn(reason);
+        FileUtils.deleteQuietly(_entryDirectory);
+    }
+
+    // Must be called right after the scene is loaded, before any body is transformed.
+    public void store() {
+        if (_isHit) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        File tmpDirectory = new File(_entryDirectory.getPath() + ".tmp-"
+                + ProcessHandle.current().pid());
+        File jimpleDirectory = new File(tmpDirectory, JIMPLE_DIRECTORY);
+        int numClasses = 0;
+
+        try {
+            jimpleDirectory.mkdirs();
+
+            for (SootClass klass : new ArrayList<SootClass>(Scene.v().getApplicationClasses())) {
+                if (klass.isPhantom()) {
+                    continue;
+                }
+
+                if (storeClass(klass, new File(jimpleDirectory, klass.getName() + ".jimple"))) {
+                    numClasses++;
+                }
+            }
+
+            try (FileOutputStream metadataStream =
+                    new FileOutputStream(new File(tmpDirectory, METADATA_FILE))) {
+                _expectedMetadata.store(metadataStream, "PathSentinel Jimple body cache");
+            }
+
+            // Another process may have stored the same APK concurrently; keep theirs.
+            if (!_entryDirectory.exists()) {
+                Files.move(tmpDirectory.toPath(), _entryDirectory.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            Output.log(String.format("Stored %d classes in Jimple cache in %.3f s: %s",
+                    numClasses, (System.currentTimeMillis() - startTime) / 1000.0,
+                    _entryDirectory));
+        } catch (Exception e) {
+            Output.warn("Could not store Jimple cache entry: " + e.toString());
+        } finally {
+            FileUtils.deleteQuietly(tmpDirectory);
+        }
+    }
+
+    private boolean storeClass(SootClass klass, File jimpleFile) {
+        try {
+            // Force the bodies out of dex now, the printer requires them.  A body that does
+            // not validate is not cached.
+            for (SootMethod method : klass.getMethods()) {
+                if (method.isConcrete()) {
+                    Body body = method.retrieveActiveBody();
+                    body.validate();
+                }
+            }
+
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(jimpleFile), StandardCharsets.UTF_8))) {
+                Printer.v().printTo(klass, writer);
+            }
+            return true;
+        } catch (Exception e) {
+            // Leave this class out of the cache so it is converted from dex again.
+            Output.debug("Not caching " + klass.getName() + ": " + e.toString());
+            FileUtils.deleteQuietly(jimpleFile);
+            return false;
+        }
+    }
+
+    private boolean isValidEntry() {
+        File metadataFile = new File(_entryDirectory, METADATA_FILE);
+        if (!metadataFile.isFile()) {
+            return false;
+        }
+
+        Properties metadata = new Properties();
+        try (FileInputStream metadataStream = new FileInputStream(metadataFile)) {
+            metadata.load(metadataStream);
+        } catch (IOException e) {
+            return false;
+        }
+
+        return metadata.equals(_expectedMetadata);
+    }
+
+    static String computeSha256(File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -1,18 +1,102 @@
 package pathsent;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Leveled output for the analysis.
+//
+// Messages below the level of their subsystem are dropped; the Supplier<String> overloads
+// only build the message if it will be printed, so they should be used on hot paths.  Lines
+// are written to standard output by a background thread, so callers do not wait on console
+// I/O.  In multi-threaded mode a thread can buffer its output (startBuffering) and flush it
+// as one block, so that the output of concurrent tasks is not interleaved.
+
 public class Output {
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG, TRACE }
+
+    public enum Subsystem { General, Traversal, CallGraph, Constraint, Icc }
+
+    private static final Level DEFAULT_LEVEL = Level.INFO;
+
+    private static volatile Level[] _levels = createLevels(DEFAULT_LEVEL);
     private static ThreadLocal<StringBuffer> _buffer = new ThreadLocal<StringBuffer>();
+    private static final AsyncSink _sink = new AsyncSink();
+    private static volatile Consumer<String> _progressListener = null;
+
+    public static boolean isEnabled(Subsystem subsystem, Level level) {
+        return level.compareTo(_levels[subsystem.ordinal()]) <= 0;
+    }
+
+    public static boolean isDebugEnabled(Subsystem subsystem) {
+        return isEnabled(subsystem, Level.DEBUG);
+    }
+
+    public static void setLevel(Level level) {
+        _levels = createLevels(level);
+    }
+
+    public static void setLevel(Subsystem subsystem, Level level) {
+        Level[] levels = _levels.clone();
+        levels[subsystem.ordinal()] = level;
+        _levels = levels;
+    }
+
+    // Parses a level specification such as "debug" or "info,traversal=trace,constraint=off".
+    // A bare level applies to all subsystems, later entries override earlier ones.
+    public static void setLevels(String specification) throws IllegalArgumentException {
+        Level[] levels = createLevels(DEFAULT_LEVEL);
+
+        for (String entry : specification.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            int separator = entry.indexOf('=');
+            if (separator < 0) {
+                levels = createLevels(parseLevel(entry));
+            } else {
+                levels[parseSubsystem(entry.substring(0, separator).trim()).ordinal()] =
+                        parseLevel(entry.substring(separator + 1).trim());
+            }
+        }
+
+        _levels = levels;
+    }
 
     public static void log(String output) {
-        outputOrBuffer(output);
+        if (isEnabled(Subsystem.General, Level.INFO)) {
+            outputOrBuffer(output);
+        }
+    }
+
+    public static void log(Subsystem subsystem, Supplier<String> output) {
+        if (isEnabled(subsystem, Level.INFO)) {
+            outputOrBuffer(output.get());
+        }
     }
 
     public static void warn(String output) {
-        outputOrBuffer("[Warning] " + output);
+        if (isEnabled(Subsystem.General, Level.WARN)) {
+            outputOrBuffer("[Warning] " + output);
+        }
+    }
+
+    public static void warn(Subsystem subsystem, Supplier<String> output) {
+        if (isEnabled(subsystem, Level.WARN)) {
+            outputOrBuffer("[Warning] " + output.get());
+        }
     }
 
     public static void error(String output) {
-        outputOrBuffer("[Error] " + output);
+        if (isEnabled(Subsystem.General, Level.ERROR)) {
+            outputOrBuffer("[Error] " + output);
+        }
         //(new Exception()).printStackTrace();
     }
 
@@ -23,14 +107,42 @@ public class Output {
     }
 
     public static void debug(String output) {
-        outputOrBuffer("[Debug] " + output);
+        if (isEnabled(Subsystem.General, Level.DEBUG)) {
+            outputOrBuffer("[Debug] " + output);
+        }
+    }
+
+    public static void debug(Supplier<String> output) {
+        debug(Subsystem.General, output);
+    }
+
+    public static void debug(Subsystem subsystem, Supplier<String> output) {
+        if (isEnabled(subsystem, Level.DEBUG)) {
+            outputOrBuffer("[Debug] " + output.get());
+        }
+    }
+
+    public static void trace(Subsystem subsystem, Supplier<String> output) {
+        if (isEnabled(subsystem, Level.TRACE)) {
+            outputOrBuffer("[Trace] " + output.get());
+        }
     }
 
     public static void progress(String output) {
         double elapsedTime = ((double)System.currentTimeMillis()
                 - PathSentStaticAnalysis.Config.StartTime) / 60000;
-        outputOrBuffer(String.format(">>> %s (%.3f min)", output, elapsedTime));
-        System.out.flush();
+        String progressLine = String.format(">>> %s (%.3f min)", output, elapsedTime);
+        outputOrBuffer(progressLine);
+
+        Consumer<String> progressListener = _progressListener;
+        if (progressListener != null) {
+            progressListener.accept(progressLine);
+        }
+    }
+
+    // Receives every progress line in addition to the normal output (null to remove).
+    public static void setProgressListener(Consumer<String> progressListener) {
+        _progressListener = progressListener;
     }
 
     public static void printSubtitle(String subtitle) {
@@ -66,7 +178,7 @@ public class Output {
     }
 
     public static void flushBuffer() {
-        System.out.print(_buffer.get().toString());
+        _sink.write(_buffer.get().toString());
         _buffer.set(null);
     }
 
@@ -74,14 +186,107 @@ public class Output {
         _buffer.set(new StringBuffer());
     }
 
+    // Blocks until everything written so far has reached standard output.
+    public static void flush() {
+        _sink.flush();
+    }
+
     private static void outputOrBuffer(String output) {
         if (_buffer.get() == null) {
-            System.out.println(output);
+            _sink.write(output + System.lineSeparator());
         } else {
             StringBuffer currentBuffer = _buffer.get();
             currentBuffer.append(output);
             currentBuffer.append(System.lineSeparator());
         }
     }
-}
 
+    private static Level[] createLevels(Level level) {
+        Level[] levels = new Level[Subsystem.values().length];
+        Arrays.fill(levels, level);
+        return levels;
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + name);
+        }
+    }
+
+    private static Subsystem parseSubsystem(String name) {
+        for (Subsystem subsystem : Subsystem.values()) {
+            if (subsystem.name().equalsIgnoreCase(name)) {
+                return subsystem;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log subsystem: " + name);
+    }
+
+    // Writes text to standard output on a daemon thread, batching whatever has queued up
+    // into one write and flushing once the queue is empty.  Pending text is flushed at exit.
+    private static class AsyncSink implements Runnable {
+        private final LinkedBlockingQueue<String> _queue = new LinkedBlockingQueue<String>();
+        private long _enqueued = 0;
+        private long _written = 0;
+
+        public AsyncSink() {
+            Thread writerThread = new Thread(this, "OutputWriterThread");
+            writerThread.setDaemon(true);
+            writerThread.start();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+        }
+
+        public void write(String text) {
+            synchronized (this) {
+                _enqueued++;
+            }
+            _queue.add(text);
+        }
+
+        public void flush() {
+            synchronized (this) {
+                long target = _enqueued;
+                while (_written < target) {
+                    try {
+                        wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            List<String> batch = new ArrayList<String>();
+            StringBuilder text = new StringBuilder();
+
+            while (true) {
+                try {
+                    batch.add(_queue.take());
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                _queue.drainTo(batch);
+
+                for (String item : batch) {
+                    text.append(item);
+                }
+                System.out.print(text);
+                System.out.flush();
+
+                synchronized (this) {
+                    _written += batch.size();
+                    notifyAll();
+                }
+
+                batch.clear();
+                text.setLength(0);
+            }
+        }
+    }
+}
@@ -5,10 +5,14 @@ import soot.*;
 import org.apache.commons.cli.*;
 import org.apache.commons.io.FileUtils;
 
+import pathsent.target.BodyAnalysisCache;
 import pathsent.target.ManifestAnalysis;
 import pathsent.target.ResourceAnalysis;
 import pathsent.target.TargetedPathsAnalysis;
 import pathsent.target.callgraph.AndroidCallGraphPatching;
+import pathsent.target.constraint.AuxiliaryMethodSummary;
+import pathsent.target.constraint.ConstraintSummaryCache;
+import pathsent.target.constraint.TermFactory;
 import pathsent.target.dependency.DependencyAnalysis;
 import pathsent.target.entrypoint.IEntryPointAnalysis;
 import pathsent.target.entrypoint.WorkingEntryPointAnalysis;
@@ -37,10 +41,30 @@ public class PathSentStaticAnalysis {
         public static List<String> DynamicFiles = new ArrayList<String>();
         public static String OutputDirectory = null;
         public static String BaseOutputDirectory = null;
+        public static String CacheDirectory = null;
+        public static String SaveCallGraphFile = null;
+        public static String LoadCallGraphFile = null;
+        public static CallGraphProfile CallGraphProfile = pathsent.CallGraphProfile.SPARK;
 
         public static boolean MultiThreading = false;
         public static int NumberOfThreads = 8;
 
+        // Number of alternative call paths analyzed per target method
+        public static int PathsPerTarget = 1;
+
+        // Levels of auxiliary methods (methods invoked by the methods on a call path) whose
+        // constraints are analyzed
+        public static int AuxiliaryMethodDepth = 1;
+
+        // Passes of the constraint analysis over a loop head before the data at the loop head
+        // is widened
+        public static int WideningDelay = 2;
+
+        public static String BatchInput = null;
+        public static int BatchWorkers = 2;
+
+        public static int DaemonPort = -1;
+
         public static boolean PrintSootOutput = false;
         public static boolean PrintOutput = true;
         public static boolean PrintConstraints = false;
@@ -50,10 +74,11 @@ public class PathSentStaticAnalysis {
 
     public static void main(String[] args) throws Exception {
         Options options = getCommandLineOptions();
+        CommandLine commands = null;
 
         try {
             CommandLineParser commandLineParser = new DefaultParser();
-            CommandLine commands = commandLineParser.parse(options, args, true);
+            commands = commandLineParser.parse(options, args, true);
             parseCommandLineOptions(options, commands);
         } catch (ParseException e) {
             System.err.println(e.toString());
@@ -62,6 +87,21 @@ public class PathSentStaticAnalysis {
         }
 
         Config.StartTime = System.currentTimeMillis();
+
+        if (Config.BatchInput != null) {
+            // Each APK is analyzed by a separate worker JVM.
+            BatchAnalysis batchAnalysis = new BatchAnalysis(Config.BatchInput, commands);
+            batchAnalysis.run();
+            System.exit(0);
+        }
+
+        if (Config.DaemonPort > 0) {
+            // Jobs are submitted over HTTP and analyzed in this JVM.
+            AnalysisDaemon daemon = new AnalysisDaemon(Config.DaemonPort, commands);
+            daemon.run();
+            System.exit(0);
+        }
+
         Output.progress("Starting PathSentinel analysis for " + Config.ApkFile + " at "
                 + (new Date()).toString());
         PathSentStaticAnalysis analysis = new PathSentStaticAnalysis();
@@ -69,18 +109,50 @@ public class PathSentStaticAnalysis {
             analysis.analyze();
             Output.progress("Analysis completed successfully");
         } catch (Exception e) {
+            PhaseMetrics.writeFile();
             System.err.println("FATAL: Analysis failed with exception: " + e.getMessage());
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    // Runs a single analysis without exiting the process.  The analysis daemon calls this in a
+    // fresh class loader for every job.
+    public static void run(String[] args) throws Exception {
+        Options options = getCommandLineOptions();
+        CommandLine commands = new DefaultParser().parse(options, args, true);
+        parseCommandLineOptions(options, commands);
+
+        Config.StartTime = System.currentTimeMillis();
+
+        Output.progress("Starting PathSentinel analysis for " + Config.ApkFile + " at "
+                + (new Date()).toString());
+        try {
+            new PathSentStaticAnalysis().analyze();
+            Output.progress("Analysis completed successfully");
+        } catch (Exception e) {
+            PhaseMetrics.writeFile();
+            throw e;
+        }
+    }
+
     public void analyze() throws Exception {
         System.err.println("ANALYZE: Starting analyze() method");
-        // Initialize soot options in case manifest analysis requires android.R$attr class
+        // All phases, paths and solver queries draw from the budget of the run (-k).
+        Budget.startRun(Config.Timeout);
+
+        // Initialize soot once.  The manifest, entry-point and ICC model phases all run in
+        // the same scene that Spark uses later, so the APK is only parsed a single time.
+        long sootStartTime = System.currentTimeMillis();
+        PhaseMetrics.startPhase("soot");
         initializeSoot();
+        long sootLoadTime = System.currentTimeMillis() - sootStartTime;
         System.err.println("ANALYZE: initializeSoot() completed");
+        Output.progress(String.format("Soot scene loaded in %.3f s (%d classes, single session; "
+                + "saves one full APK reload)", sootLoadTime / 1000.0,
+                Scene.v().getClasses().size()));
 
+        PhaseMetrics.startPhase("manifest");
         ManifestAnalysis manifestAnalysis = new ManifestAnalysis(
                 PathSentStaticAnalysis.Config.ApkFile);
         ResourceAnalysis resourceAnalysis = new ResourceAnalysis(
@@ -103,6 +175,7 @@ public class PathSentStaticAnalysis {
 
         // Find entrypoints using comprehensive Android component discovery
         Output.progress("Searching for entrypoints");
+        PhaseMetrics.startPhase("entry-points");
         System.err.println("DEBUG: About to create WorkingEntryPointAnalysis");
         
         // Phase 1: Use WorkingEntryPointAnalysis while we prepare SetupApplication integration
@@ -114,6 +187,7 @@ public class PathSentStaticAnalysis {
         
         // Phase 2: Generate ICC model for inter-component communication analysis
         Output.progress("Generating ICC model");
+        PhaseMetrics.startPhase("icc-model");
         System.err.println("DEBUG: Starting ICC model generation");
         System.err.println("DEBUG: Output directory: " + PathSentStaticAnalysis.Config.OutputDirectory);
         
@@ -151,20 +225,6 @@ public class PathSentStaticAnalysis {
             e.printStackTrace();
         }
 
-        // After this point, do not re-use any of the soot objects (the scene will be reset)!
-
-        // Initialize soot options
-        initializeSoot();
-        
-        // Mark classes from the APK as application classes (after second Soot reset)
-        // In Soot 4.x, we need to explicitly mark APK classes as application classes
-        for (SootClass sc : Scene.v().getClasses()) {
-            if (sc.getName().startsWith("com.test.pathsent_tester")) {
-                sc.setApplicationClass();
-                Output.debug("SOOT: Marked as application class (after reset): " + sc.getName());
-            }
-        }
-        
         // Debug: Print loaded target methods
         Output.debug("TARGETS: Loaded " + Config.TargetMethods.size() + " target methods:");
         for (String target : Config.TargetMethods) {
@@ -173,12 +233,14 @@ public class PathSentStaticAnalysis {
 
         // Add entrypoints
         Output.progress("Setting entry points");
+        PhaseMetrics.startPhase("setup");
         Scene.v().setEntryPoints(Collections.singletonList(
                 finalEntryPointAnalysis.getDummyMainMethod()));
 
         // Soot packs used:
         //   wjpp     - add call graph patching tags for Android-specific call edges
-        //   cg.spark - create call graph and points-to analysis
+        //   cg       - create call graph and points-to analysis (cg.spark or cg.cha,
+        //              depending on the call graph profile)
         //   wjtp     - main PathSentinel analysis (path extraction and constraint generation)
 
         // Phase 2: Direct ICC instrumentation integration (replacing Transform approach)
@@ -193,14 +255,13 @@ public class PathSentStaticAnalysis {
         PackManager.v().getPack("wjpp").add(new Transform("wjpp.AndroidCallGraphPatching",
                 new AndroidCallGraphPatching(manifestAnalysis)));
 
-        // EntryPointAnalysis was created before Soot reset
-        
         DependencyAnalysis dependencyAnalysis = new DependencyAnalysis(resourceAnalysis,
                 finalEntryPointAnalysis);
         TargetedPathsAnalysis targetedPathsAnalysis = new TargetedPathsAnalysis(
                 manifestAnalysis, finalEntryPointAnalysis, dependencyAnalysis);
 
         CallGraphTraversal callGraphTraversal = new CallGraphTraversal(finalEntryPointAnalysis);
+        callGraphTraversal.setExportedComponents(manifestAnalysis.getEntryPointClasses());
         callGraphTraversal.addPlugin(targetedPathsAnalysis.getCallGraphPlugin());
         dependencyAnalysis.getCallGraphPlugins().forEach(
                 p -> { callGraphTraversal.addPlugin(p); });
@@ -214,6 +275,7 @@ public class PathSentStaticAnalysis {
         Output.progress("Generating call graph and points-to analysis");
 
         // Phase 2: Direct ICC instrumentation before call graph construction
+        PhaseMetrics.startPhase("wjpp");
         System.err.println("PATHSENT: Performing ICC instrumentation before call graph construction");
         iccIntegrator.instrumentBeforeCallGraphConstruction();
 
@@ -222,12 +284,22 @@ public class PathSentStaticAnalysis {
         PackManager.v().getPack("wjpp").apply();
         System.err.println("PATHSENT: wjpp pack completed");
 
-        // Run call graph construction (cg.spark)
-        System.err.println("PATHSENT: Running call graph construction (cg.spark)");
-        PackManager.v().getPack("cg").apply();
-        System.err.println("PATHSENT: Call graph construction completed");
+        // Run call graph construction, unless a snapshot of it can be loaded
+        PhaseMetrics.startPhase("cg.snapshot");
+        if (!loadCallGraphSnapshot()) {
+            String callGraphPhase = Config.CallGraphProfile.getPhaseName();
+            PhaseMetrics.startPhase(callGraphPhase);
+            Output.progress("Building call graph with " + Config.CallGraphProfile + " profile");
+            System.err.println("PATHSENT: Running call graph construction (" + callGraphPhase
+                    + ")");
+            PackManager.v().getPack("cg").apply();
+            System.err.println("PATHSENT: Call graph construction completed");
+
+            saveCallGraphSnapshot();
+        }
 
         // Phase 3: Multi-component ICC analysis (combining IccTA + Amandroid approaches)
+        PhaseMetrics.startPhase("multi-component-icc");
         System.err.println("PATHSENT: Starting multi-component ICC analysis");
         try {
             pathsent.target.icc.MultiComponentAnalysis multiComponentAnalysis = 
@@ -251,6 +323,7 @@ public class PathSentStaticAnalysis {
         iccIntegrator.instrumentAfterCallGraphConstruction();
 
         // Phase 5: Call graph verification and validation
+        PhaseMetrics.startPhase("verification");
         System.err.println("PATHSENT: Verifying call graph structure and connectivity");
         try {
             pathsent.target.traversal.CallGraphVerifier callGraphVerifier = 
@@ -273,9 +346,48 @@ public class PathSentStaticAnalysis {
         System.err.println("PATHSENT: Running wjtp (whole-jimple transformation) pack");
         PackManager.v().getPack("wjtp").apply();
         System.err.println("PATHSENT: wjtp pack completed");
+        Output.log("Body analysis cache: " + BodyAnalysisCache.getStatistics());
+        Output.log("Constraint summary cache: " + ConstraintSummaryCache.getStatisticsJson());
+        PhaseMetrics.setStatistics("ConstraintSummaryCache",
+                                   ConstraintSummaryCache.getStatisticsJson());
+        PhaseMetrics.setStatistics("AuxiliaryMethodSummaries",
+                                   AuxiliaryMethodSummary.getStatisticsJson());
+        PhaseMetrics.setStatistics("ConstraintTerms", TermFactory.getStatisticsJson());
+
+        Output.progress("Writing " + Config.OutputDirectory + "/metrics.json");
+        PhaseMetrics.writeFile();
+    }
+
+    private boolean loadCallGraphSnapshot() {
+        if (Config.LoadCallGraphFile == null) {
+            return false;
+        }
+
+        try {
+            return new CallGraphSnapshot(Config.LoadCallGraphFile, Config.ApkFile).load();
+        } catch (Exception e) {
+            Output.warn("Cannot load call graph snapshot, rebuilding it: " + e.toString());
+            return false;
+        }
+    }
+
+    private void saveCallGraphSnapshot() {
+        if (Config.SaveCallGraphFile == null) {
+            return;
+        }
+
+        try {
+            new CallGraphSnapshot(Config.SaveCallGraphFile, Config.ApkFile).save();
+        } catch (Exception e) {
+            Output.warn("Cannot save call graph snapshot: " + e.toString());
+        }
     }
 
     public static void initializeSoot() {
+        initializeSoot(true);
+    }
+
+    private static void initializeSoot(boolean useBodyCache) {
         soot.G.reset();
 
         // Source format: APK
@@ -292,8 +404,7 @@ public class PathSentStaticAnalysis {
         soot.options.Options.v().set_force_overwrite(true);
         soot.options.Options.v().set_whole_program(true);
         soot.options.Options.v().setPhaseOption("cg", "callgraph-tags:true");
-        soot.options.Options.v().setPhaseOption("cg.spark", "on");
-        soot.options.Options.v().setPhaseOption("cg.spark", "string-constants:true");
+        Config.CallGraphProfile.setSootOptions();
 
         // Suppress output (temporarily disabled for ICC debugging)
         // if (!Config.PrintSootOutput) {
@@ -325,7 +436,29 @@ public class PathSentStaticAnalysis {
 
         soot.options.Options.v().set_process_dir(inputCode);
 
-        Scene.v().loadNecessaryClasses();
+        // Load application class bodies from the Jimple cache instead of dex if possible
+        JimpleBodyCache bodyCache = null;
+        if (Config.CacheDirectory != null && useBodyCache) {
+            try {
+                bodyCache = new JimpleBodyCache(Config.CacheDirectory, Config.ApkFile,
+                        excludeList);
+                bodyCache.configureSoot();
+            } catch (Exception e) {
+                Output.warn("Jimple cache disabled: " + e.toString());
+                bodyCache = null;
+            }
+        }
+
+        try {
+            Scene.v().loadNecessaryClasses();
+        } catch (RuntimeException e) {
+            if (bodyCache == null || !bodyCache.isHit()) {
+                throw e;
+            }
+            bodyCache.invalidate("Cannot load Jimple cache entry: " + e.toString());
+            initializeSoot(false);
+            return;
+        }
         
         // Mark classes from the APK as application classes  
         // In Soot 4.x, we need to explicitly mark APK classes as application classes
@@ -335,6 +468,17 @@ public class PathSentStaticAnalysis {
                 Output.debug("SOOT: Marked as application class: " + sc.getName());
             }
         }
+
+        if (bodyCache != null && !bodyCache.validateBodies()) {
+            // The entry is gone, convert the classes from dex (the entry is rebuilt
+            // by the next run)
+            initializeSoot(false);
+            return;
+        }
+
+        if (bodyCache != null) {
+            bodyCache.store();
+        }
     }
 
     private static Options getCommandLineOptions() {
@@ -355,6 +499,24 @@ public class PathSentStaticAnalysis {
                 .desc("Time limit for analysis (best effort)")
                 .build()
         );
+        options.addOption(Option.builder("n").longOpt("paths-per-target")
+                .required(false).hasArg(true).argName("paths")
+                .desc("Number of distinct call paths to find and analyze for each target "
+                        + "method (default: 1)")
+                .build()
+        );
+        options.addOption(Option.builder("a").longOpt("aux-depth")
+                .required(false).hasArg(true).argName("levels")
+                .desc("Levels of auxiliary methods to analyze the constraints of, below the "
+                        + "methods on a call path (default: 1)")
+                .build()
+        );
+        options.addOption(Option.builder("r").longOpt("widening-delay")
+                .required(false).hasArg(true).argName("passes")
+                .desc("Passes of the constraint analysis over a loop before the data that "
+                        + "keeps changing in the loop is widened (default: 2)")
+                .build()
+        );
         options.addOption(Option.builder("x").longOpt("nostdout")
                 .required(false).hasArg(false)
                 .desc("Do not print extracted paths in standard output")
@@ -370,6 +532,54 @@ public class PathSentStaticAnalysis {
                 .desc("Print output from Soot framework and FlowDroid entry-point extraction")
                 .build()
         );
+        options.addOption(Option.builder("d").longOpt("log-level")
+                .required(false).hasArg(true).argName("levels")
+                .desc("Log level (off, error, warn, info, debug, trace), for all subsystems "
+                        + "or per subsystem (general, traversal, callgraph, constraint, icc), "
+                        + "e.g. \"info,traversal=debug\" (default: info)")
+                .build()
+        );
+        options.addOption(Option.builder("c").longOpt("cache")
+                .required(false).hasArg(true).argName("dir")
+                .desc("Cache directory for Jimple bodies, keyed by APK hash (re-runs of the "
+                        + "same APK skip dex conversion)")
+                .build()
+        );
+        options.addOption(Option.builder("s").longOpt("save-cg")
+                .required(false).hasArg(true).argName("file")
+                .desc("Save the call graph and points-to sets to a snapshot file after they "
+                        + "are built")
+                .build()
+        );
+        options.addOption(Option.builder("l").longOpt("load-cg")
+                .required(false).hasArg(true).argName("file")
+                .desc("Load the call graph and points-to sets from a snapshot file of the "
+                        + "same APK instead of building them")
+                .build()
+        );
+        options.addOption(Option.builder("g").longOpt("cg-profile")
+                .required(false).hasArg(true).argName("profile")
+                .desc("Call graph algorithm: fast (CHA), balanced (VTA), precise (Spark, "
+                        + "default), or one of cha, rta, vta, spark")
+                .build()
+        );
+        options.addOption(Option.builder("b").longOpt("batch")
+                .required(false).hasArg(true).argName("dir|list")
+                .desc("Analyze every APK in a directory (or listed in a file, one per line) "
+                        + "with a pool of worker JVMs")
+                .build()
+        );
+        options.addOption(Option.builder("w").longOpt("workers")
+                .required(false).hasArg(true).argName("workers")
+                .desc("Number of concurrent worker JVMs in batch mode (default: 2)")
+                .build()
+        );
+        options.addOption(Option.builder("p").longOpt("daemon")
+                .required(false).hasArg(true).argName("port")
+                .desc("Run as a local analysis server on http://127.0.0.1:<port>/jobs, "
+                        + "analyzing submitted APKs one at a time in this JVM")
+                .build()
+        );
         options.addOption(Option.builder("h").longOpt("help")
                     .required(false).hasArg(false)
                     .desc("Print help")
@@ -406,14 +616,52 @@ public class PathSentStaticAnalysis {
         }
 
         List<String> operands = commands.getArgList();
-        if (operands.size() != 1) {
+        if (commands.hasOption("p")) {
+            if (!operands.isEmpty() || commands.hasOption("b")) {
+                throw new ParseException("APK file or batch mode cannot be combined with "
+                        + "daemon mode", 0);
+            }
+            try {
+                Config.DaemonPort = Integer.parseInt(commands.getOptionValue("p"));
+            } catch (NumberFormatException e) {
+                throw new ParseException("Cannot parse daemon port", 0);
+            }
+        } else if (commands.hasOption("b")) {
+            if (!operands.isEmpty()) {
+                throw new ParseException("APK file cannot be combined with batch mode", 0);
+            }
+            if (commands.hasOption("s") || commands.hasOption("l")) {
+                throw new ParseException("Call graph snapshots cannot be used in batch mode", 0);
+            }
+            Config.BatchInput = commands.getOptionValue("b");
+        } else if (operands.size() != 1) {
             throw new ParseException("Missing APK file", 0);
+        } else {
+            Config.ApkFile = operands.get(0);
         }
-
-        Config.ApkFile = operands.get(0);
         // Store the base output directory - will append package name later
         Config.BaseOutputDirectory = commands.getOptionValue("o", "./pathSentOutput");
 
+        Config.CacheDirectory = commands.getOptionValue("c");
+        Config.SaveCallGraphFile = commands.getOptionValue("s");
+        Config.LoadCallGraphFile = commands.getOptionValue("l");
+
+        if (commands.hasOption("g")) {
+            try {
+                Config.CallGraphProfile = CallGraphProfile.parse(commands.getOptionValue("g"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage(), 0);
+            }
+        }
+
+        if (commands.hasOption("d")) {
+            try {
+                Output.setLevels(commands.getOptionValue("d"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage(), 0);
+            }
+        }
+
         if (commands.hasOption("j")) {
             Config.MultiThreading = true;
 
@@ -432,6 +680,70 @@ public class PathSentStaticAnalysis {
             }
         }
 
+        if (commands.hasOption("n")) {
+            try {
+                Config.PathsPerTarget = Integer.parseInt(commands.getOptionValue("n"));
+            } catch (Exception e) {
+                System.err.println("Cannot parse paths-per-target parameter");
+                System.err.println("Exception: " + e.toString());
+                System.exit(1);
+            }
+
+            if (Config.PathsPerTarget < 1) {
+                System.err.println("Warning: ignoring paths-per-target parameter ("
+                        + Config.PathsPerTarget + ")");
+                Config.PathsPerTarget = 1;
+            }
+        }
+
+        if (commands.hasOption("a")) {
+            try {
+                Config.AuxiliaryMethodDepth = Integer.parseInt(commands.getOptionValue("a"));
+            } catch (Exception e) {
+                System.err.println("Cannot parse aux-depth parameter");
+                System.err.println("Exception: " + e.toString());
+                System.exit(1);
+            }
+
+            if (Config.AuxiliaryMethodDepth < 1) {
+                System.err.println("Warning: ignoring aux-depth parameter ("
+                        + Config.AuxiliaryMethodDepth + ")");
+                Config.AuxiliaryMethodDepth = 1;
+            }
+        }
+
+        if (commands.hasOption("r")) {
+            try {
+                Config.WideningDelay = Integer.parseInt(commands.getOptionValue("r"));
+            } catch (Exception e) {
+                System.err.println("Cannot parse widening-delay parameter");
+                System.err.println("Exception: " + e.toString());
+                System.exit(1);
+            }
+
+            if (Config.WideningDelay < 1) {
+                System.err.println("Warning: ignoring widening-delay parameter ("
+                        + Config.WideningDelay + ")");
+                Config.WideningDelay = 2;
+            }
+        }
+
+        if (commands.hasOption("w")) {
+            try {
+                Config.BatchWorkers = Integer.parseInt(commands.getOptionValue("w"));
+            } catch (Exception e) {
+                System.err.println("Cannot parse workers parameter");
+                System.err.println("Exception: " + e.toString());
+                System.exit(1);
+            }
+
+            if (Config.BatchWorkers < 1) {
+                System.err.println("Warning: ignoring workers parameter ("
+                        + Config.BatchWorkers + ")");
+                Config.BatchWorkers = 2;
+            }
+        }
+
         if (commands.hasOption("k")) {
             try {
                 Config.Timeout = 60000 * Integer.parseInt(commands.getOptionValue("k"));
@@ -482,7 +794,7 @@ public class PathSentStaticAnalysis {
 
     private static void printHelp(Options options) {
         HelpFormatter helpFormatter = new HelpFormatter();
-        helpFormatter.printHelp("PathSentinel [options] <APK>",
+        helpFormatter.printHelp("PathSentinel [options] <APK> | --batch <dir|list> | --daemon <port>",
                 "PathSentinel: Advanced static analysis for Android ICC vulnerability detection",
                 options, "", false);
     }
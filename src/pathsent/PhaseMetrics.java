@@ -0,0 +1,200 @@
+package pathsent;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Collects resource usage per analysis phase and writes it to metrics.json.
+//
+// Phases are sequential: starting a phase ends the current one.  For each phase, the wall
+// time, the CPU time and allocated bytes of the thread that runs the phase, the CPU time of
+// the whole process (which includes worker threads in -j mode), the GC count and time, and
+// the high-water mark of the heap are recorded.  The heap high-water mark is the sum of the
+// peak usage of the heap memory pools, so it is an upper bound of the actual peak.
+//
+// Subsystems can also add named statistics (e.g. cache hit rates), written under
+// "Statistics".
+
+public class PhaseMetrics {
+    private static final List<JsonObject> _phases = new ArrayList<JsonObject>();
+    private static Phase _currentPhase = null;
+    private static final Map<String, JsonObject> _statistics =
+            new LinkedHashMap<String, JsonObject>();
+
+    private static class Phase {
+        private final String _name;
+        private final long _startWallTime;
+        private final long _startThreadCpuTime;
+        private final long _startProcessCpuTime;
+        private final long _startAllocatedBytes;
+        private final long _startGcCount;
+        private final long _startGcTime;
+
+        public Phase(String name) {
+            _name = name;
+            resetHeapPeak();
+
+            _startWallTime = System.nanoTime();
+            _startThreadCpuTime = getThreadCpuTime();
+            _startProcessCpuTime = getProcessCpuTime();
+            _startAllocatedBytes = getAllocatedBytes();
+            _startGcCount = getGcCount();
+            _startGcTime = getGcTime();
+        }
+
+        public JsonObject end() {
+            JsonObject phaseJson = new JsonObject();
+            phaseJson.addProperty("Phase", _name);
+            phaseJson.addProperty("WallTimeMs", (System.nanoTime() - _startWallTime) / 1000000);
+            phaseJson.addProperty("ThreadCpuTimeMs",
+                    difference(getThreadCpuTime(), _startThreadCpuTime) / 1000000);
+            phaseJson.addProperty("ProcessCpuTimeMs",
+                    difference(getProcessCpuTime(), _startProcessCpuTime) / 1000000);
+            phaseJson.addProperty("ThreadAllocatedBytes",
+                    difference(getAllocatedBytes(), _startAllocatedBytes));
+            phaseJson.addProperty("GcCount", getGcCount() - _startGcCount);
+            phaseJson.addProperty("GcTimeMs", getGcTime() - _startGcTime);
+            phaseJson.addProperty("HeapPeakBytes", getHeapPeak());
+            phaseJson.addProperty("HeapUsedBytes",
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            return phaseJson;
+        }
+    }
+
+    public static synchronized void startPhase(String name) {
+        endPhase();
+        _currentPhase = new Phase(name);
+    }
+
+    public static synchronized void endPhase() {
+        if (_currentPhase != null) {
+            _phases.add(_currentPhase.end());
+            _currentPhase = null;
+        }
+    }
+
+    // Replaces the statistics of the given name
+    public static synchronized void setStatistics(String name, JsonObject statisticsJson) {
+        _statistics.put(name, statisticsJson);
+    }
+
+    // Ends the current phase and writes all phases to metrics.json in the output directory.
+    public static synchronized void writeFile() {
+        endPhase();
+
+        if (PathSentStaticAnalysis.Config.OutputDirectory == null) {
+            return;
+        }
+
+        JsonObject metricsJson = new JsonObject();
+        metricsJson.addProperty("Version", PathSentStaticAnalysis.Config.Version);
+        metricsJson.addProperty("Generated", (new Date()).toString());
+        metricsJson.addProperty("Apk", PathSentStaticAnalysis.Config.ApkFile);
+        metricsJson.addProperty("TotalWallTimeMs",
+                System.currentTimeMillis() - PathSentStaticAnalysis.Config.StartTime);
+        metricsJson.addProperty("MaxHeapBytes", Runtime.getRuntime().maxMemory());
+        metricsJson.addProperty("AvailableProcessors",
+                Runtime.getRuntime().availableProcessors());
+
+        JsonArray phasesJson = new JsonArray();
+        _phases.forEach(p -> { phasesJson.add(p); });
+        metricsJson.add("Phases", phasesJson);
+
+        JsonObject statisticsJson = new JsonObject();
+        _statistics.forEach((name, s) -> { statisticsJson.add(name, s); });
+        metricsJson.add("Statistics", statisticsJson);
+
+        String filePath = PathSentStaticAnalysis.Config.OutputDirectory + "/metrics.json";
+        String tmpFilePath = filePath + ".tmp";
+        try {
+            Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+            PrintWriter metricsWriter = new PrintWriter(tmpFilePath, "UTF-8");
+            metricsWriter.print(gson.toJson(metricsJson));
+            metricsWriter.close();
+
+            Files.move(Paths.get(tmpFilePath), Paths.get(filePath),
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Unsupported measurements are reported as -1 rather than as a bogus difference.
+    private static long difference(long end, long start) {
+        return (end < 0 || start < 0) ? -1 : end - start;
+    }
+
+    private static long getThreadCpuTime() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        return threadBean.isCurrentThreadCpuTimeSupported()
+                ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)osBean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gcBean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gcBean.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static void resetHeapPeak() {
+        for (MemoryPoolMXBean poolBean : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (poolBean.getType() == MemoryType.HEAP) {
+                poolBean.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getHeapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean poolBean : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (poolBean.getType() == MemoryType.HEAP && poolBean.getPeakUsage() != null) {
+                peak += poolBean.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
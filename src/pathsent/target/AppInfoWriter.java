@@ -1,6 +1,7 @@
 package pathsent.target;
 
 import pathsent.*;
+import pathsent.target.event.ConstraintArtifactStore;
 import pathsent.target.event.Event;
 import pathsent.target.event.EventChain;
 
@@ -22,6 +23,7 @@ class AppInfoWriter {
     private final ManifestAnalysis _manifestAnalysis;
     private JsonObject _eventChainsJson = new JsonObject();
     private Object _eventChainJsonLock = new Object();
+    private final ConstraintArtifactStore _artifactStore = new ConstraintArtifactStore();
     private Timer _writerTimer;
 
     private class WriterTask extends TimerTask {
@@ -48,10 +50,21 @@ class AppInfoWriter {
     }
 
     public void addEventChain(EventChain eventChain) {
-        JsonObject eventChainJson = eventChain.toJson();
+        JsonObject eventChainJson = eventChain.toJson(_artifactStore);
 
+        boolean isFirst;
         synchronized (_eventChainJsonLock) {
             _eventChainsJson.add(Integer.toString(eventChain.getId()), eventChainJson);
+            isFirst = (_eventChainsJson.size() == 1);
+        }
+
+        // Write the first result right away rather than at the next scheduled write.
+        if (isFirst) {
+            try {
+                _writerTimer.schedule(new WriterTask(), 0);
+            } catch (IllegalStateException e) {
+                // The final file is being written.
+            }
         }
     }
 
@@ -81,11 +94,20 @@ class AppInfoWriter {
 
             appInfoJson.addProperty("Version", PathSentStaticAnalysis.Config.Version);
             appInfoJson.addProperty("Generated", (new Date()).toString());
+            appInfoJson.addProperty("CallGraphProfile",
+                    PathSentStaticAnalysis.Config.CallGraphProfile.toString());
+            appInfoJson.addProperty("PathsPerTarget",
+                    PathSentStaticAnalysis.Config.PathsPerTarget);
+            appInfoJson.addProperty("AuxiliaryMethodDepth",
+                    PathSentStaticAnalysis.Config.AuxiliaryMethodDepth);
+            appInfoJson.addProperty("WideningDelay",
+                    PathSentStaticAnalysis.Config.WideningDelay);
 
             appInfoJson.addProperty("Package", _manifestAnalysis.getPackageName());
             appInfoJson.addProperty("MainActivity", _manifestAnalysis.getMainActivity());
 
             appInfoJson.add("EventChains", _eventChainsJson);
+            appInfoJson.add("ConstraintArtifacts", _artifactStore.getStatisticsJson());
 
             try {
                 Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
@@ -0,0 +1,266 @@
+package pathsent.target;
+
+import soot.Body;
+import soot.Local;
+import soot.SootMethod;
+import soot.Unit;
+import soot.ValueBox;
+import soot.jimple.Stmt;
+import soot.toolkits.graph.BriefUnitGraph;
+import soot.toolkits.graph.UnitGraph;
+import soot.toolkits.scalar.LiveLocals;
+import soot.toolkits.scalar.LocalDefs;
+import soot.toolkits.scalar.LocalUses;
+import soot.toolkits.scalar.SimpleLiveLocals;
+import soot.toolkits.scalar.SimpleLocalDefs;
+import soot.toolkits.scalar.SimpleLocalUses;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Cache of the intraprocedural analyses of method bodies that several subsystems need: the
+// CFG (a BriefUnitGraph), live locals, local definitions and uses, a numbering of the units,
+// the locals each unit keeps alive, the loop heads, and the methods the body invokes.  The
+// constraint analysis runs over the same methods (e.g. an activity's onCreate) for many paths,
+// so these are built once per body rather than once per use.
+//
+// Entries are kept for the MAX_ENTRIES most recently used bodies.  An entry records the
+// modification counts of the body's unit, local and trap chains and is rebuilt when the body
+// has changed since, so transformations that patch a body do not need to invalidate it
+// (although they can).  The CFG is built with the entry; the other analyses are built the
+// first time they are asked for.  The analyses are only read after they are built, so an
+// entry can be used by several threads at once.
+
+public class BodyAnalysisCache {
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final Map<Body, Entry> _entries =
+            new LinkedHashMap<Body, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Body, BodyAnalysisCache.Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private static long _numHits = 0;
+    private static long _numMisses = 0;
+
+    // The analyses of the given body, as it is now
+    public static Entry get(Body body) {
+        synchronized (_entries) {
+            Entry entry = _entries.get(body);
+            if (entry != null && entry.isCurrent()) {
+                _numHits++;
+                return entry;
+            }
+            _numMisses++;
+        }
+
+        // Build the CFG outside of the lock.  If another thread built it in the meantime, its
+        // entry is kept.
+        Entry newEntry = new Entry(body);
+        synchronized (_entries) {
+            Entry entry = _entries.get(body);
+            if (entry != null && entry.isCurrent()) {
+                return entry;
+            }
+            _entries.put(body, newEntry);
+            return newEntry;
+        }
+    }
+
+    public static void invalidate(Body body) {
+        synchronized (_entries) {
+            _entries.remove(body);
+        }
+    }
+
+    public static void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+    public static String getStatistics() {
+        synchronized (_entries) {
+            return _entries.size() + " bodies, " + _numHits + " hits, " + _numMisses
+                    + " misses";
+        }
+    }
+
+    public static class Entry {
+        private final Body _body;
+        private final long _unitsModificationCount;
+        private final long _localsModificationCount;
+        private final long _trapsModificationCount;
+
+        private final UnitGraph _cfg;
+        private LiveLocals _liveLocals = null;
+        private LocalDefs _localDefs = null;
+        private LocalUses _localUses = null;
+        private Set<SootMethod> _invokedMethods = null;
+        private List<Set<Local>> _liveOrUsedLocals = null;
+        private volatile boolean[] _loopHeads = null;
+        private volatile Map<Unit, Integer> _unitNumbers = null;
+
+        private Entry(Body body) {
+            _body = body;
+            _unitsModificationCount = body.getUnits().getModificationCount();
+            _localsModificationCount = body.getLocals().getModificationCount();
+            _trapsModificationCount = body.getTraps().getModificationCount();
+            _cfg = new BriefUnitGraph(body);
+        }
+
+        private boolean isCurrent() {
+            return _body.getUnits().getModificationCount() == _unitsModificationCount
+                    && _body.getLocals().getModificationCount() == _localsModificationCount
+                    && _body.getTraps().getModificationCount() == _trapsModificationCount;
+        }
+
+        public Body getBody() {
+            return _body;
+        }
+
+        // Sum of the modification counts of the body's chains when the entry was built.  The
+        // counts only grow, so it tells the versions of the body apart.
+        public long getModificationCount() {
+            return _unitsModificationCount + _localsModificationCount
+                    + _trapsModificationCount;
+        }
+
+        public UnitGraph getCfg() {
+            return _cfg;
+        }
+
+        public synchronized LiveLocals getLiveLocals() {
+            if (_liveLocals == null) {
+                _liveLocals = new SimpleLiveLocals(_cfg);
+            }
+            return _liveLocals;
+        }
+
+        public synchronized LocalDefs getLocalDefs() {
+            if (_localDefs == null) {
+                _localDefs = new SimpleLocalDefs(_cfg);
+            }
+            return _localDefs;
+        }
+
+        public synchronized LocalUses getLocalUses() {
+            if (_localUses == null) {
+                _localUses = new SimpleLocalUses(_body, getLocalDefs());
+            }
+            return _localUses;
+        }
+
+        // The locals that are live after the unit or used by it (read-only)
+        public synchronized Set<Local> getLiveOrUsedLocals(Unit unit) {
+            if (_liveOrUsedLocals == null) {
+                _liveOrUsedLocals = new ArrayList<Set<Local>>(
+                        Collections.<Set<Local>>nCopies(getNumUnits(), null));
+            }
+
+            int unitNumber = getUnitNumber(unit);
+            Set<Local> locals = _liveOrUsedLocals.get(unitNumber);
+            if (locals == null) {
+                locals = new HashSet<Local>(getLiveLocals().getLiveLocalsAfter(unit));
+                for (ValueBox useBox : unit.getUseBoxes()) {
+                    if (useBox.getValue() instanceof Local) {
+                        locals.add((Local)useBox.getValue());
+                    }
+                }
+                locals = Collections.unmodifiableSet(locals);
+                _liveOrUsedLocals.set(unitNumber, locals);
+            }
+            return locals;
+        }
+
+        // Whether the unit is the target of a back edge of the CFG, i.e. an edge to a unit
+        // that is not after its source in the body.  Every cycle of the CFG has such an edge,
+        // so every loop has a head, whether or not the CFG is reducible.
+        public boolean isLoopHead(Unit unit) {
+            return getLoopHeads()[getUnitNumber(unit)];
+        }
+
+        // The declared targets of the invocations in the body (read-only)
+        public synchronized Set<SootMethod> getInvokedMethods() {
+            if (_invokedMethods == null) {
+                Set<SootMethod> invokedMethods = new HashSet<SootMethod>();
+                for (Unit unit : _body.getUnits()) {
+                    Stmt stmt = (Stmt)unit;
+                    if (!stmt.containsInvokeExpr()) {
+                        continue;
+                    }
+
+                    try {
+                        invokedMethods.add(stmt.getInvokeExpr().getMethod());
+                    } catch (RuntimeException e) {
+                        // The method cannot be resolved.
+                    }
+                }
+                _invokedMethods = Collections.unmodifiableSet(invokedMethods);
+            }
+            return _invokedMethods;
+        }
+
+        // Position of the unit in the body, from 0 to getNumUnits() - 1 (-1 if the unit is
+        // not in the body)
+        public int getUnitNumber(Unit unit) {
+            Integer number = getUnitNumbers().get(unit);
+            return (number != null) ? number : -1;
+        }
+
+        public int getNumUnits() {
+            return getUnitNumbers().size();
+        }
+
+        // Like the unit numbers, only building the loop heads takes the lock.
+        private boolean[] getLoopHeads() {
+            boolean[] loopHeads = _loopHeads;
+            if (loopHeads == null) {
+                synchronized (this) {
+                    loopHeads = _loopHeads;
+                    if (loopHeads == null) {
+                        loopHeads = new boolean[getNumUnits()];
+                        for (Unit source : _body.getUnits()) {
+                            int sourceNumber = getUnitNumber(source);
+                            for (Unit target : _cfg.getSuccsOf(source)) {
+                                int targetNumber = getUnitNumber(target);
+                                if (targetNumber <= sourceNumber) {
+                                    loopHeads[targetNumber] = true;
+                                }
+                            }
+                        }
+                        _loopHeads = loopHeads;
+                    }
+                }
+            }
+            return loopHeads;
+        }
+
+        // Looked up for every unit the constraint analysis processes, so only building it
+        // takes the lock.
+        private Map<Unit, Integer> getUnitNumbers() {
+            Map<Unit, Integer> unitNumbers = _unitNumbers;
+            if (unitNumbers == null) {
+                synchronized (this) {
+                    unitNumbers = _unitNumbers;
+                    if (unitNumbers == null) {
+                        unitNumbers = new IdentityHashMap<Unit, Integer>();
+                        for (Unit unit : _body.getUnits()) {
+                            unitNumbers.put(unit, unitNumbers.size());
+                        }
+                        _unitNumbers = unitNumbers;
+                    }
+                }
+            }
+            return unitNumbers;
+        }
+    }
+}
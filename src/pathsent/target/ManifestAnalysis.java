@@ -14,8 +14,9 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-// Note: The soot scene will be reset after the entry-point analysis has completed.
-// Do not pass soot objects out of this class directly (use class/method names instead).
+// Note: Manifest parsing does not depend on the soot scene.  The analysis runs in a single
+// soot session, but keep passing class/method names out of this class rather than soot
+// objects so it stays usable before the scene is loaded.
 
 public class ManifestAnalysis extends ProcessManifest {
     private final Map<String, Set<String>> _receiverActions =
@@ -11,22 +11,37 @@ import soot.*;
 import soot.jimple.*;
 import soot.jimple.toolkits.callgraph.*;
 
+import com.google.gson.JsonObject;
+
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+
+// Analyzes the targeted paths found by the call graph traversal: extracts their constraints,
+// resolves their dependencies and writes the resulting event chains to appInfo.json.
+//
+// In single-threaded mode the paths are collected during the traversal and analyzed
+// afterwards.  In multi-threaded mode they are analyzed while the traversal is still running
+// (see PathPipeline).  The path analysis that overlaps the traversal is then part of the
+// "traversal" phase in metrics.json (in its process CPU time); the "TargetedPaths"
+// statistics tell how many paths were analyzed during and after the traversal, and for how
+// long.
 
 public class TargetedPathsAnalysis extends SceneTransformer {
+    // Paths waiting for a worker in multi-threaded mode.  When the queue is full, the
+    // traversal waits for the workers to catch up.
+    private static final int PATH_QUEUE_CAPACITY = 64;
+    private static final long PATH_QUEUE_POLL_MS = 100;
+
     private final ManifestAnalysis _manifestAnalysis;
     private final IEntryPointAnalysis _entryPointAnalysis;
     private final DependencyAnalysis _dependencyAnalysis;
     private CallGraph _callGraph = null;
 
-    private java.util.Timer _interruptTimer = null;
-
     private TargetedPathsCallGraphPlugin _callGraphPlugin =
             new TargetedPathsCallGraphPlugin();
+    private PathPipeline _pipeline = null;
 
     public TargetedPathsAnalysis(ManifestAnalysis manifestAnalysis,
                                  IEntryPointAnalysis entryPointAnalysis,
@@ -43,142 +58,346 @@ public class TargetedPathsAnalysis extends SceneTransformer {
     @Override
     protected void internalTransform(String phaseName, Map<String, String> options) {
         _callGraph = Scene.v().getCallGraph();
-        analyzePaths();
+
+        if (PathSentStaticAnalysis.Config.MultiThreading) {
+            if (_pipeline == null) {
+                // The traversal did not run; there are no paths to wait for.
+                _pipeline = new PathPipeline();
+                _pipeline.endOfPaths();
+            }
+            _pipeline.finish();
+            _pipeline = null;
+        } else {
+            analyzePaths();
+        }
     }
 
-    private class InterruptionTask extends TimerTask {
-        private final Thread _thread;
+    // Multi-threaded mode: the traversal hands each path to a pool of workers through a
+    // bounded queue, so the paths are analyzed while the call graph is still being traversed
+    // and only the queued paths are held in memory.
+    //
+    // Heap dependencies are resolved against the heap writes found by the traversal, so a
+    // path with heap dependencies that is analyzed during the traversal is deferred after its
+    // constraint analysis.  Its dependencies are resolved once the traversal has ended, in
+    // the time left in its path budget.
+    private class PathPipeline {
+        private final AppInfoWriter _appInfoWriter = new AppInfoWriter(_manifestAnalysis);
+        private final Budget _phaseBudget = Budget.run().child("targeted-paths", 0);
+        private final BlockingQueue<CallPath> _queue =
+                new ArrayBlockingQueue<CallPath>(PATH_QUEUE_CAPACITY);
+        private final List<DeferredEvent> _deferredEvents = new ArrayList<DeferredEvent>();
+        private final ThreadPoolExecutor _executor;
+        private final List<Future<?>> _workers = new CopyOnWriteArrayList<Future<?>>();
+        private volatile boolean _traversalEnded = false;
+        private volatile boolean _stopped = false;
+        private volatile boolean _success = true;
+
+        // Paths analyzed and their total wall time, during and after the traversal
+        private final AtomicLong _numPathsDuringTraversal = new AtomicLong();
+        private final AtomicLong _pathNanosDuringTraversal = new AtomicLong();
+        private final AtomicLong _numPathsAfterTraversal = new AtomicLong();
+        private final AtomicLong _pathNanosAfterTraversal = new AtomicLong();
+
+        // While the traversal runs, the workers only get the threads it does not use.
+        public PathPipeline() {
+            Output.progress("Analyzing targeted paths during the traversal");
+            int numThreads = Math.max(1, PathSentStaticAnalysis.Config.NumberOfThreads
+                    - CallGraphTraversal.getNumberOfTraversalThreads());
+            _executor = new ThreadPoolExecutor(numThreads, numThreads,
+                    0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            addWorkers(numThreads);
+        }
 
-        public InterruptionTask(Thread thread) {
-            _thread = thread;
+        private synchronized void addWorkers(int numWorkers) {
+            for (int i = 0; i < numWorkers; i++) {
+                _workers.add(_executor.submit(this::runWorker));
+            }
         }
 
-        @Override
-        public void run() {
-            _thread.interrupt();
+        // Called by the traversal; blocks while the queue is full.
+        public void addPath(CallPath path) {
+            try {
+                while (!_queue.offer(path, PATH_QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (_workers.stream().allMatch(Future::isDone)) {
+                        Output.warn("No worker left to analyze targeted paths");
+                        _success = false;
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Output.warn("Targeted paths analysis was interrupted.");
+                _success = false;
+                Thread.currentThread().interrupt();
+            }
         }
-    }
 
-    private class TargetedPathTask implements Callable<Boolean> {
-        private final AppInfoWriter _appInfoWriter;
-        private final CallPath _callPath;
+        // The traversal has ended: the heap writes are complete and no more paths follow.
+        // The workers get the threads of the traversal.
+        public synchronized void endOfPaths() {
+            _traversalEnded = true;
+
+            int numThreads = Math.max(1, PathSentStaticAnalysis.Config.NumberOfThreads);
+            int numNewWorkers = numThreads - _executor.getMaximumPoolSize();
+            if (numNewWorkers > 0 && !_stopped) {
+                _executor.setMaximumPoolSize(numThreads);
+                _executor.setCorePoolSize(numThreads);
+                addWorkers(numNewWorkers);
+            }
+        }
+
+        // Waits for the workers and writes the final appInfo.json.
+        public void finish() {
+            PhaseMetrics.startPhase("targeted-paths");
+
+            // Workers stop on their own when their path budget runs out.  Paths that have
+            // not started when the run budget runs out are skipped.
+            try {
+                for (Future<?> worker : _workers) {
+                    if (_phaseBudget.isLimited()) {
+                        worker.get(_phaseBudget.remainingMillis(), TimeUnit.MILLISECONDS);
+                    } else {
+                        worker.get();
+                    }
+                }
+            } catch (TimeoutException e) {
+                _success = false;
+            } catch (InterruptedException e) {
+                Output.warn("Targeted paths analysis was interrupted.");
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                _success = false;
+            }
+
+            // Shut down the thread pool and wait until all remaining paths have completed or
+            // timed out.
+            _stopped = true;
+            _executor.shutdownNow();
+            try {
+                _executor.awaitTermination(PathSentStaticAnalysis.Config.TargetedPathTimeout,
+                                           TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Output.warn("Targeted paths analysis was interrupted.");
+            }
 
-        public TargetedPathTask(AppInfoWriter appInfoWriter, CallPath path) {
-            _appInfoWriter = appInfoWriter;
-            _callPath = path;
+            if (!_success || !_queue.isEmpty()) {
+                Output.warn("Some targeted paths failed or timed out during analysis");
+            }
+
+            JsonObject statisticsJson = new JsonObject();
+            statisticsJson.addProperty("PathsDuringTraversal",
+                    _numPathsDuringTraversal.get());
+            statisticsJson.addProperty("PathWallTimeDuringTraversalMs",
+                    _pathNanosDuringTraversal.get() / 1000000);
+            statisticsJson.addProperty("PathsAfterTraversal",
+                    _numPathsAfterTraversal.get());
+            statisticsJson.addProperty("PathWallTimeAfterTraversalMs",
+                    _pathNanosAfterTraversal.get() / 1000000);
+            PhaseMetrics.setStatistics("TargetedPaths", statisticsJson);
+
+            Output.progress("Writing " + PathSentStaticAnalysis.Config.OutputDirectory
+                            + "/appInfo.json");
+            PhaseMetrics.startPhase("output");
+            _appInfoWriter.writeFinalFile();
         }
 
-        @Override
-        public Boolean call() {
-            TimerTask timeout = new InterruptionTask(Thread.currentThread());
-            _interruptTimer.schedule(timeout,
-                                     PathSentStaticAnalysis.Config.TargetedPathTimeout);
+        private void runWorker() {
+            try {
+                while (!_stopped) {
+                    CallPath path = _queue.poll(PATH_QUEUE_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (path != null) {
+                        analyzeQueuedPath(path);
+                    } else if (_traversalEnded && _queue.isEmpty()) {
+                        break;
+                    }
+                }
+
+                // A worker only defers paths before it gets here, so every deferred event
+                // is completed by at least one worker.
+                for (DeferredEvent deferred = pollDeferredEvent();
+                        deferred != null && !_stopped; deferred = pollDeferredEvent()) {
+                    completeDeferredEvent(deferred);
+                }
+            } catch (InterruptedException e) {
+                // Shut down
+            }
+        }
+
+        private void analyzeQueuedPath(CallPath path) {
+            // Keep taking paths after the run budget has run out so that the traversal is
+            // not blocked.
+            if (_phaseBudget.isExpired()) {
+                _success = false;
+                return;
+            }
 
+            Budget pathBudget = _phaseBudget.child("path",
+                    PathSentStaticAnalysis.Config.TargetedPathTimeout);
             Output.startBuffering();
+            boolean duringTraversal = !_traversalEnded;
+            long startTime = System.nanoTime();
 
-            try {
-                EventChain eventChain = analyzeTargetedPath(_callPath);
-                if (eventChain != null) {
-                    _appInfoWriter.addEventChain(eventChain);
+            try (Budget.Scope scope = pathBudget.enter()) {
+                Event targetedEvent = analyzeTargetedPathConstraints(path);
+                if (targetedEvent == null) {
+                    return;
                 }
-                return true;
-            } catch (StaticAnalysisTimeoutException e) {
-                if (PathSentStaticAnalysis.Config.PrintOutput) {
-                    Output.clearBuffer();
-                    Output.printPath("Targeted Path [timeout]");
-                    _callPath.print();
-                    Output.printEventChainDivider();
+
+                if (!_traversalEnded && hasHeapDependencies(targetedEvent)) {
+                    synchronized (_deferredEvents) {
+                        _deferredEvents.add(new DeferredEvent(targetedEvent,
+                                                              pathBudget.remainingMillis()));
+                    }
+                    return;
                 }
-                return false;
+
+                _appInfoWriter.addEventChain(resolveEventChain(targetedEvent));
+            } catch (StaticAnalysisTimeoutException e) {
+                // Only report the timeout, not the partial output of the path.
+                Output.debug(e.getMessage());
+                Output.clearBuffer();
+                printTimedOutPath(path);
+                _success = false;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                _success = false;
             } finally {
-                // Cancel the timeout timer and clear the interrupt flag in case this thread
-                // is reused.
-                timeout.cancel();
+                // Clear the interrupt flag in case this thread is reused.
                 Thread.interrupted();
 
                 Output.flushBuffer();
+                countPath(duringTraversal, System.nanoTime() - startTime);
+            }
+        }
+
+        private DeferredEvent pollDeferredEvent() {
+            synchronized (_deferredEvents) {
+                return _deferredEvents.isEmpty()
+                        ? null : _deferredEvents.remove(_deferredEvents.size() - 1);
+            }
+        }
+
+        private void completeDeferredEvent(DeferredEvent deferred) {
+            if (_phaseBudget.isExpired()) {
+                _success = false;
+                return;
+            }
+
+            Budget pathBudget = _phaseBudget.child("path",
+                                                   Math.max(1, deferred.RemainingMillis));
+            Output.startBuffering();
+            long startTime = System.nanoTime();
+
+            try (Budget.Scope scope = pathBudget.enter()) {
+                _appInfoWriter.addEventChain(resolveEventChain(deferred.TargetedEvent));
+            } catch (StaticAnalysisTimeoutException e) {
+                Output.debug(e.getMessage());
+                Output.clearBuffer();
+                printTimedOutPath(deferred.TargetedEvent.getPath());
+                _success = false;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                _success = false;
+            } finally {
+                Thread.interrupted();
+                Output.flushBuffer();
+                // The path itself was counted when it was deferred.
+                _pathNanosAfterTraversal.addAndGet(System.nanoTime() - startTime);
+            }
+        }
+
+        private void countPath(boolean duringTraversal, long nanos) {
+            if (duringTraversal) {
+                _numPathsDuringTraversal.incrementAndGet();
+                _pathNanosDuringTraversal.addAndGet(nanos);
+            } else {
+                _numPathsAfterTraversal.incrementAndGet();
+                _pathNanosAfterTraversal.addAndGet(nanos);
             }
         }
     }
 
+    private static class DeferredEvent {
+        public final Event TargetedEvent;
+        public final long RemainingMillis;
+
+        public DeferredEvent(Event targetedEvent, long remainingMillis) {
+            TargetedEvent = targetedEvent;
+            RemainingMillis = remainingMillis;
+        }
+    }
+
+    private static boolean hasHeapDependencies(Event event) {
+        return event.getDependencies().stream().anyMatch(d -> d instanceof HeapVariable);
+    }
+
+    // Single-threaded mode: analyzes the paths collected during the traversal one by one.
     private void analyzePaths() {
         Output.progress("Analyzing targeted paths");
+        PhaseMetrics.startPhase("targeted-paths");
         Output.debug("Number of paths: " + _callGraphPlugin.getTargetedPaths().size());
 
         AppInfoWriter appInfoWriter = new AppInfoWriter(_manifestAnalysis);
-        Stream<CallPath> targetedPaths = _callGraphPlugin.getTargetedPaths().stream();
 
-        if (!PathSentStaticAnalysis.Config.MultiThreading) {
+        // Every path gets its own budget of at most TargetedPathTimeout, drawn from the time
+        // left in the run.
+        Budget phaseBudget = Budget.run().child("targeted-paths", 0);
 
-            targetedPaths.forEach(path -> {
-                EventChain eventChain = analyzeTargetedPath(path);
-                if (eventChain != null) {
-                    appInfoWriter.addEventChain(eventChain);
-                }
-            });
-        } else {
-            // Create a thread pool to analyze the targeted paths.
-            int numThreads = PathSentStaticAnalysis.Config.NumberOfThreads - 1;
-            final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-            List<TargetedPathTask> targetedPathsTasks = targetedPaths.map(path -> {
-                return new TargetedPathTask(appInfoWriter, path);
-            }).collect(Collectors.toList());
-
-            // Implement a per-path timeout as well as an overall timeout.
-            _interruptTimer = new java.util.Timer("TargetedPathsAnalysisTimerThread");
-
-            List<Future<Boolean>> results = null;
-            try {
-                if (PathSentStaticAnalysis.Config.Timeout > 0) {
-                    long remainingTime = PathSentStaticAnalysis.Config.Timeout
-                            - (System.currentTimeMillis()
-                                    - PathSentStaticAnalysis.Config.StartTime);
-                    results = executor.invokeAll(targetedPathsTasks,
-                                                 remainingTime, TimeUnit.MILLISECONDS);
-                } else {
-                    results = executor.invokeAll(targetedPathsTasks);
-                }
-            } catch (InterruptedException e) {
-                Output.warn("Targeted paths analysis was interrupted.");
+        boolean success = true;
+        for (CallPath path : _callGraphPlugin.getTargetedPaths()) {
+            if (phaseBudget.isExpired()) {
+                success = false;
+                break;
             }
-
-            // Shut down the thread pool and wait until all remaining tasks have completed or
-            // timed out.
-            executor.shutdownNow();
-            try {
-                executor.awaitTermination(PathSentStaticAnalysis.Config.TargetedPathTimeout,
-                                          TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                Output.warn("Targeted paths analysis was interrupted.");
+            if (!analyzeTargetedPath(appInfoWriter, path, phaseBudget)) {
+                printTimedOutPath(path);
+                success = false;
             }
+        }
 
-            _interruptTimer.cancel();
-            _interruptTimer.purge();
-
-            // Determine  whether the targeted path tasks completed successfully (constraints
-            // were extracted and dependencies resolved).
-            boolean success = (results == null) ? false : results.stream().map(future -> {
-                try {
-                    return future.get();
-                } catch (CancellationException e) {
-                    return false;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }).reduce(true, (a, b) -> a & b);
-
-            if (!success) {
-                Output.warn("Some targeted paths failed or timed out during analysis");
-            }
+        if (!success) {
+            Output.warn("Some targeted paths failed or timed out during analysis");
         }
 
         Output.progress("Writing " + PathSentStaticAnalysis.Config.OutputDirectory
                         + "/appInfo.json");
+        PhaseMetrics.startPhase("output");
         appInfoWriter.writeFinalFile();
     }
 
+    // Analyzes a path within its own budget.  Returns false if the path ran out of time.
+    private boolean analyzeTargetedPath(AppInfoWriter appInfoWriter, CallPath callPath,
+                                        Budget phaseBudget) {
+        Budget pathBudget = phaseBudget.child("path",
+                PathSentStaticAnalysis.Config.TargetedPathTimeout);
+
+        try (Budget.Scope scope = pathBudget.enter()) {
+            EventChain eventChain = analyzeTargetedPath(callPath);
+            if (eventChain != null) {
+                appInfoWriter.addEventChain(eventChain);
+            }
+            return true;
+        } catch (StaticAnalysisTimeoutException e) {
+            Output.debug(e.getMessage());
+            return false;
+        }
+    }
+
+    private void printTimedOutPath(CallPath callPath) {
+        if (PathSentStaticAnalysis.Config.PrintOutput) {
+            Output.printPath("Targeted Path [timeout]");
+            callPath.print();
+            Output.printEventChainDivider();
+        }
+    }
+
     private EventChain analyzeTargetedPath(CallPath callPath) {
+        Event targetedEvent = analyzeTargetedPathConstraints(callPath);
+        return (targetedEvent != null) ? resolveEventChain(targetedEvent) : null;
+    }
+
+    // Extracts the constraints of a targeted path.  Returns the targeted event with its heap
+    // dependencies, or null if the path is not of interest or infeasible.
+    private Event analyzeTargetedPathConstraints(CallPath callPath) {
 
         //if (!callPath.getEntryMethod().getDeclaringClass().getName().contains("ImportFileActivity")){
             //return null;
@@ -189,11 +408,13 @@ public class TargetedPathsAnalysis extends SceneTransformer {
         }
         ConstraintAnalysis constraintAnalysis = new ConstraintAnalysis(callPath);
         Predicate pathConstraints = constraintAnalysis.getConstraints();
-        Output.debug("CONSTRAINT: Generated constraints for path: " + (pathConstraints != null ? pathConstraints.toString() : "null"));
+        Output.debug(Output.Subsystem.Constraint,
+                () -> "CONSTRAINT: Generated constraints for path: " + pathConstraints);
         
         // Get string parameter constraints
         List<StringParameterConstraint> stringParameterConstraints = constraintAnalysis.getStringParameterConstraints();
-        Output.debug("STRING_PARAM: Generated " + stringParameterConstraints.size() + " string parameter constraints for path");
+        Output.debug(Output.Subsystem.Constraint, () -> "STRING_PARAM: Generated "
+                + stringParameterConstraints.size() + " string parameter constraints for path");
         
         if (PathSentStaticAnalysis.Config.PrintConstraints && pathConstraints != null) {
             Output.log("PATH CONSTRAINTS: " + pathConstraints.toString());
@@ -208,13 +429,26 @@ public class TargetedPathsAnalysis extends SceneTransformer {
         // Create event for targeted path
         Event targetedEvent = new Event(callPath, pathConstraints);
         targetedEvent.setStringParameterConstraints(stringParameterConstraints);
-        Output.debug("Begining of Path: " + callPath.getEntryMethod().getDeclaringClass().getName());
+        Output.debug(Output.Subsystem.Constraint, () -> "Begining of Path: "
+                + callPath.getEntryMethod().getDeclaringClass().getName());
         
         if (targetedEvent.getTypeString() == "ui"){
             Output.debug("UI event!!");
             return null;
         }
 
+        // We need to add heap dependencies explicitly since they're generated by the
+        // constraint analysis.
+        List<HeapVariable> heapDependencies = constraintAnalysis.getHeapDependencies();
+        targetedEvent.addDependencies(heapDependencies);
+
+        return targetedEvent;
+    }
+
+    // Resolves the dependencies of a targeted event into an event chain.
+    private EventChain resolveEventChain(Event targetedEvent) {
+        Predicate pathConstraints = targetedEvent.getConstraints();
+
         // Construct an event chain to handle any path dependences.
         EventChain eventChain = new EventChain();
 
@@ -230,11 +464,6 @@ public class TargetedPathsAnalysis extends SceneTransformer {
             }
         }
 
-        // We need to add heap dependencies explicitly since they're generated by the
-        // constraint analysis.
-        List<HeapVariable> heapDependencies = constraintAnalysis.getHeapDependencies();
-        targetedEvent.addDependencies(heapDependencies);
-
         // Resolve dependencies and add their dependence constraint to the targeted event.
         List<SupportingEvent> supportingEvents =
                 _dependencyAnalysis.resolveEventDependencies(targetedEvent);
@@ -273,46 +502,34 @@ public class TargetedPathsAnalysis extends SceneTransformer {
             return _targetedPaths;
         }
 
+        // Calls to any of the target methods, declared or resolved
         @Override
-        public boolean processUnit(SootMethod method, Unit unit) {
-            Stmt stmt = (Stmt)unit;
-            if (!stmt.containsInvokeExpr()) {
-                return false;
-            }
-
-            InvokeExpr invokeExpr = stmt.getInvokeExpr();
-            String invokeSignature = invokeExpr.getMethodRef().getSignature();
-            boolean isTarget = false;
-
-            // Debug: Print every method call we see
-            Output.debug("CallGraph: Checking method call in " + method.getSignature() + ": " + invokeSignature);
+        public UnitMatcher getUnitMatcher() {
+            return UnitMatcher.invocationsOf(PathSentStaticAnalysis.Config.TargetMethods);
+        }
 
-            // Analyze declared target of edge
-            if (PathSentStaticAnalysis.Config.TargetMethods.contains(invokeSignature)) {
-                Output.debug("  -> FOUND TARGET (declared): " + invokeSignature);
-                isTarget = true;
+        @Override
+        public void onTraversalStart() {
+            if (PathSentStaticAnalysis.Config.MultiThreading && _pipeline == null) {
+                _pipeline = new PathPipeline();
             }
+        }
 
-            // Analyze resolved targets of edge
-            Iterator<Edge> targetEdgeIter = Scene.v().getCallGraph().edgesOutOf(stmt);
-            while (targetEdgeIter.hasNext()) {
-                Edge targetEdge = targetEdgeIter.next();
-                String tgtSignature = targetEdge.tgt().getSignature();
-
-                Output.debug("  CallGraph edge to: " + tgtSignature);
-
-                if (PathSentStaticAnalysis.Config.TargetMethods.contains(tgtSignature)) {
-                    Output.debug("  -> FOUND TARGET (resolved): " + tgtSignature);
-                    isTarget = true;
-                }
+        // Paths are only collected in single-threaded mode.
+        @Override
+        public void onTargetPath(CallPath path) {
+            if (_pipeline != null) {
+                _pipeline.addPath(path);
+            } else {
+                _targetedPaths.add(path);
             }
-
-            return isTarget;
         }
 
         @Override
-        public void onTargetPath(CallPath path) {
-            _targetedPaths.add(path);
+        public void onTraversalEnd() {
+            if (_pipeline != null) {
+                _pipeline.endOfPaths();
+            }
         }
     }
 }
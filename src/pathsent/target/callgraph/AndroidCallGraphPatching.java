@@ -1,14 +1,15 @@
 package pathsent.target.callgraph;
 
 import pathsent.Output;
+import pathsent.target.BodyAnalysisCache;
 import pathsent.target.ManifestAnalysis;
 
 import soot.*;
 import soot.jimple.*;
 import pathsent.target.callgraph.CallGraphPatchingTag;
-import soot.toolkits.graph.BriefUnitGraph;
-import soot.toolkits.scalar.SimpleLocalDefs;
-import soot.toolkits.scalar.SimpleLocalUses;
+import soot.toolkits.graph.UnitGraph;
+import soot.toolkits.scalar.LocalDefs;
+import soot.toolkits.scalar.LocalUses;
 import soot.toolkits.scalar.UnitValueBoxPair;
 
 import java.util.*;
@@ -119,11 +120,12 @@ public class AndroidCallGraphPatching extends SceneTransformer {
         }
 
         // If there are any invocations that need to be patched in the call graph, have the
-        // appropriate patcher patch them.
+        // appropriate patcher patch them.  The analyses are of the body before patching.
         if (!patches.isEmpty()) {
-            BriefUnitGraph cfg = new BriefUnitGraph(body);
-            SimpleLocalDefs localDefs = new SimpleLocalDefs(cfg);
-            SimpleLocalUses localUses = new SimpleLocalUses(body, localDefs);
+            BodyAnalysisCache.Entry bodyAnalyses = BodyAnalysisCache.get(body);
+            UnitGraph cfg = bodyAnalyses.getCfg();
+            LocalDefs localDefs = bodyAnalyses.getLocalDefs();
+            LocalUses localUses = bodyAnalyses.getLocalUses();
 
             patches.forEach(p -> {
                 p.Patcher.patch(body, cfg, localDefs, localUses, p.InvokeStmt);
@@ -0,0 +1,205 @@
+package pathsent.target.constraint;
+
+import soot.SootMethodRef;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Registry of the models of library methods, loaded from the bundled ApiModels.txt (see the
+// file for its format).  The constraint analysis and the taint tracking look up the model of a
+// call by its method reference instead of matching the signature against each modeled method:
+// the models are indexed by subsignature and by method name, then by declaring class, so a
+// lookup is a few hash lookups of strings Soot already holds.  A new model of an existing
+// kind only needs a line in the file.
+//
+// The models are loaded once and not modified afterwards, so the registry is thread-safe.
+
+public class ApiModelRegistry {
+    private static final String MODELS_FILE = "ApiModels.txt";
+    private static final String ANY_CLASS = "*";
+
+    public enum Kind {
+        // Values of calls in the constraint analysis
+        METHOD_CALL_ON_ARGUMENT(false, false),
+        KEY_VALUE_ACCESS(false, true),
+        STRING_RESOURCE(false, false),
+        APPEND(false, false),
+        RECEIVER_VALUE(false, false),
+        COMPARISON(false, true),
+
+        // Taint tracking
+        EXTERNAL_INPUT(true, true),
+        TAINT_PRESERVING(true, false);
+
+        private final boolean _isTaintModel;
+        private final boolean _hasArgument;
+
+        Kind(boolean isTaintModel, boolean hasArgument) {
+            _isTaintModel = isTaintModel;
+            _hasArgument = hasArgument;
+        }
+
+        public boolean isTaintModel() {
+            return _isTaintModel;
+        }
+
+        public boolean hasArgument() {
+            return _hasArgument;
+        }
+    }
+
+    public static class Model {
+        private final Kind _kind;
+        private final String _argument;
+        private final Expression.Operator _operator;
+        private final KeyValueAccessVariable.DatabaseType _databaseType;
+
+        private Model(Kind kind, String argument) {
+            if (kind.hasArgument() != (argument != null)) {
+                throw new IllegalArgumentException(kind + (kind.hasArgument()
+                        ? " needs an argument" : " takes no argument"));
+            }
+
+            _kind = kind;
+            _argument = argument;
+            _operator = (kind == Kind.COMPARISON)
+                    ? Expression.Operator.valueOf(argument) : null;
+            _databaseType = (kind == Kind.KEY_VALUE_ACCESS)
+                    ? KeyValueAccessVariable.DatabaseType.valueOf(argument) : null;
+        }
+
+        public Kind getKind() {
+            return _kind;
+        }
+
+        // The source type of an EXTERNAL_INPUT model
+        public String getArgument() {
+            return _argument;
+        }
+
+        // The operator of a COMPARISON model
+        public Expression.Operator getOperator() {
+            return _operator;
+        }
+
+        // The database type of a KEY_VALUE_ACCESS model
+        public KeyValueAccessVariable.DatabaseType getDatabaseType() {
+            return _databaseType;
+        }
+    }
+
+    // Models of one concern (values or taint)
+    private static class Index {
+        // By subsignature, then by declaring class (or ANY_CLASS)
+        private final Map<String, Map<String, Model>> _bySubSignature =
+                new HashMap<String, Map<String, Model>>();
+        // By method name, then by declaring class
+        private final Map<String, Map<String, Model>> _byName =
+                new HashMap<String, Map<String, Model>>();
+
+        private Model get(SootMethodRef methodRef) {
+            String className = methodRef.getDeclaringClass().getName();
+
+            Map<String, Model> models =
+                    _bySubSignature.get(methodRef.getSubSignature().getString());
+            Model model = (models != null) ? models.get(className) : null;
+            if (model != null) {
+                return model;
+            }
+
+            Map<String, Model> namedModels = _byName.get(methodRef.getName());
+            model = (namedModels != null) ? namedModels.get(className) : null;
+            if (model != null) {
+                return model;
+            }
+
+            return (models != null) ? models.get(ANY_CLASS) : null;
+        }
+
+        private void add(String method, Model model) {
+            int separator = method.indexOf(": ");
+            if (!method.startsWith("<") || !method.endsWith(">") || separator < 0) {
+                throw new IllegalArgumentException("Malformed method: " + method);
+            }
+
+            String className = method.substring(1, separator);
+            String subSignature = method.substring(separator + 2, method.length() - 1);
+            Map<String, Map<String, Model>> index = _bySubSignature;
+            if (subSignature.startsWith(ANY_CLASS + " ")) {
+                if (className.equals(ANY_CLASS)) {
+                    throw new IllegalArgumentException(
+                            "Method name without class: " + method);
+                }
+                subSignature = subSignature.substring(2);
+                index = _byName;
+            }
+
+            Model existing = index.computeIfAbsent(subSignature, s -> new HashMap<>())
+                    .putIfAbsent(className, model);
+            if (existing != null) {
+                throw new IllegalArgumentException("Method modeled twice: " + method);
+            }
+        }
+    }
+
+    private static final Index _valueModels = new Index();
+    private static final Index _taintModels = new Index();
+
+    static {
+        try (InputStream stream = ApiModelRegistry.class.getResourceAsStream(MODELS_FILE)) {
+            if (stream == null) {
+                throw new IllegalStateException("Missing " + MODELS_FILE);
+            }
+            load(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + MODELS_FILE, e);
+        }
+    }
+
+    private static void load(BufferedReader reader) throws IOException {
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                int methodStart = line.indexOf('<');
+                if (methodStart < 0) {
+                    throw new IllegalArgumentException("Missing method");
+                }
+
+                String[] model = line.substring(0, methodStart).trim().split("\\s+");
+                Kind kind = Kind.valueOf(model[0]);
+                String argument = (model.length > 1) ? model[1] : null;
+                if (model.length > 2) {
+                    throw new IllegalArgumentException("Too many arguments");
+                }
+
+                Index index = kind.isTaintModel() ? _taintModels : _valueModels;
+                index.add(line.substring(methodStart), new Model(kind, argument));
+            } catch (RuntimeException e) {
+                throw new IllegalStateException(MODELS_FILE + ":" + lineNumber + ": "
+                        + e.getMessage(), e);
+            }
+        }
+    }
+
+    // The model of the value a call returns, or null if the method is not modeled
+    public static Model getValueModel(SootMethodRef methodRef) {
+        return _valueModels.get(methodRef);
+    }
+
+    // The model of the taint of the value a call returns, or null if the method is not
+    // modeled
+    public static Model getTaintModel(SootMethodRef methodRef) {
+        return _taintModels.get(methodRef);
+    }
+}
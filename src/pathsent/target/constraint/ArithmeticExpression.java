@@ -2,8 +2,6 @@ package pathsent.target.constraint;
 
 import pathsent.target.*;
 
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import java.util.Set;
 
 public final class ArithmeticExpression extends Expression {
@@ -11,14 +9,19 @@ public final class ArithmeticExpression extends Expression {
     private final Expression _left;
     private final Expression _right;
 
-    public ArithmeticExpression(Expression.Operator operator,
-                                Expression left, Expression right) {
-        super(left.getType());
+    private ArithmeticExpression(Expression.Operator operator,
+                                 Expression left, Expression right) {
+        super(left.getType(), hash(operator, left, right));
         _operator = operator;
         _left = left;
         _right = right;
     }
 
+    public static ArithmeticExpression of(Expression.Operator operator,
+                                          Expression left, Expression right) {
+        return TermFactory.intern(new ArithmeticExpression(operator, left, right));
+    }
+
     @Override
     public Expression.Operator getOperator() {
         return _operator;
@@ -52,30 +55,19 @@ public final class ArithmeticExpression extends Expression {
         return exprString.toString();
     }
 
-    @Override
-    public Expression clone() {
-        return new ArithmeticExpression(_operator, _left, _right);
-    }
-
     @Override
     public boolean equals(Object obj) {
-        if (obj == null || !(obj instanceof ArithmeticExpression)) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof ArithmeticExpression) || obj.hashCode() != hashCode()) {
             return false;
         }
 
         ArithmeticExpression other = (ArithmeticExpression)obj;
-        return _operator.equals(other.getOperator())
-                && _left.equals(other.getLeft())
-                && _right.equals(other.getRight());
-    }
-
-    @Override
-    public int hashCode() {
-        return new HashCodeBuilder()
-                .append(_operator)
-                .append(_left)
-                .append(_right)
-                .toHashCode();
+        return _operator == other.getOperator()
+                && _left == other.getLeft()
+                && _right == other.getRight();
     }
 
     @Override
@@ -0,0 +1,338 @@
+package pathsent.target.constraint;
+
+import pathsent.PathSentStaticAnalysis;
+import pathsent.target.BodyAnalysisCache;
+
+import soot.*;
+import soot.jimple.*;
+
+import com.google.gson.JsonObject;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Parameterized summary of an auxiliary method: the constraints on its return value in terms
+// of placeholders for its parameters ("formals"), computed once per method and depth and then
+// instantiated at each call by substituting the arguments for the formals.  The summary is
+// computed by analyzing the method with no incoming heap values and no excluded methods.  The
+// summaries of the auxiliary methods it calls are computed first (they are one level deeper),
+// so the methods are summarized bottom-up, and the depth bounds recursive calls.
+//
+// An instantiated summary is only used if it is equal to the result of analyzing the method
+// with the arguments of the call (up to the order in which equal sub-terms are merged).
+// Otherwise the method is analyzed directly.  The summary does not apply if
+//   - an argument the constraints depend on is not a single symbolic variable (constants and
+//     alternative values are folded differently), has another type than the parameter, or
+//     is the same variable as another argument or a variable of the summary,
+//   - a formal is part of a variable other than a placeholder (e.g. the receiver of a
+//     MethodCallVariable), which cannot be substituted,
+//   - the incoming heap values include a field the method (or its auxiliary methods) reads,
+//   - the call excludes a method the summary analyzed as an auxiliary method.
+// Field writes do not matter: the caller only takes the return constraint, heap dependencies
+// and auxiliary methods of an auxiliary method, never its heap values, so writes are not part
+// of the result of analyzing it directly either.  Only reads can see the incoming heap
+// values, which the summary was computed without.
+// Placeholders whose name includes the name of a formal (such as the return value of a call
+// on a parameter) are renamed, since analyzing the method directly would name them after the
+// argument.
+//
+// Summaries are kept as long as the BodyAnalysisCache entry of the method's body.
+// Thread-safe; two threads may compute the same summary at the same time.
+
+public final class AuxiliaryMethodSummary {
+    private static final Map<BodyAnalysisCache.Entry, AuxiliaryMethodSummary[]> _summaries =
+            new WeakHashMap<BodyAnalysisCache.Entry, AuxiliaryMethodSummary[]>();
+
+    private static final AtomicLong _numComputed = new AtomicLong();
+    private static final AtomicLong _numInstantiated = new AtomicLong();
+    private static final AtomicLong _numNotApplicable = new AtomicLong();
+
+    // Formals of the parameters and this, by local, and the local of each formal
+    private final Map<Local, VariableExpression> _formals =
+            new HashMap<Local, VariableExpression>();
+    private final Map<Variable, Local> _formalLocals = new HashMap<Variable, Local>();
+    private final VariableExpression _formalReturn;
+
+    private final ConstraintSummaryCache.ReturnSummary _summary;
+
+    // Formals the return constraint depends on, placeholders to rename, and the variables of
+    // the return constraint that are left as they are
+    private final Set<Variable> _usedFormals = new HashSet<Variable>();
+    private final Set<PlaceholderVariable> _renamedPlaceholders =
+            new HashSet<PlaceholderVariable>();
+    private final Set<Variable> _otherVariables = new HashSet<Variable>();
+    private boolean _instantiable = true;
+
+    // Fields read by the method and its auxiliary methods
+    private final Set<HeapVariable> _heapReads = new HashSet<HeapVariable>();
+
+    private AuxiliaryMethodSummary(BodyAnalysisCache.Entry bodyAnalyses, int auxDepth) {
+        Body body = bodyAnalyses.getBody();
+        SootMethod method = body.getMethod();
+        String signature = method.getSignature();
+
+        DataMap parameterMap = new DataMap();
+        for (int i = 0; i < method.getParameterCount(); i++) {
+            addFormal(body.getParameterLocal(i), signature + "#" + i, parameterMap);
+        }
+        if (!method.isStatic()) {
+            addFormal(body.getThisLocal(), signature + "#this", parameterMap);
+        }
+        _formalReturn = VariableExpression.of(new PlaceholderVariable(
+                "Formal<" + signature + "#return>", method.getReturnType()));
+
+        IntraproceduralConstraintAnalysis analysis = new IntraproceduralConstraintAnalysis(
+                bodyAnalyses, parameterMap, Collections.<SootMethod>emptySet(), auxDepth);
+        _summary = analysis.getReturnSummary(_formalReturn);
+
+        if (_summary.getReturnConstraint() != null) {
+            classifyVariables(_summary.getReturnConstraint().getAllVariables());
+        }
+
+        addHeapReads(body);
+        for (SootMethod auxMethod : _summary.getAuxiliaryMethods()) {
+            if (auxMethod.hasActiveBody()) {
+                addHeapReads(auxMethod.getActiveBody());
+            }
+        }
+    }
+
+    private void addFormal(Local local, String name, DataMap parameterMap) {
+        VariableExpression formal = VariableExpression.of(
+                new PlaceholderVariable("Formal<" + name + ">", local.getType()));
+        _formals.put(local, formal);
+        _formalLocals.put(formal.getVariable(), local);
+        parameterMap.LocalMap.put(local, new ExpressionSet(formal));
+    }
+
+    private void classifyVariables(Set<Variable> variables) {
+        for (Variable variable : variables) {
+            if (_formalLocals.containsKey(variable)
+                    || variable.equals(_formalReturn.getVariable())) {
+                _usedFormals.add(variable);
+                continue;
+            }
+
+            Set<Variable> embeddedFormals = getEmbeddedFormals(variable);
+            if (embeddedFormals.isEmpty()) {
+                _otherVariables.add(variable);
+            } else if (variable instanceof PlaceholderVariable) {
+                _renamedPlaceholders.add((PlaceholderVariable)variable);
+                _usedFormals.addAll(embeddedFormals);
+            } else {
+                _instantiable = false;
+            }
+        }
+    }
+
+    private Set<Variable> getEmbeddedFormals(Variable variable) {
+        String name = variable.toString();
+        Set<Variable> embeddedFormals = new HashSet<Variable>();
+        for (Variable formal : _formalLocals.keySet()) {
+            if (name.contains(formal.toString())) {
+                embeddedFormals.add(formal);
+            }
+        }
+        if (name.contains(_formalReturn.toString())) {
+            embeddedFormals.add(_formalReturn.getVariable());
+        }
+        return embeddedFormals;
+    }
+
+    private void addHeapReads(Body body) {
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt)unit;
+            if (stmt.containsFieldRef() && !(stmt instanceof DefinitionStmt
+                    && ((DefinitionStmt)stmt).getLeftOp() instanceof FieldRef)) {
+                _heapReads.add(new HeapVariable(stmt.getFieldRef()));
+            }
+        }
+    }
+
+    // The summary of the method of the given body, analyzed at the given depth, instantiated
+    // for a call with the given arguments.  Returns null if the summary does not apply to the
+    // call.
+    static ConstraintSummaryCache.ReturnSummary instantiate(
+            BodyAnalysisCache.Entry bodyAnalyses, int auxDepth, DataMap parameterMap,
+            VariableExpression returnIdentifier, Set<SootMethod> excludeMethods) {
+        ConstraintSummaryCache.ReturnSummary summary = get(bodyAnalyses, auxDepth)
+                .instantiate(parameterMap, returnIdentifier, excludeMethods);
+        if (summary != null) {
+            _numInstantiated.incrementAndGet();
+        } else {
+            _numNotApplicable.incrementAndGet();
+        }
+        return summary;
+    }
+
+    // A summary depends on the number of levels of auxiliary methods analyzed below the
+    // method, so summaries are stored by that number.
+    private static AuxiliaryMethodSummary get(BodyAnalysisCache.Entry bodyAnalyses,
+                                              int auxDepth) {
+        int remainingDepth =
+                Math.max(PathSentStaticAnalysis.Config.AuxiliaryMethodDepth - auxDepth, 0);
+        synchronized (_summaries) {
+            AuxiliaryMethodSummary[] summaries = _summaries.get(bodyAnalyses);
+            if (summaries != null && remainingDepth < summaries.length
+                    && summaries[remainingDepth] != null) {
+                return summaries[remainingDepth];
+            }
+        }
+
+        // Compute the summary outside of the lock, since it computes the summaries of the
+        // auxiliary methods.
+        AuxiliaryMethodSummary summary = new AuxiliaryMethodSummary(bodyAnalyses, auxDepth);
+        _numComputed.incrementAndGet();
+
+        synchronized (_summaries) {
+            AuxiliaryMethodSummary[] summaries = _summaries.get(bodyAnalyses);
+            if (summaries == null) {
+                summaries = new AuxiliaryMethodSummary[remainingDepth + 1];
+            } else if (remainingDepth >= summaries.length) {
+                summaries = Arrays.copyOf(summaries, remainingDepth + 1);
+            } else if (summaries[remainingDepth] != null) {
+                return summaries[remainingDepth];
+            }
+            summaries[remainingDepth] = summary;
+            _summaries.put(bodyAnalyses, summaries);
+            return summary;
+        }
+    }
+
+    private ConstraintSummaryCache.ReturnSummary instantiate(DataMap parameterMap,
+            VariableExpression returnIdentifier, Set<SootMethod> excludeMethods) {
+        if (!_instantiable
+                || !Collections.disjoint(_summary.getAuxiliaryMethods(), excludeMethods)) {
+            return null;
+        }
+
+        for (HeapVariable heapVar : parameterMap.HeapMap.keySet()) {
+            for (HeapVariable heapRead : _heapReads) {
+                if (heapVar.intersects(heapRead)) {
+                    return null;
+                }
+            }
+        }
+
+        if (_summary.getReturnConstraint() == null) {
+            return _summary;
+        }
+
+        // Map the formals to the arguments, which must be distinct symbolic variables
+        Map<Variable, Variable> substitution = new HashMap<Variable, Variable>();
+        Set<Variable> newVariables = new HashSet<Variable>();
+        for (Variable formal : _usedFormals) {
+            Variable actual;
+            if (formal.equals(_formalReturn.getVariable())) {
+                actual = returnIdentifier.getVariable();
+            } else {
+                Local local = _formalLocals.get(formal);
+                ExpressionSet argument = parameterMap.LocalMap.get(local);
+                if (argument == null || argument.getExpressions().size() != 1) {
+                    return null;
+                }
+
+                Expression argumentExpr = argument.getFirstExpression();
+                if (!argumentExpr.isVariable() || !argumentExpr.getVariable().isSymbolic()
+                        || !argumentExpr.getType().equals(_formals.get(local).getType())) {
+                    return null;
+                }
+                actual = argumentExpr.getVariable();
+            }
+
+            if (!newVariables.add(actual)) {
+                return null;
+            }
+            substitution.put(formal, actual);
+        }
+
+        for (PlaceholderVariable placeholder : _renamedPlaceholders) {
+            String name = placeholder.getSymbol();
+            for (Map.Entry<Variable, Variable> entry : substitution.entrySet()) {
+                name = name.replace(entry.getKey().toString(), entry.getValue().toString());
+            }
+
+            PlaceholderVariable renamed = new PlaceholderVariable(name, placeholder.getType());
+            if (!newVariables.add(renamed)) {
+                return null;
+            }
+            substitution.put(placeholder, renamed);
+        }
+
+        if (!Collections.disjoint(newVariables, _otherVariables)) {
+            return null;
+        }
+
+        Predicate returnConstraint = substitute(_summary.getReturnConstraint(), substitution,
+                new IdentityHashMap<Object, Object>());
+        return new ConstraintSummaryCache.ReturnSummary(returnConstraint,
+                _summary.getHeapDependencies(), _summary.getAuxiliaryMethods());
+    }
+
+    // Rebuilds the predicate with the variables replaced.  Terms are shared, so the result for
+    // each sub-term is remembered.
+    private static Predicate substitute(Predicate pred, Map<Variable, Variable> substitution,
+                                        Map<Object, Object> results) {
+        Predicate result = (Predicate)results.get(pred);
+        if (result != null) {
+            return result;
+        }
+
+        if (pred.isExpression()) {
+            Expression expr = ((ExpressionPredicate)pred).getExpression();
+            Expression newExpr = substitute(expr, substitution, results);
+            result = (newExpr == expr) ? pred : ExpressionPredicate.of(newExpr);
+        } else if (pred.isUnary()) {
+            Predicate child = ((UnaryPredicate)pred).getChild();
+            Predicate newChild = substitute(child, substitution, results);
+            result = (newChild == child)
+                    ? pred : UnaryPredicate.of(pred.getOperator(), newChild);
+        } else {
+            BinaryPredicate binaryPred = (BinaryPredicate)pred;
+            Predicate left = substitute(binaryPred.getLeftChild(), substitution, results);
+            Predicate right = substitute(binaryPred.getRightChild(), substitution, results);
+            result = (left == binaryPred.getLeftChild() && right == binaryPred.getRightChild())
+                    ? pred : BinaryPredicate.of(pred.getOperator(), left, right);
+        }
+
+        results.put(pred, result);
+        return result;
+    }
+
+    private static Expression substitute(Expression expr, Map<Variable, Variable> substitution,
+                                         Map<Object, Object> results) {
+        Expression result = (Expression)results.get(expr);
+        if (result != null) {
+            return result;
+        }
+
+        if (expr.isVariable()) {
+            Variable variable = substitution.get(expr.getVariable());
+            result = (variable == null)
+                    ? expr : VariableExpression.of(variable, expr.getType());
+        } else if (expr.isArithmeticExpression()) {
+            ArithmeticExpression arithmeticExpr = expr.toArithmeticExpression();
+            Expression left = substitute(arithmeticExpr.getLeft(), substitution, results);
+            Expression right = substitute(arithmeticExpr.getRight(), substitution, results);
+            result = (left == arithmeticExpr.getLeft() && right == arithmeticExpr.getRight())
+                    ? expr : ArithmeticExpression.of(expr.getOperator(), left, right);
+        } else {
+            StringExpression stringExpr = (StringExpression)expr;
+            Expression left = substitute(stringExpr.getLeft(), substitution, results);
+            Expression right = substitute(stringExpr.getRight(), substitution, results);
+            result = (left == stringExpr.getLeft() && right == stringExpr.getRight())
+                    ? expr : StringExpression.of(expr.getOperator(), left, right);
+        }
+
+        results.put(expr, result);
+        return result;
+    }
+
+    public static JsonObject getStatisticsJson() {
+        JsonObject statisticsJson = new JsonObject();
+        statisticsJson.addProperty("Computed", _numComputed.get());
+        statisticsJson.addProperty("Instantiated", _numInstantiated.get());
+        statisticsJson.addProperty("NotApplicable", _numNotApplicable.get());
+        return statisticsJson;
+    }
+}
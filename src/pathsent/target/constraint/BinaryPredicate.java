@@ -10,12 +10,18 @@ public final class BinaryPredicate extends Predicate {
     private final Predicate _leftChild;
     private final Predicate _rightChild;
 
-    public BinaryPredicate(Operator operator, Predicate leftChild, Predicate rightChild) {
+    private BinaryPredicate(Operator operator, Predicate leftChild, Predicate rightChild) {
+        super(31 * (31 * operator.ordinal() + leftChild.hashCode()) + rightChild.hashCode());
         _operator = operator;
         _leftChild = leftChild;
         _rightChild = rightChild;
     }
 
+    public static BinaryPredicate of(Operator operator, Predicate leftChild,
+                                     Predicate rightChild) {
+        return TermFactory.intern(new BinaryPredicate(operator, leftChild, rightChild));
+    }
+
     @Override
     public Predicate.Operator getOperator() {
         return _operator;
@@ -103,21 +109,19 @@ public final class BinaryPredicate extends Predicate {
         return constraints.toString();
     }
 
-    @Override
-    public Predicate clone() {
-        return new BinaryPredicate(_operator, _leftChild, _rightChild);
-    }
-
     @Override
     public boolean equals(Object obj) {
-        if (obj == null || !(obj instanceof BinaryPredicate)) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof BinaryPredicate) || obj.hashCode() != hashCode()) {
             return false;
         }
 
         BinaryPredicate other = (BinaryPredicate)obj;
-        return _operator.equals(other.getOperator())
-                && _leftChild.equals(other.getLeftChild())
-                && _rightChild.equals(other.getRightChild());
+        return _operator == other.getOperator()
+                && _leftChild == other.getLeftChild()
+                && _rightChild == other.getRightChild();
     }
 
     @Override
@@ -6,15 +6,12 @@ import pathsent.target.event.CallPath;
 import soot.*;
 import soot.jimple.*;
 import soot.jimple.toolkits.callgraph.Edge;
-import soot.toolkits.graph.BriefUnitGraph;
-import soot.toolkits.graph.UnitGraph;
 
 import java.util.*;
 
 public class ConstraintAnalysis {
-    // TODO Depending on the trade-off between memory vs CPU, we may want to cache instances of
-    // the intraprocedural analysis and re-use them for cases with the same method +
-    // paramterMap.
+    // The intraprocedural analyses of the path methods are memoized by method, queried unit
+    // and parameterMap (see ConstraintSummaryCache).
 
     protected final CallPath _callPath;
     protected final Set<SootMethod> _pathMethods;
@@ -63,38 +60,48 @@ public class ConstraintAnalysis {
         DataMap parameterMap = new DataMap();
         SootMethod entryPointMethod = _callPath.getNodes().get(0).method();
         
-        Output.debug("CONSTRAINT: Generating parameter map for entry point: " + entryPointMethod.getSignature());
+        Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Generating parameter map "
+                + "for entry point: " + entryPointMethod.getSignature());
 
         // Handle "this"
         if (!entryPointMethod.isStatic()) {
             Local thisLocal = entryPointMethod.getActiveBody().getThisLocal();
             InputVariable thisVar = new InputVariable(_callPath, 0, entryPointMethod.getDeclaringClass().getType());
-            parameterMap.LocalMap.put(thisLocal, new ExpressionSet(new VariableExpression(thisVar)));
-            Output.debug("CONSTRAINT: Added 'this' parameter: " + thisLocal + " -> " + thisVar);
+            parameterMap.LocalMap.put(thisLocal, new ExpressionSet(VariableExpression.of(thisVar)));
+            Output.debug(Output.Subsystem.Constraint,
+                    () -> "CONSTRAINT: Added 'this' parameter: " + thisLocal + " -> " + thisVar);
         }
 
         // Handle parameters
         for (int i = 0; i < entryPointMethod.getParameterCount(); i++) {
             Local paramLocal = entryPointMethod.getActiveBody().getParameterLocal(i);
             InputVariable inputVar = new InputVariable(_callPath, i + 1, entryPointMethod.getParameterType(i));
-            parameterMap.LocalMap.put(paramLocal, new ExpressionSet(new VariableExpression(inputVar)));
-            Output.debug("CONSTRAINT: Added parameter " + i + ": " + paramLocal + " -> " + inputVar);
+            parameterMap.LocalMap.put(paramLocal, new ExpressionSet(VariableExpression.of(inputVar)));
+            int paramIndex = i;
+            Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Added parameter "
+                    + paramIndex + ": " + paramLocal + " -> " + inputVar);
         }
 
-        Output.debug("CONSTRAINT: Generated parameter map with " + parameterMap.LocalMap.size() + " entries");
+        Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Generated parameter map "
+                + "with " + parameterMap.LocalMap.size() + " entries");
         return parameterMap;
     }
 
     protected void extractConstraints() {
-        Output.debug("CONSTRAINT: Starting constraint extraction for path with " + _callPath.getEdges().size() + " edges");
+        Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Starting constraint "
+                + "extraction for path with " + _callPath.getEdges().size() + " edges");
         
         // Create initial parameter map
         DataMap parameterMap = generateEntryPointParameterMap();
-        Output.debug("CONSTRAINT: Generated entry point parameter map: " + parameterMap);
+        DataMap entryPointParameterMap = parameterMap;
+        Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Generated entry point "
+                + "parameter map: " + entryPointParameterMap);
 
         // Analyze constraints for each node
         for (Edge pathEdge : _callPath.getEdges()) {
-            Output.debug("CONSTRAINT: Analyzing edge: " + pathEdge.getSrc().method().getSignature() + " -> " + pathEdge.getTgt().method().getSignature());
+            Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Analyzing edge: "
+                    + pathEdge.getSrc().method().getSignature() + " -> "
+                    + pathEdge.getTgt().method().getSignature());
             parameterMap = extractConstraintsForPathEdge(pathEdge, parameterMap);
         }
 
@@ -103,25 +110,25 @@ public class ConstraintAnalysis {
     }
 
     protected DataMap extractConstraintsForPathEdge(Edge edge, DataMap parameterMap) {
-        Output.debug("ConstraintAnalysis processing edge: " + edge);
+        Output.debug(Output.Subsystem.Constraint,
+                () -> "ConstraintAnalysis processing edge: " + edge);
 
         MethodOrMethodContext node = edge.getSrc();
         MethodOrMethodContext nextNode = edge.getTgt();
         Stmt nodeTargetStmt = (Stmt)edge.srcUnit();
 
-        UnitGraph cfg = new BriefUnitGraph(node.method().getActiveBody());
-        IntraproceduralConstraintAnalysis intraAnalysis =
-                new IntraproceduralConstraintAnalysis(cfg, parameterMap, _pathMethods);
+        ConstraintSummaryCache.UnitSummary intraSummary = ConstraintSummaryCache.getUnitSummary(
+                node.method().getActiveBody(), nodeTargetStmt, parameterMap, _pathMethods);
 
         // Get data map and constraints at point where next method in path is invoked
-        DataMap targetDataMap = intraAnalysis.getFlowBefore(nodeTargetStmt);
+        DataMap targetDataMap = intraSummary.getFlowBefore();
 
         _constraints = Predicate.combine(Predicate.Operator.AND,
                                          _constraints,
                                          targetDataMap.ControlFlowConstraint);
 
         // Update heap dependencies
-        _heapDependencies.addAll(intraAnalysis.getHeapDependencies());
+        _heapDependencies.addAll(intraSummary.getHeapDependencies());
 
         // Determine variables used in invocation and construct parameter map for next path
         // method.
@@ -161,7 +168,7 @@ public class ConstraintAnalysis {
                     ConstantVariable constantVar =
                             ConstantVariable.generateFromSootConstant(baseConstant);
                     ExpressionSet constantExprSet = new ExpressionSet(
-                            new VariableExpression(constantVar));
+                            VariableExpression.of(constantVar));
                     nextParameterMap.LocalMap.put(nextNodeBase, constantExprSet);
                 }
             }
@@ -188,7 +195,7 @@ public class ConstraintAnalysis {
                     ConstantVariable constantVar =
                             ConstantVariable.generateFromSootConstant(argConstant);
                     ExpressionSet constantExprSet = new ExpressionSet(
-                            new VariableExpression(constantVar));
+                            VariableExpression.of(constantVar));
                     nextParameterMap.LocalMap.put(nextNodeArg, constantExprSet);
                 }
             }
@@ -199,21 +206,27 @@ public class ConstraintAnalysis {
 
     protected void extractConstraintsForTargetUnit(SootMethod targetMethod, Unit targetUnit,
             DataMap parameterMap) {
-        Output.debug("CONSTRAINT: Extracting constraints for target unit in method: " + targetMethod.getSignature());
-        Output.debug("CONSTRAINT: Target unit: " + targetUnit);
+        Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Extracting constraints "
+                + "for target unit in method: " + targetMethod.getSignature());
+        Output.debug(Output.Subsystem.Constraint,
+                () -> "CONSTRAINT: Target unit: " + targetUnit);
         
-        UnitGraph cfg = new BriefUnitGraph(targetMethod.getActiveBody());
-        IntraproceduralConstraintAnalysis intraAnalysis =
-                new IntraproceduralConstraintAnalysis(cfg, parameterMap, _pathMethods);
+        ConstraintSummaryCache.UnitSummary intraSummary = ConstraintSummaryCache.getUnitSummary(
+                targetMethod.getActiveBody(), targetUnit, parameterMap, _pathMethods);
 
         // Get data map and constraints at unit
-        DataMap targetDataMap = intraAnalysis.getFlowBefore(targetUnit);
-        Output.debug("CONSTRAINT: Target data map control flow constraint: " + 
-                    (targetDataMap.ControlFlowConstraint != null ? targetDataMap.ControlFlowConstraint.toString() : "null"));
-        Output.debug("CONSTRAINT: Target data map has " + targetDataMap.LocalMap.size() + " local mappings:");
-        targetDataMap.LocalMap.forEach((local, exprSet) -> {
-            Output.debug("  LOCAL: " + local + " -> " + exprSet);
-        });
+        DataMap targetDataMap = intraSummary.getFlowBefore();
+        Output.debug(Output.Subsystem.Constraint,
+                () -> "CONSTRAINT: Target data map control flow constraint: "
+                    + targetDataMap.ControlFlowConstraint);
+        Output.debug(Output.Subsystem.Constraint, () -> "CONSTRAINT: Target data map has "
+                + targetDataMap.LocalMap.size() + " local mappings:");
+        if (Output.isDebugEnabled(Output.Subsystem.Constraint)) {
+            targetDataMap.LocalMap.forEach((local, exprSet) -> {
+                Output.debug(Output.Subsystem.Constraint,
+                        () -> "  LOCAL: " + local + " -> " + exprSet);
+            });
+        }
         
         _constraints = Predicate.combine(Predicate.Operator.AND,
                                          _constraints,
@@ -222,28 +235,30 @@ public class ConstraintAnalysis {
         // Extract string parameter constraints if target unit is a method invocation
         if (targetUnit instanceof Stmt && ((Stmt)targetUnit).containsInvokeExpr()) {
             InvokeExpr invokeExpr = ((Stmt)targetUnit).getInvokeExpr();
-            Output.debug("STRING_PARAM: Analyzing target method invocation: " + invokeExpr.getMethod().getSignature());
+            Output.debug(Output.Subsystem.Constraint, () -> "STRING_PARAM: Analyzing target "
+                    + "method invocation: " + invokeExpr.getMethod().getSignature());
             
             List<StringParameterConstraint> stringConstraints = 
                 _stringParameterAnalyzer.analyzeStringParameters(invokeExpr, targetDataMap);
             
             _stringParameterConstraints.addAll(stringConstraints);
             
-            Output.debug("STRING_PARAM: Found " + stringConstraints.size() + " string parameter constraints");
+            Output.debug(Output.Subsystem.Constraint, () -> "STRING_PARAM: Found "
+                    + stringConstraints.size() + " string parameter constraints");
             for (StringParameterConstraint constraint : stringConstraints) {
-                Output.debug("STRING_PARAM: " + constraint.toString());
+                Output.debug(Output.Subsystem.Constraint,
+                        () -> "STRING_PARAM: " + constraint.toString());
             }
         }
         
-        Output.debug("CONSTRAINT: Combined constraints after target unit: " + 
-                    (_constraints != null ? _constraints.toString() : "null"));
+        Output.debug(Output.Subsystem.Constraint,
+                () -> "CONSTRAINT: Combined constraints after target unit: " + _constraints);
 
         // Update heap dependencies
-        _heapDependencies.addAll(intraAnalysis.getHeapDependencies());
+        _heapDependencies.addAll(intraSummary.getHeapDependencies());
 
         // Process target unit/instruction (used for certain types of call paths/dependences)
-        DataMap postTargetDataMap = ((Stmt)targetUnit).fallsThrough()
-                ? intraAnalysis.getFallFlowAfter(targetUnit) : targetDataMap;
+        DataMap postTargetDataMap = intraSummary.getFallFlowAfter();
         processTargetUnit(_callPath.getTargetUnit(), postTargetDataMap);
     }
 
@@ -37,7 +37,7 @@ class ConstraintMinimization {
             ExpressionPredicate exprPred = (ExpressionPredicate)pred;
             Expression minExpr = minimizeExpression(exprPred.getExpression());
             if (!minExpr.equals(exprPred.getExpression())) {
-                return new ExpressionPredicate(minExpr);
+                return ExpressionPredicate.of(minExpr);
             } else {
                 return exprPred;
             }
@@ -68,7 +68,7 @@ class ConstraintMinimization {
                             Expression.getOppositeOperator(arithLeftExpr.getOperator());
 
                     if (!oppositeOp.equals(Expression.Operator.NONE)) {
-                        return new ExpressionPredicate(new ArithmeticExpression(oppositeOp,
+                        return ExpressionPredicate.of(ArithmeticExpression.of(oppositeOp,
                                 arithLeftExpr.getLeft(), arithLeftExpr.getRight()));
                     }
                 }
@@ -80,25 +80,25 @@ class ConstraintMinimization {
             } else if (minChild.isBinary()
                         && minChild.getOperator().equals(Predicate.Operator.AND)) {
                 BinaryPredicate minChildBinary = (BinaryPredicate)minChild;
-                return new BinaryPredicate(Predicate.Operator.OR,
-                        new UnaryPredicate(Predicate.Operator.NOT,
+                return BinaryPredicate.of(Predicate.Operator.OR,
+                        UnaryPredicate.of(Predicate.Operator.NOT,
                                 minChildBinary.getLeftChild()),
-                        new UnaryPredicate(Predicate.Operator.NOT,
+                        UnaryPredicate.of(Predicate.Operator.NOT,
                                 minChildBinary.getRightChild()));
 
             } else if (minChild.isBinary()
                         && minChild.getOperator().equals(Predicate.Operator.OR)) {
                 BinaryPredicate minChildBinary = (BinaryPredicate)minChild;
-                return new BinaryPredicate(Predicate.Operator.AND,
-                        new UnaryPredicate(Predicate.Operator.NOT,
+                return BinaryPredicate.of(Predicate.Operator.AND,
+                        UnaryPredicate.of(Predicate.Operator.NOT,
                                 minChildBinary.getLeftChild()),
-                        new UnaryPredicate(Predicate.Operator.NOT,
+                        UnaryPredicate.of(Predicate.Operator.NOT,
                                 minChildBinary.getRightChild()));
             }
         }
 
         if (!minChild.equals(pred.getChild())) {
-            return new UnaryPredicate(pred.getOperator(), minChild);
+            return UnaryPredicate.of(pred.getOperator(), minChild);
         }
 
         return pred;
@@ -132,7 +132,7 @@ class ConstraintMinimization {
         }
 
         if (!minLeft.equals(pred.getLeftChild()) || !minRight.equals(pred.getRightChild())) {
-            return new BinaryPredicate(pred.getOperator(), minLeft, minRight);
+            return BinaryPredicate.of(pred.getOperator(), minLeft, minRight);
         }
 
         return pred;
@@ -211,7 +211,7 @@ class ConstraintMinimization {
             UnaryPredicate unaryPred = (UnaryPredicate)pred;
             Predicate minLeft = removeRedundancies(unaryPred.getChild());
             if (!minLeft.equals(unaryPred.getChild())) {
-                return new UnaryPredicate(unaryPred.getOperator(), minLeft);
+                return UnaryPredicate.of(unaryPred.getOperator(), minLeft);
             }
 
             return unaryPred;
@@ -250,7 +250,7 @@ class ConstraintMinimization {
             if (!minLeft.equals(binaryPred.getLeftChild())
                     || !minRight.equals(binaryPred.getRightChild())) {
 
-                return new BinaryPredicate(binaryPred.getOperator(), minLeft, minRight);
+                return BinaryPredicate.of(binaryPred.getOperator(), minLeft, minRight);
             }
 
             return binaryPred;
@@ -287,7 +287,7 @@ class ConstraintMinimization {
             }
 
             if (!minLeft.equals(unaryPred.getChild())) {
-                return new UnaryPredicate(unaryPred.getOperator(), minLeft);
+                return UnaryPredicate.of(unaryPred.getOperator(), minLeft);
             }
 
         } else if (pred.isBinary()) {
@@ -317,7 +317,7 @@ class ConstraintMinimization {
             if (!minLeft.equals(binaryPred.getLeftChild())
                     || !minRight.equals(binaryPred.getRightChild())) {
 
-                return new BinaryPredicate(binaryPred.getOperator(), minLeft, minRight);
+                return BinaryPredicate.of(binaryPred.getOperator(), minLeft, minRight);
             }
         }
 
@@ -0,0 +1,257 @@
+package pathsent.target.constraint;
+
+import pathsent.PathSentStaticAnalysis;
+import pathsent.target.BodyAnalysisCache;
+
+import soot.*;
+import soot.jimple.*;
+
+import com.google.gson.JsonObject;
+
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+// Memoized results of IntraproceduralConstraintAnalysis.  The call paths to a target share
+// their entry methods and often long prefixes, and the same auxiliary methods are called with
+// the same arguments on many paths, so the same fixed point would otherwise be computed over
+// and over.
+//
+// A result is identified by the body (the signature of its method, and its identity and
+// modification count, so a changed or replaced body does not match), what is asked of the
+// analysis (the data at all units of the body, or the return constraint of an auxiliary
+// method), the incoming DataMap, the number of levels of auxiliary methods still analyzed
+// below the body, and the excluded methods that can be reached within those levels (the
+// analysis does not treat them as auxiliary methods).  The hash of the DataMap is the
+// fingerprint of the key; keys with the same fingerprint are told apart by DataMap.equals,
+// which compares the values of the locals and heap variables - the parts of the incoming
+// DataMap the analysis reads.  For a method on a call path, the data at every unit is kept,
+// so the paths that leave the method at different units share one analysis.
+//
+// Keys do not refer to the BodyAnalysisCache entries of the bodies (nor do results), so the
+// cache does not keep the CFGs and other analyses of bodies alive once BodyAnalysisCache has
+// dropped them.  The MAX_ENTRIES most recently used results are kept through soft
+// references, so the garbage collector can reclaim them under memory pressure.  Results are
+// shared and must not be modified.  Thread-safe; two threads may compute the same result at
+// the same time.
+
+public class ConstraintSummaryCache {
+    private static final int MAX_ENTRIES = 2048;
+
+    private static final Map<Key, SoftReference<Object>> _entries =
+            new LinkedHashMap<Key, SoftReference<Object>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Key, SoftReference<Object>> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private static long _numHits = 0;
+    private static long _numMisses = 0;
+    private static long _numCleared = 0;
+
+    // Query for the data at all units of a body
+    private static final Object BODY_QUERY = new Object();
+
+    private static final class Key {
+        private final String _methodSignature;
+        private final int _bodyIdentity;
+        private final long _bodyModificationCount;
+        private final Object _query;
+        private final DataMap _parameterMap;
+        private final int _remainingDepth;
+        private final Set<SootMethod> _excludedMethods;
+        private final int _hashCode;
+
+        public Key(BodyAnalysisCache.Entry bodyAnalyses, Object query, DataMap parameterMap,
+                   Set<SootMethod> excludeMethods, int auxDepth) {
+            _methodSignature = bodyAnalyses.getBody().getMethod().getSignature();
+            _bodyIdentity = System.identityHashCode(bodyAnalyses.getBody());
+            _bodyModificationCount = bodyAnalyses.getModificationCount();
+            _query = query;
+            _parameterMap = parameterMap.clone();
+            _remainingDepth = PathSentStaticAnalysis.Config.AuxiliaryMethodDepth - auxDepth;
+
+            // Below the body, excluded methods only matter while auxiliary methods are still
+            // analyzed.  Which ones are reached deeper is not known, so all of them are part
+            // of the key then.
+            if (_remainingDepth <= 0) {
+                _excludedMethods = Collections.<SootMethod>emptySet();
+            } else if (_remainingDepth == 1) {
+                _excludedMethods = new HashSet<SootMethod>(bodyAnalyses.getInvokedMethods());
+                _excludedMethods.retainAll(excludeMethods);
+            } else {
+                _excludedMethods = new HashSet<SootMethod>(excludeMethods);
+            }
+
+            _hashCode = Objects.hash(_methodSignature, _bodyIdentity, _bodyModificationCount,
+                                     _query, _parameterMap, _remainingDepth,
+                                     _excludedMethods);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key)obj;
+            return _hashCode == other._hashCode
+                    && _methodSignature.equals(other._methodSignature)
+                    && _bodyIdentity == other._bodyIdentity
+                    && _bodyModificationCount == other._bodyModificationCount
+                    && _remainingDepth == other._remainingDepth
+                    && _query.equals(other._query)
+                    && _parameterMap.equals(other._parameterMap)
+                    && _excludedMethods.equals(other._excludedMethods);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hashCode;
+        }
+    }
+
+    // The data before and after each unit of a method on a call path (by unit number)
+    private static class BodySummary {
+        private final DataMap[] _flowBefore;
+        private final DataMap[] _fallFlowAfter;
+        private final Set<HeapVariable> _heapDependencies;
+
+        private BodySummary(IntraproceduralConstraintAnalysis analysis,
+                            BodyAnalysisCache.Entry bodyAnalyses) {
+            _flowBefore = new DataMap[bodyAnalyses.getNumUnits()];
+            _fallFlowAfter = new DataMap[bodyAnalyses.getNumUnits()];
+            for (Unit unit : bodyAnalyses.getBody().getUnits()) {
+                int unitNumber = bodyAnalyses.getUnitNumber(unit);
+                _flowBefore[unitNumber] = analysis.getFlowBefore(unit).clone();
+                _fallFlowAfter[unitNumber] = ((Stmt)unit).fallsThrough()
+                        ? analysis.getFallFlowAfter(unit).clone() : _flowBefore[unitNumber];
+            }
+            _heapDependencies =
+                    Collections.unmodifiableSet(new HashSet<HeapVariable>(
+                            analysis.getHeapDependencies()));
+        }
+    }
+
+    // The data before and after a unit of a method on a call path
+    static class UnitSummary {
+        private final DataMap _flowBefore;
+        private final DataMap _fallFlowAfter;
+        private final Set<HeapVariable> _heapDependencies;
+
+        private UnitSummary(BodySummary bodySummary, int unitNumber) {
+            _flowBefore = bodySummary._flowBefore[unitNumber];
+            _fallFlowAfter = bodySummary._fallFlowAfter[unitNumber];
+            _heapDependencies = bodySummary._heapDependencies;
+        }
+
+        public DataMap getFlowBefore() {
+            return _flowBefore;
+        }
+
+        // The data after the unit if it falls through (the data before it otherwise)
+        public DataMap getFallFlowAfter() {
+            return _fallFlowAfter;
+        }
+
+        public Set<HeapVariable> getHeapDependencies() {
+            return _heapDependencies;
+        }
+    }
+
+    // The constraint on the return value of an auxiliary method, and the methods analyzed as
+    // auxiliary methods of it (directly or not)
+    static class ReturnSummary {
+        private final Predicate _returnConstraint;
+        private final Set<HeapVariable> _heapDependencies;
+        private final Set<SootMethod> _auxiliaryMethods;
+
+        ReturnSummary(Predicate returnConstraint, Set<HeapVariable> heapDependencies,
+                      Set<SootMethod> auxiliaryMethods) {
+            _returnConstraint = returnConstraint;
+            _heapDependencies = Collections.unmodifiableSet(
+                    new HashSet<HeapVariable>(heapDependencies));
+            _auxiliaryMethods = Collections.unmodifiableSet(
+                    new HashSet<SootMethod>(auxiliaryMethods));
+        }
+
+        public Predicate getReturnConstraint() {
+            return _returnConstraint;
+        }
+
+        public Set<HeapVariable> getHeapDependencies() {
+            return _heapDependencies;
+        }
+
+        public Set<SootMethod> getAuxiliaryMethods() {
+            return _auxiliaryMethods;
+        }
+    }
+
+    // Analyzes the body of a method on a call path with the given incoming data, or returns
+    // the result of an earlier analysis with the same inputs (whichever unit it was for).
+    static UnitSummary getUnitSummary(Body body, Unit unit, DataMap parameterMap,
+                                      Set<SootMethod> excludeMethods) {
+        BodyAnalysisCache.Entry bodyAnalyses = BodyAnalysisCache.get(body);
+        Key key = new Key(bodyAnalyses, BODY_QUERY, parameterMap, excludeMethods, 0);
+
+        BodySummary summary = (BodySummary)lookup(key);
+        if (summary == null) {
+            summary = new BodySummary(new IntraproceduralConstraintAnalysis(
+                    bodyAnalyses, parameterMap, excludeMethods), bodyAnalyses);
+            store(key, summary);
+        }
+        return new UnitSummary(summary, bodyAnalyses.getUnitNumber(unit));
+    }
+
+    // The summary of an auxiliary method (analyzed at the given depth) whose return value is
+    // the given expression, or null if it has not been computed.
+    static ReturnSummary getReturnSummary(BodyAnalysisCache.Entry bodyAnalyses,
+            VariableExpression returnIdentifier, DataMap parameterMap,
+            Set<SootMethod> excludeMethods, int auxDepth) {
+        return (ReturnSummary)lookup(new Key(bodyAnalyses, returnIdentifier, parameterMap,
+                                             excludeMethods, auxDepth));
+    }
+
+    static void putReturnSummary(BodyAnalysisCache.Entry bodyAnalyses,
+            VariableExpression returnIdentifier, DataMap parameterMap,
+            Set<SootMethod> excludeMethods, int auxDepth, ReturnSummary summary) {
+        store(new Key(bodyAnalyses, returnIdentifier, parameterMap, excludeMethods, auxDepth),
+              summary);
+    }
+
+    private static Object lookup(Key key) {
+        synchronized (_entries) {
+            SoftReference<Object> reference = _entries.get(key);
+            Object value = (reference != null) ? reference.get() : null;
+            if (value != null) {
+                _numHits++;
+                return value;
+            }
+
+            if (reference != null) {
+                _numCleared++;
+                _entries.remove(key);
+            }
+            _numMisses++;
+            return null;
+        }
+    }
+
+    private static void store(Key key, Object value) {
+        synchronized (_entries) {
+            _entries.put(key, new SoftReference<Object>(value));
+        }
+    }
+
+    public static JsonObject getStatisticsJson() {
+        synchronized (_entries) {
+            JsonObject statisticsJson = new JsonObject();
+            statisticsJson.addProperty("Entries", _entries.size());
+            statisticsJson.addProperty("Hits", _numHits);
+            statisticsJson.addProperty("Misses", _numMisses);
+            statisticsJson.addProperty("ClearedByGc", _numCleared);
+            return statisticsJson;
+        }
+    }
+}
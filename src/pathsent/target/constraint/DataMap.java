@@ -6,33 +6,33 @@ import soot.Local;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
+
+// The data of the constraint analysis at a point of a method body.  The local and heap maps
+// are PersistentHashMaps, so copying a DataMap shares them and merging two DataMaps only
+// looks at the entries in which they differ.
 
 class DataMap {
     // Map of local variables to the expressions they might hold
-    public Map<Local, ExpressionSet> LocalMap;
+    public PersistentHashMap<Local, ExpressionSet> LocalMap;
 
     // Map of heap variables (spark nodes/points-to-sets) to expressions
-    public Map<HeapVariable, ExpressionSet> HeapMap;
+    public PersistentHashMap<HeapVariable, ExpressionSet> HeapMap;
 
     // Constraints that are held at a particular location in a method body
     public Predicate ControlFlowConstraint = null;
 
     public DataMap() {
-        LocalMap = new HashMap<Local, ExpressionSet>();
-        HeapMap = new HashMap<HeapVariable, ExpressionSet>();
+        LocalMap = new PersistentHashMap<Local, ExpressionSet>();
+        HeapMap = new PersistentHashMap<HeapVariable, ExpressionSet>();
         ControlFlowConstraint = null;
     }
 
     public DataMap(Map<Local, ExpressionSet> localMap,
             Map<HeapVariable, ExpressionSet> heapMap, Predicate constraint) {
-        LocalMap = new HashMap<Local, ExpressionSet>(localMap);
-        HeapMap = new HashMap<HeapVariable, ExpressionSet>(heapMap);
+        LocalMap = new PersistentHashMap<Local, ExpressionSet>(localMap);
+        HeapMap = new PersistentHashMap<HeapVariable, ExpressionSet>(heapMap);
         ControlFlowConstraint = constraint;
     }
 
@@ -45,11 +45,8 @@ class DataMap {
             return;
         }
 
-        this.LocalMap.clear();
-        this.HeapMap.clear();
-
-        this.LocalMap.putAll(other.LocalMap);
-        this.HeapMap.putAll(other.HeapMap);
+        this.LocalMap.assign(other.LocalMap);
+        this.HeapMap.assign(other.HeapMap);
         this.ControlFlowConstraint = other.ControlFlowConstraint;
 
         //Output.log("------ DataMap.copy() -------");
@@ -62,41 +59,12 @@ class DataMap {
             return;
         }
 
-        // Handle local variables
-        this.LocalMap.clear();
-        Set<Local> localVariables = new HashSet<Local>(in1.LocalMap.keySet());
-        localVariables.addAll(in2.LocalMap.keySet());
-
-        for (Local variable : localVariables) {
-            if (in1.LocalMap.containsKey(variable) && in2.LocalMap.containsKey(variable)) {
-                List<ExpressionSet> exprSetList = new ArrayList<ExpressionSet>();
-                exprSetList.add(in1.LocalMap.get(variable));
-                exprSetList.add(in2.LocalMap.get(variable));
-                this.LocalMap.put(variable, ExpressionSet.merge(exprSetList));
-            } else if (in1.LocalMap.containsKey(variable)) {
-                this.LocalMap.put(variable, new ExpressionSet(in1.LocalMap.get(variable)));
-            } else {
-                this.LocalMap.put(variable, new ExpressionSet(in2.LocalMap.get(variable)));
-            }
-        }
-
-        // Handle heap variables
-        this.HeapMap.clear();
-        Set<HeapVariable> heapVariables = new HashSet<HeapVariable>(in1.HeapMap.keySet());
-        heapVariables.addAll(in2.HeapMap.keySet());
-
-        for (HeapVariable variable : heapVariables) {
-            if (in1.HeapMap.containsKey(variable) && in2.HeapMap.containsKey(variable)) {
-                List<ExpressionSet> exprSetList = new ArrayList<ExpressionSet>();
-                exprSetList.add(in1.HeapMap.get(variable));
-                exprSetList.add(in2.HeapMap.get(variable));
-                this.HeapMap.put(variable, ExpressionSet.merge(exprSetList));
-            } else if (in1.HeapMap.containsKey(variable)) {
-                this.HeapMap.put(variable, new ExpressionSet(in1.HeapMap.get(variable)));
-            } else {
-                this.HeapMap.put(variable, new ExpressionSet(in2.HeapMap.get(variable)));
-            }
-        }
+        // Handle local and heap variables.  The expression sets in the maps are not modified,
+        // so a variable that is only in one of the maps keeps its expression set.
+        this.LocalMap.assign(
+                PersistentHashMap.union(in1.LocalMap, in2.LocalMap, DataMap::mergeValues));
+        this.HeapMap.assign(
+                PersistentHashMap.union(in1.HeapMap, in2.HeapMap, DataMap::mergeValues));
 
         // Handle constraints
         if (in1.ControlFlowConstraint != null
@@ -122,6 +90,10 @@ class DataMap {
         }
     }
 
+    private static ExpressionSet mergeValues(ExpressionSet exprSet1, ExpressionSet exprSet2) {
+        return ExpressionSet.merge(Arrays.asList(exprSet1, exprSet2));
+    }
+
     protected Predicate getSharedPredicateForMerge(Predicate in1, Predicate in2) {
         if (in1.equals(in2)) {
             return in1;
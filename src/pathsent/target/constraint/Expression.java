@@ -9,7 +9,9 @@ import soot.Type;
 
 import java.util.Set;
 
-// Immutable object to hold a boolean expression
+// Immutable object to hold a boolean expression.  Expressions are hash-consed (see
+// TermFactory): they are created through the of() factories of the subclasses, and equal
+// expressions are the same object.
 
 public abstract class Expression {
     public enum Operator {
@@ -23,19 +25,22 @@ public abstract class Expression {
     }
 
     private final Type _type;
+    private final int _hashCode;
 
-    protected Expression(Type type) {
+    // The hash code must be computed from the operator and the children of the expression.
+    protected Expression(Type type, int hashCode) {
         _type = type;
+        _hashCode = hashCode;
     }
 
     private static final VariableExpression TRUE =
-            new VariableExpression(new BooleanVariable(true));
+            VariableExpression.of(new BooleanVariable(true));
     private static final VariableExpression FALSE =
-            new VariableExpression(new BooleanVariable(false));
+            VariableExpression.of(new BooleanVariable(false));
     private static final VariableExpression NULL =
-            new VariableExpression(NullVariable.getInstance());
+            VariableExpression.of(NullVariable.getInstance());
     private static final VariableExpression EMPTY_STRING =
-            new VariableExpression(new StringVariable(""));
+            VariableExpression.of(new StringVariable(""));
 
     static VariableExpression getTrue() {
         return TRUE;
@@ -54,15 +59,15 @@ public abstract class Expression {
     }
 
     public boolean isTrue() {
-        return this.equals(TRUE);
+        return this == TRUE;
     }
 
     public boolean isFalse() {
-        return this.equals(FALSE);
+        return this == FALSE;
     }
 
     public boolean isNull() {
-        return this.equals(NULL);
+        return this == NULL;
     }
 
     public abstract Expression.Operator getOperator();
@@ -76,9 +81,25 @@ public abstract class Expression {
     public StringExpression toStringExpression() { return (StringExpression)this; }
 
     @Override public abstract String toString();
-    @Override public abstract Expression clone();
+
+    // Structural equality, used when the expression is interned.  The children of the
+    // expressions are compared by reference, since they are interned already.
     @Override public abstract boolean equals(Object obj);
-    @Override public abstract int hashCode();
+
+    // Expressions are immutable and unique.
+    @Override
+    public Expression clone() {
+        return this;
+    }
+
+    @Override
+    public final int hashCode() {
+        return _hashCode;
+    }
+
+    protected static int hash(Expression.Operator operator, Expression left, Expression right) {
+        return 31 * (31 * operator.ordinal() + left.hashCode()) + right.hashCode();
+    }
 
     public abstract boolean contains(Expression other);
     public abstract boolean isEquivalentTo(Expression other);
@@ -292,7 +313,7 @@ public abstract class Expression {
         }
 
         if (isStringOperator(operator)) {
-            return new StringExpression(operator, left, right);
+            return StringExpression.of(operator, left, right);
         } else {
             // Fix booleans here (Soot combines int and boolean constants into an IntConstant).
             if (left.getType() instanceof BooleanType
@@ -311,7 +332,7 @@ public abstract class Expression {
                 left = leftValue == 1 ? Expression.getTrue() : Expression.getFalse();
             }
 
-            return new ArithmeticExpression(operator, left, right);
+            return ArithmeticExpression.of(operator, left, right);
         }
     }
 
@@ -9,16 +9,21 @@ import java.util.Set;
 public final class ExpressionPredicate extends Predicate {
     private final Expression _expression;
 
-    public ExpressionPredicate(Expression expression) {
+    private ExpressionPredicate(Expression expression) {
+        super(expression.hashCode());
         _expression = expression;
     }
 
-    public ExpressionPredicate(Variable variable) {
-        _expression = new VariableExpression(variable);
+    public static ExpressionPredicate of(Expression expression) {
+        return TermFactory.intern(new ExpressionPredicate(expression));
     }
 
-    public ExpressionPredicate(Variable variable, Type type) {
-        _expression = new VariableExpression(variable, type);
+    public static ExpressionPredicate of(Variable variable) {
+        return of(VariableExpression.of(variable));
+    }
+
+    public static ExpressionPredicate of(Variable variable, Type type) {
+        return of(VariableExpression.of(variable, type));
     }
 
     @Override
@@ -81,19 +86,16 @@ public final class ExpressionPredicate extends Predicate {
         return constraints.toString();
     }
 
-    @Override
-    public Predicate clone() {
-        return new ExpressionPredicate(_expression);
-    }
-
     @Override
     public boolean equals(Object obj) {
-        if (obj == null || !(obj instanceof ExpressionPredicate)) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof ExpressionPredicate)) {
             return false;
         }
 
-        ExpressionPredicate other = (ExpressionPredicate)obj;
-        return _expression.equals(other.getExpression());
+        return _expression == ((ExpressionPredicate)obj).getExpression();
     }
 
     @Override
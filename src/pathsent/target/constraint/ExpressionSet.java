@@ -76,7 +76,7 @@ class ExpressionSet {
 
         for (Expression expr : _expressions) {
             pred = Predicate.combine(Predicate.Operator.OR,
-                                     pred, new ExpressionPredicate(expr));
+                                     pred, ExpressionPredicate.of(expr));
         }
 
         return pred;
@@ -87,8 +87,8 @@ class ExpressionSet {
 
         for (Expression expr : _expressions) {
             pred = Predicate.combine(Predicate.Operator.OR,
-                    pred, new UnaryPredicate(Predicate.Operator.NOT,
-                                             new ExpressionPredicate(expr)));
+                    pred, UnaryPredicate.of(Predicate.Operator.NOT,
+                                            ExpressionPredicate.of(expr)));
         }
 
         return pred;
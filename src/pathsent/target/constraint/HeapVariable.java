@@ -10,22 +10,29 @@ import soot.Scene;
 import soot.SootField;
 import soot.jimple.FieldRef;
 import soot.jimple.InstanceFieldRef;
+import soot.jimple.toolkits.pointer.DumbPointerAnalysis;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 // Encapsulates different representations of a value that is stored in a field (i.e. heap)
 // Note: Points-to set is null for fields holding primitive types, so the field itself is
 //       used as the identifier for static cases, and the pointsto + field for instance cases.
+//       Without a points-to analysis (e.g. with the CHA call graph profile) aliasing is
+//       field-based: every access to the same field refers to the same heap variable.
 
 public class HeapVariable extends SymbolicVariable implements Dependence {
     private final PointsToSet _pointsTo;
     private final SootField _field;
+    private final int _hashCode;
     private final Expression _expr;
 
     public HeapVariable(FieldRef fieldRef) {
         super(fieldRef.getField().getType());
 
-        if (fieldRef instanceof InstanceFieldRef) {
+        if (!hasPointsToAnalysis()) {
+            _pointsTo = null;
+            _field = fieldRef.getField();
+        } else if (fieldRef instanceof InstanceFieldRef) {
             InstanceFieldRef instanceRef = (InstanceFieldRef)fieldRef;
 
             PointsToSet pointsTo = Scene.v().getPointsToAnalysis().reachingObjects(
@@ -51,7 +58,9 @@ public class HeapVariable extends SymbolicVariable implements Dependence {
         heapIdentifier += ">";
         setSymbol(heapIdentifier);
 
-        _expr = new VariableExpression(this);
+        // The hash is needed to intern the expression
+        _hashCode = computeHashCode();
+        _expr = VariableExpression.of(this);
     }
 
     //public HeapVariable(PointsToSet pointsTo, SootField field) {
@@ -73,7 +82,13 @@ public class HeapVariable extends SymbolicVariable implements Dependence {
     }
 
     public boolean hasPointsToSet() {
-        return !_pointsTo.isEmpty();
+        return _pointsTo != null && !_pointsTo.isEmpty();
+    }
+
+    // Soot hands out a DumbPointerAnalysis (everything may alias) if none was computed.
+    private static boolean hasPointsToAnalysis() {
+        return Scene.v().hasPointsToAnalysis()
+                && !(Scene.v().getPointsToAnalysis() instanceof DumbPointerAnalysis);
     }
 
     public Expression getExpression() {
@@ -121,6 +136,10 @@ public class HeapVariable extends SymbolicVariable implements Dependence {
 
     @Override
     public int hashCode() {
+        return _hashCode;
+    }
+
+    private int computeHashCode() {
         if (this.hasPointsToSet()) {
             return new HashCodeBuilder().append(_pointsTo).append(_field).toHashCode();
             //return _pointsTo.hashCode() * 19 + _field.hashCode();
@@ -1,29 +1,39 @@
 package pathsent.target.constraint;
 
+import pathsent.Budget;
 import pathsent.Output;
-import pathsent.target.StaticAnalysisTimeoutException;
+import pathsent.PathSentStaticAnalysis;
+import pathsent.target.BodyAnalysisCache;
 
 import soot.*;
 import soot.jimple.*;
 import soot.shimple.*;
-import soot.toolkits.graph.BriefUnitGraph;
 import soot.toolkits.graph.UnitGraph;
 import soot.toolkits.scalar.ForwardBranchedFlowAnalysis;
-import soot.toolkits.scalar.SimpleLiveLocals;
 import soot.toolkits.scalar.ValueUnitPair;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
 class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<DataMap> {
     private final UnitGraph _cfg;
+    private final BodyAnalysisCache.Entry _bodyAnalyses;
 
-    // Track number of times a stmt has been processed ensure convergence
-    private final Map<Unit, Integer> _flowThroughCounts = new HashMap<Unit, Integer>();
-    private static final int MAX_FLOW_THROUGH_COUNT = 3;
+    // Track number of times a stmt has been processed (by unit number).  The data at a loop
+    // head is widened once the head has been processed Config.WideningDelay times, which
+    // makes the analysis converge (see widenAtLoopHead()).
+    private final int[] _flowThroughCounts;
 
-    // Live local analysis to avoid propagating values that are dead
-    private final SimpleLiveLocals _liveLocalsAnalysis;
+    // Data at each loop head after its last pass, and number of passes in which widening
+    // changed it (by unit number).  Widening changes the data a bounded number of times, so
+    // hitting MAX_WIDENING_COUNT means something is wrong; the data is then kept as is.
+    private final DataMap[] _loopHeadData;
+    private final int[] _wideningCounts;
+    private static final int MAX_WIDENING_COUNT = 16;
+
+    // Values that widening gives to variables, by placeholder name
+    private final Map<String, ExpressionSet> _widenedValues =
+            new HashMap<String, ExpressionSet>();
 
     // Stores the data values that are passed to this method (jumps start data flow analysis)
     private final DataMap _parameterMap;
@@ -38,27 +48,35 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
     // Access to heap variables that may need to be resolved via event chains
     private final Set<HeapVariable> _heapDependencies = new HashSet<HeapVariable>();
 
+    // Methods analyzed as auxiliary methods of this one, directly or not
+    private final Set<SootMethod> _auxiliaryMethods = new HashSet<SootMethod>();
+
     // Track read heap variables to constrain multiple reads
     private final Set<HeapVariable> _readHeapVariables = new HashSet<HeapVariable>();
 
-    public IntraproceduralConstraintAnalysis(UnitGraph graph, DataMap parameterMap,
-            Set<SootMethod> excludeMethods) {
-        this(graph, parameterMap, excludeMethods, 0);
+    // The CFG and live locals come from the BodyAnalysisCache entry of the method's body.
+    public IntraproceduralConstraintAnalysis(BodyAnalysisCache.Entry bodyAnalyses,
+            DataMap parameterMap, Set<SootMethod> excludeMethods) {
+        this(bodyAnalyses, parameterMap, excludeMethods, 0);
     }
 
-    public IntraproceduralConstraintAnalysis(UnitGraph graph, DataMap parameterMap,
-            Set<SootMethod> excludeMethods, int auxDepth) {
-        super(graph);
+    public IntraproceduralConstraintAnalysis(BodyAnalysisCache.Entry bodyAnalyses,
+            DataMap parameterMap, Set<SootMethod> excludeMethods, int auxDepth) {
+        super(bodyAnalyses.getCfg());
+        UnitGraph graph = bodyAnalyses.getCfg();
         _cfg = graph;
+        _bodyAnalyses = bodyAnalyses;
         //Output CFG Here
         _parameterMap = parameterMap;
         _excludeMethods = excludeMethods;
         _auxDepth = auxDepth;
 
-        _cfg.getBody().getUnits().forEach(u -> { _flowThroughCounts.put(u, 0); });
-        _liveLocalsAnalysis = new SimpleLiveLocals(graph);
+        _flowThroughCounts = new int[bodyAnalyses.getNumUnits()];
+        _loopHeadData = new DataMap[bodyAnalyses.getNumUnits()];
+        _wideningCounts = new int[bodyAnalyses.getNumUnits()];
 
-        Output.debug("IntraproceduralConstraintAnalysis: " + graph.getBody().getMethod());
+        Output.debug(Output.Subsystem.Constraint,
+                () -> "IntraproceduralConstraintAnalysis: " + graph.getBody().getMethod());
         //if (graph.getBody().getMethod().getSignature().contains("File")) {
             //Output.debug("IntraproceduralConstraintAnalysis: "
                     //+ graph.getBody().getMethod());
@@ -72,6 +90,10 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         return _heapDependencies;
     }
 
+    public Set<SootMethod> getAuxiliaryMethods() {
+        return _auxiliaryMethods;
+    }
+
     protected DataMap newInitialFlow() {
         //return _parameterMap.clone();
         return new DataMap();
@@ -96,17 +118,12 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             List<DataMap> branchOuts) {
         // In cases where the constraints are complex (e.g. in a long method with many loops),
         // make sure that we detect timeouts and stop analysis in for the current path.
-        if (Thread.interrupted()) {
-            throw new StaticAnalysisTimeoutException("ConstraintAnalysis");
-        }
+        Budget.current().check("ConstraintAnalysis");
 
-        // In future, may want to look at expressions that have changed and remove them
-        if (_flowThroughCounts.get(s) >= MAX_FLOW_THROUGH_COUNT) {
-            // Log when we hit the maximum iteration limit to prevent infinite loops
-            if (_flowThroughCounts.get(s) == MAX_FLOW_THROUGH_COUNT) {
-                Output.debug("Hit max iterations (" + MAX_FLOW_THROUGH_COUNT + ") for statement: " + s);
-            }
-            return;
+        int unitNumber = _bodyAnalyses.getUnitNumber(s);
+        _flowThroughCounts[unitNumber]++;
+        if (_bodyAnalyses.isLoopHead(s)) {
+            widenAtLoopHead(in, s, unitNumber);
         }
 
         //if (_cfg.getBody().getMethod().getSignature().contains("onCreate")) {
@@ -136,7 +153,6 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         //    printDataMapDebug(in);
         //}
 
-        _flowThroughCounts.put(s, _flowThroughCounts.get(s) + 1);
         _constraintStmtSwitch.initialize(in, fallOut, branchOuts);
         s.apply(_constraintStmtSwitch);
 
@@ -151,6 +167,79 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         removeDeadLocals(s, fallOut, branchOuts);
     }
 
+    // Widens the data before a loop head (in place).  The first Config.WideningDelay passes
+    // over the head leave the data as is, so values that stabilize within a few iterations
+    // (such as flags) stay precise.  In later passes, a variable whose value differs from the
+    // previous pass gets a placeholder for its value in the loop instead, and the control flow
+    // constraint is reduced to the conjuncts it shares with the previous pass.  Values only
+    // change to placeholders and the constraint only loses conjuncts, so the data at the head
+    // stops changing after a few passes, and with it the data in the loop.
+    private void widenAtLoopHead(DataMap in, Unit s, int unitNumber) {
+        DataMap previous = _loopHeadData[unitNumber];
+        if (previous != null
+                && _flowThroughCounts[unitNumber] > PathSentStaticAnalysis.Config.WideningDelay) {
+            if (_wideningCounts[unitNumber] >= MAX_WIDENING_COUNT) {
+                // Log when we hit the limit (once) to find where widening does not converge
+                if (_wideningCounts[unitNumber] == MAX_WIDENING_COUNT) {
+                    Output.debug(Output.Subsystem.Constraint, () -> "Hit max widenings ("
+                            + MAX_WIDENING_COUNT + ") for loop head: " + s);
+                    _wideningCounts[unitNumber]++;
+                }
+                in.copy(previous);
+                return;
+            }
+
+            widenValues(in.LocalMap, previous.LocalMap, s, Local::getType);
+            widenValues(in.HeapMap, previous.HeapMap, s, HeapVariable::getType);
+            in.ControlFlowConstraint = widenConstraint(in.ControlFlowConstraint,
+                                                       previous.ControlFlowConstraint);
+
+            if (!in.equals(previous)) {
+                _wideningCounts[unitNumber]++;
+            }
+        }
+
+        _loopHeadData[unitNumber] = in.clone();
+    }
+
+    private <K> void widenValues(PersistentHashMap<K, ExpressionSet> values,
+            PersistentHashMap<K, ExpressionSet> previousValues, Unit s,
+            Function<K, Type> getType) {
+        // The iteration runs over the entries before the changes.
+        values.forEach((variable, value) -> {
+            ExpressionSet previousValue = previousValues.get(variable);
+            if (value == previousValue || value.equals(previousValue)) {
+                return;
+            }
+
+            SootMethod method = _cfg.getBody().getMethod();
+            String loopString = "Loop<" + method.getDeclaringClass().getShortName() + "."
+                    + method.getName() + "(){" + s.hashCode() + "}." + variable + ">";
+            values.put(variable, _widenedValues.computeIfAbsent(loopString,
+                    name -> new ExpressionSet(VariableExpression.of(
+                            new PlaceholderVariable(name, getType.apply(variable))))));
+        });
+    }
+
+    // The conjuncts of the constraint that the previous constraint also has (null if none)
+    private Predicate widenConstraint(Predicate constraint, Predicate previousConstraint) {
+        if (constraint == previousConstraint) {
+            return constraint;
+        } else if (constraint == null || previousConstraint == null) {
+            return null;
+        }
+
+        Set<Predicate> conjuncts = constraint.getConjuncts();
+        Predicate widenedConstraint = null;
+        for (Predicate conjunct : previousConstraint.getConjuncts()) {
+            if (conjuncts.contains(conjunct)) {
+                widenedConstraint = Predicate.combine(Predicate.Operator.AND,
+                                                      widenedConstraint, conjunct);
+            }
+        }
+        return widenedConstraint;
+    }
+
     protected void printDataMapDebug(DataMap dataMap) {
         // Debug logging disabled for performance
         //dataMap.LocalMap.forEach((x,y) -> { Output.debug(String.format("Local: %8s -> %s", x, y)); });
@@ -163,20 +252,18 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
     }
 
     protected void removeDeadLocals(Unit s, List<DataMap> fallOut, List<DataMap> branchOuts) {
-        // Use SimpleLiveLocals to remove dead variables from the LocalMap 
-        Set<Local> liveLocals = new HashSet<Local>(_liveLocalsAnalysis.getLiveLocalsAfter(s));
-
-        // Keep the locals used in this statement, in case we need to reference them when
-        // processing the unit later (esp. for the target unit).
-        liveLocals.addAll(s.getUseBoxes().stream()
-                .filter(v -> v.getValue() instanceof Local)
-                .map(v -> (Local)v.getValue())
-                .collect(Collectors.toList()));
-
-        // Remove the non-live locals from each data map.
-        fallOut.forEach(dataMap -> dataMap.LocalMap.keySet().retainAll(liveLocals));
-        branchOuts.forEach(dataMap -> dataMap.LocalMap.keySet().retainAll(liveLocals));
-    } 
+        // Use SimpleLiveLocals to remove dead variables from the LocalMap.  Keep the locals
+        // used in this statement, in case we need to reference them when processing the unit
+        // later (esp. for the target unit).
+        Set<Local> liveLocals = _bodyAnalyses.getLiveOrUsedLocals(s);
+
+        // Remove the non-live locals from each data map.  Maps without dead locals are not
+        // copied.
+        fallOut.forEach(
+                dataMap -> dataMap.LocalMap.removeKeysIf(l -> !liveLocals.contains(l)));
+        branchOuts.forEach(
+                dataMap -> dataMap.LocalMap.removeKeysIf(l -> !liveLocals.contains(l)));
+    }
 
     protected ExpressionSet resolveValue(Value value, DataMap dataMap) {
         RHSValueResolver resolver = new RHSValueResolver(dataMap);
@@ -233,41 +320,69 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             }
         }
 
-        // Analyze constraints in auxiliary method
-        UnitGraph auxCfg = new BriefUnitGraph(auxMethod.getActiveBody());
-        IntraproceduralConstraintAnalysis auxIntraAnalysis =
-                new IntraproceduralConstraintAnalysis(
-                        auxCfg, parameterMap, _excludeMethods, _auxDepth + 1);
+        // Instantiate the summary of the auxiliary method if that is equivalent to analyzing
+        // it with these arguments.  Otherwise analyze it, unless it has been analyzed with the
+        // same arguments before.
+        BodyAnalysisCache.Entry auxBodyAnalyses =
+                BodyAnalysisCache.get(auxMethod.getActiveBody());
+        ConstraintSummaryCache.ReturnSummary auxSummary = AuxiliaryMethodSummary.instantiate(
+                auxBodyAnalyses, _auxDepth + 1, parameterMap, returnIdentifier,
+                _excludeMethods);
+        if (auxSummary == null) {
+            auxSummary = ConstraintSummaryCache.getReturnSummary(auxBodyAnalyses,
+                    returnIdentifier, parameterMap, _excludeMethods, _auxDepth + 1);
+        }
+        if (auxSummary == null) {
+            IntraproceduralConstraintAnalysis auxIntraAnalysis =
+                    new IntraproceduralConstraintAnalysis(
+                            auxBodyAnalyses, parameterMap, _excludeMethods, _auxDepth + 1);
+            auxSummary = auxIntraAnalysis.getReturnSummary(returnIdentifier);
+            ConstraintSummaryCache.putReturnSummary(auxBodyAnalyses, returnIdentifier,
+                    parameterMap, _excludeMethods, _auxDepth + 1, auxSummary);
+        }
+
+        // Track all heap dependencies encountered
+        _heapDependencies.addAll(auxSummary.getHeapDependencies());
+        _auxiliaryMethods.add(auxMethod);
+        _auxiliaryMethods.addAll(auxSummary.getAuxiliaryMethods());
+
+        return auxSummary.getReturnConstraint();
+    }
+
+    // The constraints of the method (analyzed as an auxiliary method) that lead to each value
+    // it returns, with the returned value named by the given identifier.
+    ConstraintSummaryCache.ReturnSummary getReturnSummary(
+            VariableExpression returnIdentifier) {
+        SootMethod method = _cfg.getBody().getMethod();
 
         // Track all heap dependencies encountered
-        _heapDependencies.addAll(auxIntraAnalysis.getHeapDependencies());
+        Set<HeapVariable> heapDependencies = new HashSet<HeapVariable>(_heapDependencies);
 
         // TODO Merge auxilliary heap map with current heap map
 
         // If auxilliary method returns a value, merge auxiliary constraints with current
         // constraints.
-        if (auxMethod.getReturnType() != null
-                && !auxMethod.getReturnType().equals(VoidType.v())) {
+        if (method.getReturnType() != null
+                && !method.getReturnType().equals(VoidType.v())) {
             // Track the values that the returned variable can take and the constraints that
             // lead there.
             Predicate returnPred = null;
 
-            for (Unit tailUnit : auxCfg.getTails()) {
+            for (Unit tailUnit : _cfg.getTails()) {
                 if (tailUnit instanceof ThrowStmt) {
                     continue;
                 }
 
                 if (!(tailUnit instanceof ReturnStmt)) {
                     Output.error("Method returns value but no return statement found: "
-                            + auxMethod);
+                            + method);
                     continue;
                 }
 
                 ReturnStmt returnStmt = (ReturnStmt)tailUnit;
-                DataMap returnDataMap = auxIntraAnalysis.getFlowBefore(returnStmt);
+                DataMap returnDataMap = getFlowBefore(returnStmt);
 
-                ExpressionSet returnOp = auxIntraAnalysis.resolveValue(
-                        returnStmt.getOp(), returnDataMap);
+                ExpressionSet returnOp = resolveValue(returnStmt.getOp(), returnDataMap);
                 if (returnOp != null) {
                     // Generate constraint for the return value of auxiliary method.
                     Expression.Operator returnExprOperator =
@@ -284,10 +399,12 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                 }
             }
 
-            return returnPred;
+            return new ConstraintSummaryCache.ReturnSummary(
+                    returnPred, heapDependencies, _auxiliaryMethods);
         }
 
-        return null;
+        return new ConstraintSummaryCache.ReturnSummary(
+                null, heapDependencies, _auxiliaryMethods);
     }
 
     private ConstraintStmtSwitch _constraintStmtSwitch = new ConstraintStmtSwitch();
@@ -325,8 +442,10 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                     @Override
                     public void caseLocal(Local def) {
                         dataMap.LocalMap.put(def, rightOp);
-                        Output.log("  assign def = " + rightOp);
-                        Output.log("    type: " + def.getType().getClass().getName());
+                        Output.trace(Output.Subsystem.Constraint,
+                                () -> "  assign def = " + rightOp);
+                        Output.trace(Output.Subsystem.Constraint,
+                                () -> "    type: " + def.getType().getClass().getName());
                     }
                     @Override
                     public void caseArrayRef(ArrayRef v) {
@@ -399,8 +518,9 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         }
         @Override
         public void caseIfStmt(IfStmt stmt) {
-            Output.log("IfStmt: " + stmt);
-            Output.log("  branch targets: " + stmt.getUnitBoxes().size());
+            Output.trace(Output.Subsystem.Constraint, () -> "IfStmt: " + stmt);
+            Output.trace(Output.Subsystem.Constraint,
+                    () -> "  branch targets: " + stmt.getUnitBoxes().size());
 
             Predicate condition = resolveConstraint(stmt.getCondition(), _in);
             DataMap branchDataMap = _branchOuts.get(0);
@@ -414,9 +534,11 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             fallDataMap.ControlFlowConstraint = Predicate.combine(Predicate.Operator.AND,
                     fallDataMap.ControlFlowConstraint, notCondition);
 
-            Output.log("  if constraint: " + condition);
-            Output.log(" if not constraint: " + notCondition);
-            Output.log("    new constraints: " + branchDataMap.ControlFlowConstraint);
+            Output.trace(Output.Subsystem.Constraint, () -> "  if constraint: " + condition);
+            Output.trace(Output.Subsystem.Constraint,
+                    () -> " if not constraint: " + notCondition);
+            Output.trace(Output.Subsystem.Constraint,
+                    () -> "    new constraints: " + branchDataMap.ControlFlowConstraint);
         }
         @Override
         public void caseLookupSwitchStmt(LookupSwitchStmt stmt) {
@@ -433,7 +555,7 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                 int lookupValue = stmt.getLookupValue(i);
                 ExpressionSet lookupExprSet = ExpressionSet.combine(Expression.Operator.EQ,
                         keyExprSet,
-                        new VariableExpression(new NumberVariable(lookupValue)));
+                        VariableExpression.of(new NumberVariable(lookupValue)));
                 Predicate lookUpPred = lookupExprSet.toPredicate();
 
                 _branchOuts.get(i).ControlFlowConstraint = Predicate.combine(
@@ -480,7 +602,7 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                 int switchValue = stmt.getLowIndex() + i;
                 ExpressionSet switchExprSet = ExpressionSet.combine(Expression.Operator.EQ,
                         keyExprSet,
-                        new VariableExpression(new NumberVariable(switchValue)));
+                        VariableExpression.of(new NumberVariable(switchValue)));
                 Predicate switchPred = switchExprSet.toPredicate();
                 //Output.debug("table constraint: " + switchPred);
 
@@ -493,11 +615,11 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             int defaultIndex = stmt.getHighIndex() - stmt.getLowIndex() + 1;
             Predicate lowIndexPred = ExpressionSet.combine(
                     Expression.Operator.LT, keyExprSet,
-                    new VariableExpression(new NumberVariable(stmt.getLowIndex()))
+                    VariableExpression.of(new NumberVariable(stmt.getLowIndex()))
                 ).toPredicate();
             Predicate highIndexPred = ExpressionSet.combine(
                     Expression.Operator.GT, keyExprSet,
-                    new VariableExpression(new NumberVariable(stmt.getHighIndex()))
+                    VariableExpression.of(new NumberVariable(stmt.getHighIndex()))
                 ).toPredicate();
             Predicate defaultPred = Predicate.combine(Predicate.Operator.AND,
                     lowIndexPred, highIndexPred);
@@ -571,167 +693,119 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             }
         }
 
-        private void handleInvokeExpr(InvokeExpr expr) {
-            SootMethod method = expr.getMethod();
+        // Sets the value of a call to a modeled library method (see ApiModelRegistry).
+        // Returns false if the operands that the model needs are unknown.
+        private boolean handleModeledInvokeExpr(InvokeExpr expr, ApiModelRegistry.Model model) {
             SootMethodRef methodRef = expr.getMethodRef();
+            InstanceInvokeExpr instanceExpr =
+                    (expr instanceof InstanceInvokeExpr) ? (InstanceInvokeExpr)expr : null;
+            ExpressionSet base = (instanceExpr != null)
+                    ? resolveValue(instanceExpr.getBase(), _in) : null;
+            ExpressionSet op1 = (expr.getArgCount() > 0)
+                    ? resolveValue(expr.getArg(0), _in) : null;
+
+            switch (model.getKind()) {
+                case METHOD_CALL_ON_ARGUMENT:
+                    if (op1 == null) {
+                        return false;
+                    }
 
-            if (methodRef.getSignature().equals("<android.telephony.SmsMessage: "
-                        + "android.telephony.SmsMessage createFromPdu(byte[])>")) {
-                ExpressionSet op1 = resolveValue(expr.getArg(0), _in);
-                if (op1 != null) {
                     _data = ExpressionSet.transform(op1, e -> {
                         if (e.isVariable()) {
-                            return new VariableExpression(
+                            return VariableExpression.of(
                                     new MethodCallVariable(expr, e.getVariable()));
-                            //return new VariableExpression(
-                            //        "<SmsMessage>(" + e.getVariable() + ")",
-                            //        methodRef.returnType());
                         } else {
-                            return new VariableExpression(new MethodCallVariable(expr));
-                            //return new VariableExpression("<SmsMessage>",
-                            //        methodRef.returnType());
+                            return VariableExpression.of(new MethodCallVariable(expr));
                         }
                     });
+                    return true;
 
-                    return;
-                }
-
-            } else if (methodRef.getSignature().startsWith(
-                       "<android.os.Bundle: java.lang.Object get(java.lang.String")) {
-                // TODO: handle other Bundle "get" methods
-                InstanceInvokeExpr instanceExpr = (InstanceInvokeExpr)expr;
-                ExpressionSet base = resolveValue(instanceExpr.getBase(), _in);
-                ExpressionSet op1 = resolveValue(instanceExpr.getArg(0), _in);
+                case KEY_VALUE_ACCESS:
+                    if (base == null || op1 == null) {
+                        return false;
+                    }
 
-                if (base != null && op1 != null) {
                     List<ExpressionSet> results = new ArrayList<ExpressionSet>();
                     for (Expression baseExpr : base.getExpressions()) {
                         if (!baseExpr.isVariable()) {
-                            results.add(new ExpressionSet(new VariableExpression(
+                            results.add(new ExpressionSet(VariableExpression.of(
                                     new KeyValueAccessVariable(null, null,
-                                            KeyValueAccessVariable.DatabaseType.BUNDLE,
+                                            model.getDatabaseType(),
                                             expr.getMethod().getReturnType()))));
                             continue;
                         }
 
                         ExpressionSet partialResult = ExpressionSet.transform(op1,  e -> {
-                            if (e.isVariable()) {
-                                return new VariableExpression(new KeyValueAccessVariable(
-                                        baseExpr.getVariable(), e.getVariable(),
-                                        KeyValueAccessVariable.DatabaseType.BUNDLE,
-                                        expr.getMethod().getReturnType()));
-                            } else {
-                                return new VariableExpression(new KeyValueAccessVariable(
-                                        baseExpr.getVariable(), null,
-                                        KeyValueAccessVariable.DatabaseType.BUNDLE,
-                                        expr.getMethod().getReturnType()));
-                            }
+                            Variable keyVariable = e.isVariable() ? e.getVariable() : null;
+                            return VariableExpression.of(new KeyValueAccessVariable(
+                                    baseExpr.getVariable(), keyVariable,
+                                    model.getDatabaseType(),
+                                    expr.getMethod().getReturnType()));
                         });
                         results.add(partialResult);
                     }
 
                     _data = ExpressionSet.merge(results);
-                    return;
-                }
+                    return true;
 
-            } else if (methodRef.getSignature().startsWith(
-                           "<android.content.Context: java.lang.String getString(int")
-                        || methodRef.getSignature().equals(
-                           "<android.content.Context: java.lang.CharSequence getText(int)>")) {
-                InstanceInvokeExpr instanceExpr = (InstanceInvokeExpr)expr;
-                ExpressionSet op1 = resolveValue(instanceExpr.getArg(0), _in);
+                case STRING_RESOURCE:
+                    if (op1 == null) {
+                        return false;
+                    }
 
-                if (op1 != null) {
                     _data = ExpressionSet.transform(op1,  e -> {
                         Variable opVariable = e.isVariable() ? e.getVariable() : null;
-                        return new VariableExpression(new KeyValueAccessVariable(
+                        return VariableExpression.of(new KeyValueAccessVariable(
                                 new PlaceholderVariable("Context",
                                     RefType.v("android.content.Context")),
                                 opVariable,
                                 KeyValueAccessVariable.DatabaseType.STRING_TABLE,
                                 RefType.v("java.lang.String")));
                     });
-                    return;
-                }
+                    return true;
 
-            } else if (methodRef.getSignature().startsWith(
-                       "<java.lang.StringBuilder: java.lang.StringBuilder append(")) {
-                InstanceInvokeExpr instanceExpr = (InstanceInvokeExpr)expr;
-                ExpressionSet op1 = resolveValue(instanceExpr.getBase(), _in);
-                ExpressionSet op2 = resolveValue(instanceExpr.getArg(0), _in);
+                case APPEND:
+                    if (base == null || op1 == null) {
+                        return false;
+                    }
 
-                if (op1 != null && op2 != null) {
-                    _data = ExpressionSet.combine(Expression.Operator.APPEND, op1, op2);
-                    return;
-                }
+                    _data = ExpressionSet.combine(Expression.Operator.APPEND, base, op1);
+                    return true;
 
-            } else if (methodRef.getSignature().endsWith("java.lang.String toString()>")
-                        || methodRef.getSignature().endsWith("char[] toCharArray()>")) {
-                InstanceInvokeExpr instanceExpr = (InstanceInvokeExpr)expr;
-                _data = resolveValue(instanceExpr.getBase(), _in);
-                return;
+                case RECEIVER_VALUE:
+                    if (instanceExpr == null) {
+                        return false;
+                    }
 
-            } else if (methodRef.getSignature().equals(
-                           "<java.lang.String: boolean equals(java.lang.Object)>")
-                        || methodRef.getSignature().equals(
-                            "<java.lang.String: boolean contains(java.lang.CharSequence)>")) {
-                String returnString = "Return<" + methodRef.declaringClass().getShortName()
-                        + "." + methodRef.name() + "(){" + expr.hashCode() + "}>";
+                    _data = base;
+                    return true;
 
-                VariableExpression returnExpr = new VariableExpression(
-                        new PlaceholderVariable(returnString, BooleanType.v()));
-                _data = new ExpressionSet(returnExpr);
-                return;
-            } else if (methodRef.getSignature().endsWith(
-                        "boolean equals(java.lang.Object)>")) {
-                String returnString = "Return<" + methodRef.declaringClass().getShortName()
-                        + "." + methodRef.name() + "(){" + expr.hashCode() + "}>";
-                VariableExpression returnExpr = new VariableExpression(
-                        new PlaceholderVariable(returnString, BooleanType.v()));
+                case COMPARISON:
+                    String returnString = "Return<" + methodRef.declaringClass().getShortName()
+                            + "." + methodRef.name() + "(){" + expr.hashCode() + "}>";
+                    _data = new ExpressionSet(VariableExpression.of(
+                            new PlaceholderVariable(returnString, BooleanType.v())));
+                    return true;
 
-                _data = new ExpressionSet(returnExpr);
-                return;
+                default:
+                    return false;
+            }
+        }
+
+        private void handleInvokeExpr(InvokeExpr expr) {
+            SootMethod method = expr.getMethod();
+            SootMethodRef methodRef = expr.getMethodRef();
 
-            // Handle permission requests.
-            //} else if (methodRef.getSignature().endsWith("int checkSelfPermission("
-            //            + "android.content.Context,java.lang.String)>")) {
-            //    ExpressionSet permissionArg = resolveValue(expr.getArg(1), _in);
-            //    if (permissionArg != null) {
-            //        _data = ExpressionSet.transform(permissionArg, e -> {
-            //            if (e.isVariable()) {
-            //                return new VariableExpression(new PlaceholderVariable(
-            //                        "Permission<"
-            //                        + ((ConstantVariable)e.getVariable()).getValue() + ">",
-            //                        IntType.v()));
-            //            } else {
-            //                return e;
-            //            }
-            //        });
-            //        return;
-            //    }
-
-            //} else if (methodRef.getSignature().contains("int checkPermission("
-            //                + "java.lang.String")
-            //            || methodRef.getSignature().contains("int checkCallingPermission("
-            //                + "java.lang.String")) {
-            //    ExpressionSet permissionArg = resolveValue(expr.getArg(0), _in);
-            //    if (permissionArg != null) {
-            //        _data = ExpressionSet.transform(permissionArg, e -> {
-            //            if (e.isVariable() && e.getVariable().isConstant()) {
-            //                return new VariableExpression(new PlaceholderVariable(
-            //                        "Permission<"
-            //                        + ((ConstantVariable)e.getVariable()).getValue() + ">",
-            //                        IntType.v()));
-            //            } else {
-            //                return e;
-            //            }
-            //        });
-            //        return;
-            //    }
+            ApiModelRegistry.Model model = ApiModelRegistry.getValueModel(methodRef);
+            if (model != null) {
+                if (handleModeledInvokeExpr(expr, model)) {
+                    return;
+                }
 
             // Only process auxiliary methods for application methods
             } else if (method.getDeclaringClass().isApplicationClass()
-                        && !_excludeMethods.contains(method) && _auxDepth == 0) {
+                        && !_excludeMethods.contains(method)
+                        && _auxDepth < PathSentStaticAnalysis.Config.AuxiliaryMethodDepth) {
                 String returnString = "Return<" + methodRef.declaringClass().getShortName()
                         + "." + methodRef.name() + "(){" + expr.hashCode() + "}>";
 
@@ -751,7 +825,7 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                     }
                 }
 
-                VariableExpression returnIdentifier = new VariableExpression(
+                VariableExpression returnIdentifier = VariableExpression.of(
                         new PlaceholderVariable(returnString,
                             expr.getMethod().getReturnType()));
                 _data = new ExpressionSet(returnIdentifier);
@@ -776,10 +850,10 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                             //Output.debug("arg: " + resolveValue(arg, _in));
                         }
                         if (e.isVariable()) {
-                            return new VariableExpression(new MethodCallVariable(
+                            return VariableExpression.of(new MethodCallVariable(
                                     expr, e.getVariable()));
                         } else {
-                            return new VariableExpression(new MethodCallVariable(expr));
+                            return VariableExpression.of(new MethodCallVariable(expr));
                         }
                     });
                     //Output.debug("Output data: " + _data);
@@ -814,21 +888,21 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         // ----------------- ConstantSwitch -----------------
         @Override
         public void caseDoubleConstant(DoubleConstant v) {
-            _data = new ExpressionSet(new VariableExpression(new NumberVariable(v.value)));
+            _data = new ExpressionSet(VariableExpression.of(new NumberVariable(v.value)));
         }
         @Override
         public void caseFloatConstant(FloatConstant v) {
-            _data = new ExpressionSet(new VariableExpression(new NumberVariable(v.value)));
+            _data = new ExpressionSet(VariableExpression.of(new NumberVariable(v.value)));
         }
         @Override
         public void caseIntConstant(IntConstant v) {
             // In soot, boolean constants also fall into this case.  Differentiate when we
             // use the constant in an expression.
-            _data = new ExpressionSet(new VariableExpression(new NumberVariable(v.value)));
+            _data = new ExpressionSet(VariableExpression.of(new NumberVariable(v.value)));
         }
         @Override
         public void caseLongConstant(LongConstant v) {
-            _data = new ExpressionSet(new VariableExpression(new NumberVariable(v.value)));
+            _data = new ExpressionSet(VariableExpression.of(new NumberVariable(v.value)));
         }
         @Override
         public void caseNullConstant(NullConstant v) {
@@ -840,12 +914,12 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             // StringConstant is surrounded by unnecessary " quotations
             String stringConstant = v.toString();
             stringConstant = stringConstant.substring(1, stringConstant.length() - 1);
-            _data = new ExpressionSet(new VariableExpression(
+            _data = new ExpressionSet(VariableExpression.of(
                             new StringVariable(stringConstant)));
         }
         @Override
         public void caseClassConstant(ClassConstant v) {
-            _data = new ExpressionSet(new VariableExpression(
+            _data = new ExpressionSet(VariableExpression.of(
                             new StringVariable(v.toString())));
         }
 
@@ -934,7 +1008,7 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                 final Type castType = v.getType();
                 _data = ExpressionSet.transform(op, e -> {
                     if (e.isVariable()) {
-                        return new VariableExpression(e.getVariable(), castType);
+                        return VariableExpression.of(e.getVariable(), castType);
                     } else {
                         return e;
                     }
@@ -948,7 +1022,7 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                 final Type castType = v.getType();
                 _data = ExpressionSet.transform(op, e -> {
                     if (e.isVariable()) {
-                        return new VariableExpression(new ClassTypeVariable(e.getVariable()));
+                        return VariableExpression.of(new ClassTypeVariable(e.getVariable()));
                     } else {
                         return e;
                     }
@@ -966,15 +1040,15 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         @Override
         public void caseNewExpr(NewExpr v) {
             //if (v.getBaseType().getEscapedName().equals("java.lang.StringBuilder")) {
-            //    _data = new ExpressionSet(new VariableExpression(new StringVariable("")));
+            //    _data = new ExpressionSet(VariableExpression.of(new StringVariable("")));
             //} else if (v.getBaseType().getEscapedName().equals("java.lang.String")) {
-            //    _data = new ExpressionSet(new VariableExpression(new StringVariable("")));
+            //    _data = new ExpressionSet(VariableExpression.of(new StringVariable("")));
             if (Variable.isStringType(v.getBaseType())) {
-                _data = new ExpressionSet(new VariableExpression(new StringVariable("")));
+                _data = new ExpressionSet(VariableExpression.of(new StringVariable("")));
             } else {
                 String newIdentifier = "New<" + v.getBaseType().getClassName() + ">";
                 newIdentifier += "(" + v.hashCode() + ")";
-                _data = new ExpressionSet(new VariableExpression(new PlaceholderVariable(
+                _data = new ExpressionSet(VariableExpression.of(new PlaceholderVariable(
                         newIdentifier, v.getType())));
             }
         }
@@ -984,15 +1058,15 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             if (op != null) {
                 _data = ExpressionSet.transform(op, e -> {
                     if (e.isVariable()) {
-                        return new VariableExpression(new PlaceholderVariable(
+                        return VariableExpression.of(new PlaceholderVariable(
                                 "Array.length(" + e.getVariable() + ")", IntType.v()));
                     } else {
-                        return new VariableExpression(new PlaceholderVariable(
+                        return VariableExpression.of(new PlaceholderVariable(
                                 "Array.length{" + v.hashCode() + "}", IntType.v()));
                     }
                 });
             } else {
-                _data = new ExpressionSet(new VariableExpression(new PlaceholderVariable(
+                _data = new ExpressionSet(VariableExpression.of(new PlaceholderVariable(
                         "Array.length{" + v.hashCode() + "}", IntType.v())));
             }
         }
@@ -1001,7 +1075,7 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             ExpressionSet op = resolveValue(v.getOp(), _in);
 
             if (op != null) {
-                ExpressionSet negExprGrp = new ExpressionSet(new VariableExpression(
+                ExpressionSet negExprGrp = new ExpressionSet(VariableExpression.of(
                         new NumberVariable(-1)));
                 _data = ExpressionSet.combine(Expression.Operator.MUL, op, negExprGrp);
             }
@@ -1085,77 +1159,36 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             SootMethod method = expr.getMethod();
             SootMethodRef methodRef = expr.getMethodRef();
 
-            if (methodRef.getSignature().equals(
-                           "<java.lang.String: boolean equals(java.lang.Object)>")
-                        || methodRef.getSignature().equals(
-                            "<java.lang.String: boolean contains(java.lang.CharSequence)>")) {
-                InstanceInvokeExpr instanceExpr = (InstanceInvokeExpr)expr;
-                //Output.debug("Ran into Equal, Contains!!" );
-                ExpressionSet op1 = resolveValue(instanceExpr.getBase(), _in);
-                ExpressionSet op2 = resolveValue(instanceExpr.getArg(0), _in);
-                //Output.debug("Op1:" + op1.toString());
-                //Output.debug("Op2:" + op2.toString());
-                Expression.Operator operator = methodRef.name().equals("equals")
-                        ? Expression.Operator.STR_EQ : Expression.Operator.CONTAINS;
-
-                if (op1 != null && op2 != null) {
-                    String returnString = "Return<" + methodRef.declaringClass().getShortName()
-                            + "." + methodRef.name() + "(){" + expr.hashCode() + "}>";
-                    VariableExpression returnExpr = new VariableExpression(
-                            new PlaceholderVariable(returnString, BooleanType.v()));
-
-                    Predicate eqConstraint = ExpressionSet.combine(
-                            operator, op1, op2).toPredicate();
-                    Expression eqRetExpr = new ArithmeticExpression(Expression.Operator.EQ,
-                            returnExpr, Expression.getTrue());
-                    eqConstraint = Predicate.combine(Predicate.Operator.AND,
-                            eqConstraint, new ExpressionPredicate(eqRetExpr));
-
-                    Predicate neConstraint = ExpressionSet.combine(
-                            operator, op1, op2).toNotPredicate();
-                    Expression neRetExpr = new ArithmeticExpression(Expression.Operator.EQ,
-                            returnExpr, Expression.getFalse());
-                    neConstraint = Predicate.combine(Predicate.Operator.AND,
-                            neConstraint, new ExpressionPredicate(neRetExpr));
-
-                    Predicate returnConstraint = Predicate.combine(Predicate.Operator.OR,
-                                                                   eqConstraint,
-                                                                   neConstraint);
-
-                    //Output.debug(returnExpr + " constraint: " + returnConstraint);
-                    _constraint = returnConstraint;
-                    //_constraint = Predicate.combine(Predicate.Operator.AND,
-                    //        _constraint, returnConstraint);
-                    //Output.log("data constraint: " + returnExpr + " -> " + returnConstraint);
-
+            ApiModelRegistry.Model model = ApiModelRegistry.getValueModel(methodRef);
+            if (model != null && model.getKind() == ApiModelRegistry.Kind.COMPARISON) {
+                if (!(expr instanceof InstanceInvokeExpr) || expr.getArgCount() == 0) {
                     return;
                 }
-            } else if (methodRef.getSignature().endsWith(
-                        "boolean equals(java.lang.Object)>")) {
-                InstanceInvokeExpr instanceExpr = (InstanceInvokeExpr)expr;
 
+                InstanceInvokeExpr instanceExpr = (InstanceInvokeExpr)expr;
                 ExpressionSet op1 = resolveValue(instanceExpr.getBase(), _in);
                 ExpressionSet op2 = resolveValue(instanceExpr.getArg(0), _in);
+                Expression.Operator operator = model.getOperator();
 
                 if (op1 != null && op2 != null) {
                     String returnString = "Return<" + methodRef.declaringClass().getShortName()
                             + "." + methodRef.name() + "(){" + expr.hashCode() + "}>";
-                    VariableExpression returnExpr = new VariableExpression(
+                    VariableExpression returnExpr = VariableExpression.of(
                             new PlaceholderVariable(returnString, BooleanType.v()));
 
                     Predicate eqConstraint = ExpressionSet.combine(
-                            Expression.Operator.EQ, op1, op2).toPredicate();
-                    Expression eqRetExpr = new ArithmeticExpression(Expression.Operator.EQ,
+                            operator, op1, op2).toPredicate();
+                    Expression eqRetExpr = ArithmeticExpression.of(Expression.Operator.EQ,
                             returnExpr, Expression.getTrue());
                     eqConstraint = Predicate.combine(Predicate.Operator.AND,
-                            eqConstraint, new ExpressionPredicate(eqRetExpr));
+                            eqConstraint, ExpressionPredicate.of(eqRetExpr));
 
                     Predicate neConstraint = ExpressionSet.combine(
-                            Expression.Operator.EQ, op1, op2).toNotPredicate();
-                    Expression neRetExpr = new ArithmeticExpression(Expression.Operator.EQ,
+                            operator, op1, op2).toNotPredicate();
+                    Expression neRetExpr = ArithmeticExpression.of(Expression.Operator.EQ,
                             returnExpr, Expression.getFalse());
                     neConstraint = Predicate.combine(Predicate.Operator.AND,
-                            neConstraint, new ExpressionPredicate(neRetExpr));
+                            neConstraint, ExpressionPredicate.of(neRetExpr));
 
                     Predicate returnConstraint = Predicate.combine(Predicate.Operator.OR,
                                                                    eqConstraint,
@@ -1167,7 +1200,8 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                     return;
                 }
             } else if (method.getDeclaringClass().isApplicationClass()
-                        && !_excludeMethods.contains(method) && _auxDepth == 0) {
+                        && !_excludeMethods.contains(method)
+                        && _auxDepth < PathSentStaticAnalysis.Config.AuxiliaryMethodDepth) {
                 // For now, only process auxiliary methods for application methods
                 String returnString = "Return<" + methodRef.declaringClass().getShortName()
                         + "." + methodRef.name() + "(){" + expr.hashCode() + "}>";
@@ -1188,7 +1222,7 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                     }
                 }
 
-                VariableExpression returnIdentifier = new VariableExpression(
+                VariableExpression returnIdentifier = VariableExpression.of(
                         new PlaceholderVariable(returnString,
                             expr.getMethod().getReturnType()));
                 Predicate auxiliaryConstraints =
@@ -1309,13 +1343,13 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             if (op != null) {
                 ExpressionSet classTypeExprSet = ExpressionSet.transform(op, e -> {
                     if (e.isVariable()) {
-                        return new VariableExpression(new ClassTypeVariable(e.getVariable()));
+                        return VariableExpression.of(new ClassTypeVariable(e.getVariable()));
                     } else {
                         return e;
                     }
                 });
 
-                VariableExpression classExpr = new VariableExpression(
+                VariableExpression classExpr = VariableExpression.of(
                         new StringVariable(v.getType().toString()));
                 Predicate classTypeConstraint = ExpressionSet.combine(
                         Expression.Operator.STR_EQ, classTypeExprSet, classExpr).toPredicate();
@@ -1331,12 +1365,12 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         //        String newIdentifier = "New<" + v.getBaseType().getClassName() + ">";
         //        newIdentifier += "(" + v.hashCode() + ")";
         //        Variable newVariable = new PlaceholderVariable(newIdentifier, v.getType());
-        //        VariableExpression classTypeExpr = new VariableExpression(
+        //        VariableExpression classTypeExpr = VariableExpression.of(
         //                new ClassTypeVariable(newVariable));
 
-        //        VariableExpression classExpr = new VariableExpression(
+        //        VariableExpression classExpr = VariableExpression.of(
         //                new StringVariable(v.getBaseType().toString()));
-        //        Predicate classTypeConstraint = new ExpressionPredicate(Expression.combine(
+        //        Predicate classTypeConstraint = ExpressionPredicate.of(Expression.combine(
         //                Expression.Operator.STR_EQ, classTypeExpr, classExpr));
 
         //        _constraint = classTypeConstraint;
@@ -0,0 +1,583 @@
+package pathsent.target.constraint;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+// Map backed by a persistent hash array mapped trie (in the compressed CHAMP layout), used for
+// the local and heap maps of DataMap.
+//
+// The trie nodes are immutable: an update copies the path from the root to the changed entry
+// (O(log n)) and shares everything else, so copying a map only copies the reference to its
+// root.  The flow analysis copies its data maps at every edge of the CFG but changes a few
+// entries per statement, so most of the nodes of the maps before and after a statement are
+// shared.
+//
+// The trie is kept in canonical form (an entry is stored as high up as its hash allows, and
+// a node never holds a single entry below the root), so two equal maps have equally shaped
+// tries.  equals() compares node by node and skips shared sub-tries without looking at
+// them, which makes the fixed-point check of the flow analysis cheap, and union() only walks
+// the parts of the two maps that differ.
+//
+// The map object itself is mutable (it holds the current root) and not thread-safe.
+// Iterators run over the entries at the time they were created, so the map can be modified
+// while it is iterated.  Null keys and values are not supported.
+
+class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_SHIFT = 30;
+
+    private static final Node EMPTY = new Node(0, 0, new Object[0]);
+
+    private Node _root = EMPTY;
+    private int _size = 0;
+    private EntrySet _entrySet = null;
+
+    public PersistentHashMap() {
+    }
+
+    // A map with the entries of the given map.  Another PersistentHashMap is shared, not
+    // copied.
+    public PersistentHashMap(Map<? extends K, ? extends V> other) {
+        putAll(other);
+    }
+
+    // Replaces the entries of this map with those of the given map, in O(1).
+    public void assign(PersistentHashMap<? extends K, ? extends V> other) {
+        _root = other._root;
+        _size = other._size;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && _root.find(key, hash(key), 0) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        return (key != null) ? (V)_root.find(key, hash(key), 0) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+
+        Change change = new Change();
+        _root = _root.put(key, value, hash(key), 0, change);
+        if (change.oldValue == null) {
+            _size++;
+        }
+        return (V)change.oldValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void putAll(Map<? extends K, ? extends V> other) {
+        if (other instanceof PersistentHashMap && _size == 0) {
+            assign((PersistentHashMap<? extends K, ? extends V>)other);
+            return;
+        }
+        other.forEach(this::put);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+
+        Change change = new Change();
+        _root = _root.remove(key, hash(key), 0, change);
+        if (change.oldValue != null) {
+            _size--;
+        }
+        return (V)change.oldValue;
+    }
+
+    @Override
+    public void clear() {
+        _root = EMPTY;
+        _size = 0;
+    }
+
+    // Removes the entries whose keys match the filter.  Does not copy anything if none do.
+    @SuppressWarnings("unchecked")
+    public void removeKeysIf(java.util.function.Predicate<? super K> filter) {
+        Node root = _root;
+        forEachEntry(root, (key, value) -> {
+            if (filter.test((K)key)) {
+                remove(key);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEachEntry(_root, (key, value) -> action.accept((K)key, (V)value));
+    }
+
+    // The union of the two maps.  The value of a key in both maps is the combination of the
+    // two values, unless it is the same object in both.  Sub-tries the two maps share are
+    // taken over without being walked.
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> union(PersistentHashMap<K, V> map1,
+            PersistentHashMap<K, V> map2, BinaryOperator<V> combine) {
+        PersistentHashMap<K, V> result = new PersistentHashMap<K, V>();
+        result.assign(map1);
+        if (map1._root != map2._root) {
+            forEachDifferentEntry(map2._root, map1._root, (key, value) -> {
+                V existing = result.get(key);
+                V other = (V)value;
+                if (existing == null) {
+                    result.put((K)key, other);
+                } else if (existing != other) {
+                    result.put((K)key, combine.apply(existing, other));
+                }
+            });
+        }
+        return result;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (_entrySet == null) {
+            _entrySet = new EntrySet();
+        }
+        return _entrySet;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof PersistentHashMap) {
+            PersistentHashMap<?, ?> other = (PersistentHashMap<?, ?>)obj;
+            return _size == other._size && nodesEqual(_root, other._root);
+        }
+        return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        int[] hashCode = new int[1];
+        forEachEntry(_root,
+                (key, value) -> { hashCode[0] += key.hashCode() ^ value.hashCode(); });
+        return hashCode[0];
+    }
+
+    // ---- Trie ----
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bitPosition(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    // Result of an update: the value that was replaced or removed (null if there was none)
+    private static class Change {
+        Object oldValue = null;
+    }
+
+    // A node of the trie.  Entries are stored as key/value pairs at the front of _content,
+    // in the order of their bit positions, followed by the sub-nodes in the same order.
+    // Beyond MAX_SHIFT, all hash bits are used up and colliding entries are kept in a
+    // CollisionNode.
+    private static class Node {
+        final int _dataMap;
+        final int _nodeMap;
+        final Object[] _content;
+
+        Node(int dataMap, int nodeMap, Object[] content) {
+            _dataMap = dataMap;
+            _nodeMap = nodeMap;
+            _content = content;
+        }
+
+        int numEntries() {
+            return Integer.bitCount(_dataMap);
+        }
+
+        int numNodes() {
+            return Integer.bitCount(_nodeMap);
+        }
+
+        int entryIndex(int bit) {
+            return 2 * Integer.bitCount(_dataMap & (bit - 1));
+        }
+
+        int nodeIndex(int bit) {
+            return 2 * numEntries() + Integer.bitCount(_nodeMap & (bit - 1));
+        }
+
+        Node getNode(int i) {
+            return (Node)_content[2 * numEntries() + i];
+        }
+
+        // The value of the key, or null
+        Object find(Object key, int hash, int shift) {
+            int bit = bitPosition(hash, shift);
+            if ((_dataMap & bit) != 0) {
+                int index = entryIndex(bit);
+                return key.equals(_content[index]) ? _content[index + 1] : null;
+            }
+            if ((_nodeMap & bit) != 0) {
+                return ((Node)_content[nodeIndex(bit)]).find(key, hash, shift + BITS);
+            }
+            return null;
+        }
+
+        Node put(Object key, Object value, int hash, int shift, Change change) {
+            int bit = bitPosition(hash, shift);
+
+            if ((_dataMap & bit) != 0) {
+                int index = entryIndex(bit);
+                Object existingKey = _content[index];
+                if (key.equals(existingKey)) {
+                    change.oldValue = _content[index + 1];
+                    if (change.oldValue == value) {
+                        return this;
+                    }
+                    Object[] content = _content.clone();
+                    content[index + 1] = value;
+                    return new Node(_dataMap, _nodeMap, content);
+                }
+
+                // Push the existing entry and the new one down into a new sub-node.
+                Node subNode = mergeEntries(existingKey, _content[index + 1],
+                        hash(existingKey), key, value, hash, shift + BITS);
+                int nodeIndex = nodeIndex(bit);
+                Object[] content = new Object[_content.length - 1];
+                System.arraycopy(_content, 0, content, 0, index);
+                System.arraycopy(_content, index + 2, content, index, nodeIndex - index - 2);
+                content[nodeIndex - 2] = subNode;
+                System.arraycopy(_content, nodeIndex, content, nodeIndex - 1,
+                                 _content.length - nodeIndex);
+                return new Node(_dataMap ^ bit, _nodeMap | bit, content);
+            }
+
+            if ((_nodeMap & bit) != 0) {
+                int index = nodeIndex(bit);
+                Node subNode = (Node)_content[index];
+                Node newSubNode = subNode.put(key, value, hash, shift + BITS, change);
+                if (newSubNode == subNode) {
+                    return this;
+                }
+                Object[] content = _content.clone();
+                content[index] = newSubNode;
+                return new Node(_dataMap, _nodeMap, content);
+            }
+
+            int index = entryIndex(bit);
+            Object[] content = new Object[_content.length + 2];
+            System.arraycopy(_content, 0, content, 0, index);
+            content[index] = key;
+            content[index + 1] = value;
+            System.arraycopy(_content, index, content, index + 2, _content.length - index);
+            return new Node(_dataMap | bit, _nodeMap, content);
+        }
+
+        Node remove(Object key, int hash, int shift, Change change) {
+            int bit = bitPosition(hash, shift);
+
+            if ((_dataMap & bit) != 0) {
+                int index = entryIndex(bit);
+                if (!key.equals(_content[index])) {
+                    return this;
+                }
+                change.oldValue = _content[index + 1];
+
+                Object[] content = new Object[_content.length - 2];
+                System.arraycopy(_content, 0, content, 0, index);
+                System.arraycopy(_content, index + 2, content, index,
+                                 _content.length - index - 2);
+                return new Node(_dataMap ^ bit, _nodeMap, content);
+            }
+
+            if ((_nodeMap & bit) != 0) {
+                int index = nodeIndex(bit);
+                Node subNode = (Node)_content[index];
+                Node newSubNode = subNode.remove(key, hash, shift + BITS, change);
+                if (newSubNode == subNode) {
+                    return this;
+                }
+
+                if (!newSubNode.isSingleEntry()) {
+                    Object[] content = _content.clone();
+                    content[index] = newSubNode;
+                    return new Node(_dataMap, _nodeMap, content);
+                }
+
+                // Keep the trie canonical: pull the last entry of the sub-node up into this
+                // node.
+                int entryIndex = entryIndex(bit);
+                Object[] content = new Object[_content.length + 1];
+                System.arraycopy(_content, 0, content, 0, entryIndex);
+                content[entryIndex] = newSubNode._content[0];
+                content[entryIndex + 1] = newSubNode._content[1];
+                System.arraycopy(_content, entryIndex, content, entryIndex + 2,
+                                 index - entryIndex);
+                System.arraycopy(_content, index + 1, content, index + 2,
+                                 _content.length - index - 1);
+                return new Node(_dataMap | bit, _nodeMap ^ bit, content);
+            }
+
+            return this;
+        }
+
+        boolean isSingleEntry() {
+            return _nodeMap == 0 && _content.length == 2;
+        }
+
+        boolean isEqualTo(Node other) {
+            if (_dataMap != other._dataMap || _nodeMap != other._nodeMap
+                    || other instanceof CollisionNode) {
+                return false;
+            }
+
+            int numEntries = numEntries();
+            for (int i = 0; i < 2 * numEntries; i += 2) {
+                if (!_content[i].equals(other._content[i])
+                        || !_content[i + 1].equals(other._content[i + 1])) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < numNodes(); i++) {
+                if (!nodesEqual(getNode(i), other.getNode(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Entries whose hashes are equal, in no particular order
+    private static class CollisionNode extends Node {
+        final int _hash;
+
+        CollisionNode(int hash, Object[] content) {
+            super(0, 0, content);
+            _hash = hash;
+        }
+
+        @Override
+        int numEntries() {
+            return _content.length / 2;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < _content.length; i += 2) {
+                if (key.equals(_content[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(Object key, int hash, int shift) {
+            int index = indexOf(key);
+            return (index >= 0) ? _content[index + 1] : null;
+        }
+
+        @Override
+        Node put(Object key, Object value, int hash, int shift, Change change) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                change.oldValue = _content[index + 1];
+                if (change.oldValue == value) {
+                    return this;
+                }
+                Object[] content = _content.clone();
+                content[index + 1] = value;
+                return new CollisionNode(_hash, content);
+            }
+
+            Object[] content = Arrays.copyOf(_content, _content.length + 2);
+            content[_content.length] = key;
+            content[_content.length + 1] = value;
+            return new CollisionNode(_hash, content);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift, Change change) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            change.oldValue = _content[index + 1];
+
+            Object[] content = new Object[_content.length - 2];
+            System.arraycopy(_content, 0, content, 0, index);
+            System.arraycopy(_content, index + 2, content, index, _content.length - index - 2);
+            return new CollisionNode(_hash, content);
+        }
+
+        @Override
+        boolean isSingleEntry() {
+            return _content.length == 2;
+        }
+
+        @Override
+        boolean isEqualTo(Node other) {
+            if (!(other instanceof CollisionNode) || other._content.length != _content.length) {
+                return false;
+            }
+
+            CollisionNode otherNode = (CollisionNode)other;
+            for (int i = 0; i < _content.length; i += 2) {
+                int index = otherNode.indexOf(_content[i]);
+                if (index < 0 || !_content[i + 1].equals(otherNode._content[index + 1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static Node mergeEntries(Object key1, Object value1, int hash1,
+                                     Object key2, Object value2, int hash2, int shift) {
+        if (shift > MAX_SHIFT) {
+            return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+        }
+
+        int bit1 = bitPosition(hash1, shift);
+        int bit2 = bitPosition(hash2, shift);
+        if (bit1 == bit2) {
+            Node subNode = mergeEntries(key1, value1, hash1, key2, value2, hash2, shift + BITS);
+            return new Node(0, bit1, new Object[] { subNode });
+        }
+
+        return (Integer.compareUnsigned(bit1, bit2) < 0)
+                ? new Node(bit1 | bit2, 0, new Object[] { key1, value1, key2, value2 })
+                : new Node(bit1 | bit2, 0, new Object[] { key2, value2, key1, value1 });
+    }
+
+    private static boolean nodesEqual(Node node1, Node node2) {
+        return node1 == node2 || node1.isEqualTo(node2);
+    }
+
+    private static void forEachEntry(Node node, BiConsumer<Object, Object> action) {
+        for (int i = 0; i < 2 * node.numEntries(); i += 2) {
+            action.accept(node._content[i], node._content[i + 1]);
+        }
+        for (int i = 0; i < node.numNodes(); i++) {
+            forEachEntry(node.getNode(i), action);
+        }
+    }
+
+    // Visits the entries of the node, except for the sub-tries that also are at the same
+    // place in the other node (null if there is none).
+    private static void forEachDifferentEntry(Node node, Node other,
+                                              BiConsumer<Object, Object> action) {
+        for (int i = 0; i < 2 * node.numEntries(); i += 2) {
+            action.accept(node._content[i], node._content[i + 1]);
+        }
+
+        int nodeMap = node._nodeMap;
+        for (int i = 0; i < node.numNodes(); i++) {
+            int bit = Integer.lowestOneBit(nodeMap);
+            nodeMap ^= bit;
+
+            Node subNode = node.getNode(i);
+            Node otherSubNode = (other != null && (other._nodeMap & bit) != 0)
+                    ? (Node)other._content[other.nodeIndex(bit)] : null;
+            if (subNode != otherSubNode) {
+                forEachDifferentEntry(subNode, otherSubNode, action);
+            }
+        }
+    }
+
+    // ---- Views ----
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        @Override
+        public int size() {
+            return _size;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+    }
+
+    // Iterates over the trie of the map at the time the iterator was created.
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final Deque<Node> _nodes = new ArrayDeque<Node>();
+        private Node _node;
+        private int _nextEntry = 0;
+        private K _lastKey = null;
+
+        EntryIterator() {
+            _node = _root;
+            for (int i = 0; i < _node.numNodes(); i++) {
+                _nodes.push(_node.getNode(i));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (_nextEntry >= _node.numEntries()) {
+                if (_nodes.isEmpty()) {
+                    return false;
+                }
+                _node = _nodes.pop();
+                _nextEntry = 0;
+                for (int i = 0; i < _node.numNodes(); i++) {
+                    _nodes.push(_node.getNode(i));
+                }
+            }
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int index = 2 * _nextEntry++;
+            _lastKey = (K)_node._content[index];
+            return new AbstractMap.SimpleImmutableEntry<K, V>(
+                    _lastKey, (V)_node._content[index + 1]);
+        }
+
+        @Override
+        public void remove() {
+            if (_lastKey == null) {
+                throw new IllegalStateException();
+            }
+            PersistentHashMap.this.remove(_lastKey);
+            _lastKey = null;
+        }
+    }
+}
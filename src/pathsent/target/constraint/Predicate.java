@@ -2,10 +2,15 @@ package pathsent.target.constraint;
 
 import pathsent.Output;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
-// Immutable class to store binary expressions and operations
+// Immutable class to store binary expressions and operations.  Predicates are hash-consed
+// like Expressions (see TermFactory), so equal predicates are the same object.
 
 public abstract class Predicate {
     public enum Operator {
@@ -15,8 +20,15 @@ public abstract class Predicate {
         NOT
     }
 
-    private static final Predicate TRUE = new ExpressionPredicate(Expression.getTrue());
-    private static final Predicate FALSE = new ExpressionPredicate(Expression.getFalse());
+    private static final Predicate TRUE = ExpressionPredicate.of(Expression.getTrue());
+    private static final Predicate FALSE = ExpressionPredicate.of(Expression.getFalse());
+
+    private final int _hashCode;
+
+    // The hash code must be computed from the operator and the children of the predicate.
+    protected Predicate(int hashCode) {
+        _hashCode = hashCode;
+    }
 
     public static Predicate getTrue() {
         return TRUE;
@@ -33,7 +45,7 @@ public abstract class Predicate {
             return null;
         }
 
-        return new UnaryPredicate(unaryOperator, pred);
+        return UnaryPredicate.of(unaryOperator, pred);
     }
 
     public static Predicate combine(Operator binaryOperator, Predicate left, Predicate right) {
@@ -45,7 +57,7 @@ public abstract class Predicate {
             return left;
         }
 
-        if (left.equals(right)) {
+        if (left == right) {
             return left;
         }
 
@@ -73,7 +85,7 @@ public abstract class Predicate {
         //    }
         //}
 
-        return new BinaryPredicate(binaryOperator, left, right);
+        return BinaryPredicate.of(binaryOperator, left, right);
     }
 
     // ------------------------------------------------------------------------
@@ -94,9 +106,22 @@ public abstract class Predicate {
     }
 
     @Override public abstract String toString();
-    @Override public abstract Predicate clone();
+
+    // Structural equality, used when the predicate is interned.  The children of the
+    // predicates are compared by reference, since they are interned already.
     @Override public abstract boolean equals(Object other);
 
+    // Predicates are immutable and unique.
+    @Override
+    public Predicate clone() {
+        return this;
+    }
+
+    @Override
+    public final int hashCode() {
+        return _hashCode;
+    }
+
     public abstract void print(int indent);
 
     public void print() {
@@ -196,6 +221,40 @@ public abstract class Predicate {
         return false;
     }
 
+    // The predicates whose conjunction this predicate implies: the conjuncts of both sides of
+    // an AND, the conjuncts shared by both sides of an OR, or else the predicate itself.  None
+    // of them is an AND or an OR.  In order of appearance (read-only).
+    public Set<Predicate> getConjuncts() {
+        return Collections.unmodifiableSet(
+                getConjuncts(new HashMap<Predicate, Set<Predicate>>()));
+    }
+
+    // Shared sub-predicates are only visited once.
+    private Set<Predicate> getConjuncts(Map<Predicate, Set<Predicate>> visited) {
+        Set<Predicate> conjuncts = visited.get(this);
+        if (conjuncts != null) {
+            return conjuncts;
+        }
+
+        if (this.isBinary() && (this.getOperator().equals(Operator.AND)
+                                || this.getOperator().equals(Operator.OR))) {
+            BinaryPredicate binaryPred = (BinaryPredicate)this;
+            conjuncts = new LinkedHashSet<Predicate>(
+                    binaryPred.getLeftChild().getConjuncts(visited));
+            Set<Predicate> rightConjuncts = binaryPred.getRightChild().getConjuncts(visited);
+            if (this.getOperator().equals(Operator.AND)) {
+                conjuncts.addAll(rightConjuncts);
+            } else {
+                conjuncts.retainAll(rightConjuncts);
+            }
+        } else {
+            conjuncts = Collections.singleton(this);
+        }
+
+        visited.put(this, conjuncts);
+        return conjuncts;
+    }
+
     // ------------------------------------------------------------------------
 
     protected String getOperatorString() {
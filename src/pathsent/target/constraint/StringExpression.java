@@ -4,8 +4,6 @@ import pathsent.Output;
 
 import soot.RefType;
 
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import java.util.Set;
 
 public final class StringExpression extends Expression {
@@ -13,13 +11,19 @@ public final class StringExpression extends Expression {
     private final Expression _left;
     private final Expression _right;
 
-    public StringExpression(Expression.Operator operator, Expression left, Expression right) {
-        super(RefType.v("java.lang.String"));
+    private StringExpression(Expression.Operator operator,
+                             Expression left, Expression right) {
+        super(RefType.v("java.lang.String"), hash(operator, left, right));
         _operator = operator;
         _left = left;
         _right = right;
     }
 
+    public static StringExpression of(Expression.Operator operator,
+                                      Expression left, Expression right) {
+        return TermFactory.intern(new StringExpression(operator, left, right));
+    }
+
     @Override
     public Expression.Operator getOperator() {
         return _operator;
@@ -53,30 +57,19 @@ public final class StringExpression extends Expression {
         return exprString.toString();
     }
 
-    @Override
-    public Expression clone() {
-        return new StringExpression(_operator, _left, _right);
-    }
-
     @Override
     public boolean equals(Object obj) {
-        if (obj == null || !(obj instanceof StringExpression)) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof StringExpression) || obj.hashCode() != hashCode()) {
             return false;
         }
 
         StringExpression other = (StringExpression)obj;
-        return _operator.equals(other.getOperator())
-                && _left.equals(other.getLeft())
-                && _right.equals(other.getRight());
-    }
-
-    @Override
-    public int hashCode() {
-        return new HashCodeBuilder()
-                .append(_operator)
-                .append(_left)
-                .append(_right)
-                .toHashCode();
+        return _operator == other.getOperator()
+                && _left == other.getLeft()
+                && _right == other.getRight();
     }
 
     @Override
@@ -144,7 +144,7 @@ public class StringParameterAnalyzer {
             if (paramValue instanceof StringConstant) {
                 StringConstant stringConstant = (StringConstant) paramValue;
                 String value = stringConstant.value;
-                return new ExpressionSet(new VariableExpression(new StringVariable(value)));
+                return new ExpressionSet(VariableExpression.of(new StringVariable(value)));
             }
         }
         
@@ -394,9 +394,9 @@ public class StringParameterAnalyzer {
                 // Add basic non-null constraint for non-constant strings
                 if (!(var instanceof StringVariable)) {
                     // Create a simple non-null constraint using ArithmeticExpression
-                    ArithmeticExpression nonNullExpr = new ArithmeticExpression(
+                    ArithmeticExpression nonNullExpr = ArithmeticExpression.of(
                         Expression.Operator.NE, expr, Expression.getNull());
-                    Predicate nonNullPredicate = new ExpressionPredicate(nonNullExpr);
+                    Predicate nonNullPredicate = ExpressionPredicate.of(nonNullExpr);
                     constraint.addConstraint(nonNullPredicate);
                 }
                 
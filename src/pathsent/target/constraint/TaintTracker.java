@@ -181,16 +181,19 @@ public class TaintTracker {
      * Analyze taint for method call variables
      */
     private TaintInfo analyzeMethodCallTaint(MethodCallVariable mcv) {
-        String methodSig = mcv.getMethod().getSignature();
+        // Look up the model of the called method (see ApiModels.txt)
+        ApiModelRegistry.Model model =
+            ApiModelRegistry.getTaintModel(mcv.getInvokeExpr().getMethodRef());
+        ApiModelRegistry.Kind kind = model != null ? model.getKind() : null;
         
         // Check if this is a known external input method
-        if (isExternalInputMethod(methodSig)) {
-            ExternalInputSource source = createExternalInputSource(mcv);
+        if (kind == ApiModelRegistry.Kind.EXTERNAL_INPUT) {
+            ExternalInputSource source = createExternalInputSource(mcv, model.getArgument());
             return TaintInfo.fullyTainted(source, "external input: " + source.toString());
         }
         
         // Check if this is a string manipulation method (toString, substring, etc.)
-        if (isStringManipulationMethod(methodSig)) {
+        if (kind == ApiModelRegistry.Kind.TAINT_PRESERVING) {
             // For string manipulation, taint depends on the receiver
             Variable receiver = mcv.getReceiverVariable();
             if (receiver != null) {
@@ -207,79 +210,10 @@ public class TaintTracker {
     }
     
     /**
-     * Check if a method signature represents an external input source
+     * Create external input source of the given type from method call variable
      */
-    private boolean isExternalInputMethod(String methodSig) {
-        // Intent methods
-        if (methodSig.contains("android.content.Intent") && (
-            methodSig.contains("getStringExtra") ||
-            methodSig.contains("getIntExtra") ||
-            methodSig.contains("getBooleanExtra") ||
-            methodSig.contains("getExtras"))) {
-            return true;
-        }
-        
-        // URI methods
-        if (methodSig.contains("android.net.Uri") && (
-            methodSig.contains("getQueryParameter") ||
-            methodSig.contains("getLastPathSegment") ||
-            methodSig.contains("getPath"))) {
-            return true;
-        }
-        
-        // Bundle methods
-        if (methodSig.contains("android.os.Bundle") && (
-            methodSig.contains("getString") ||
-            methodSig.contains("get("))) {
-            return true;
-        }
-        
-        // ContentValues methods
-        if (methodSig.contains("android.content.ContentValues") && (
-            methodSig.contains("getAsString") ||
-            methodSig.contains("get("))) {
-            return true;
-        }
-        
-        // SharedPreferences methods
-        if (methodSig.contains("android.content.SharedPreferences") && (
-            methodSig.contains("getString"))) {
-            return true;
-        }
-        
-        return false;
-    }
-    
-    /**
-     * Check if a method is a string manipulation method that preserves taint
-     */
-    private boolean isStringManipulationMethod(String methodSig) {
-        return methodSig.endsWith("java.lang.String toString()>") ||
-               methodSig.contains("java.lang.String substring(") ||
-               methodSig.contains("java.lang.String trim()>") ||
-               methodSig.contains("java.lang.String toLowerCase()>") ||
-               methodSig.contains("java.lang.String toUpperCase()>");
-    }
-    
-    /**
-     * Create external input source from method call variable
-     */
-    private ExternalInputSource createExternalInputSource(MethodCallVariable mcv) {
-        String methodSig = mcv.getMethod().getSignature();
-        String sourceType = "unknown";
-        
-        if (methodSig.contains("android.content.Intent")) {
-            sourceType = "intent";
-        } else if (methodSig.contains("android.net.Uri")) {
-            sourceType = "uri";
-        } else if (methodSig.contains("android.os.Bundle")) {
-            sourceType = "bundle";
-        } else if (methodSig.contains("android.content.ContentValues")) {
-            sourceType = "content_values";
-        } else if (methodSig.contains("android.content.SharedPreferences")) {
-            sourceType = "shared_preferences";
-        }
-        
+    private ExternalInputSource createExternalInputSource(MethodCallVariable mcv,
+                                                          String sourceType) {
         String sourceMethod = mcv.getMethod().getName();
         String sourceParameter = mcv.getStringParameter(0); // First string parameter
         String fullDescription = mcv.getMethodCallDescription();
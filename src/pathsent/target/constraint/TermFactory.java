@@ -0,0 +1,57 @@
+package pathsent.target.constraint;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hash-consing of the constraint terms (Expressions and Predicates).  Terms are only created
+// through the of() factories of their classes, which return the existing term if a
+// structurally equal one is alive, so structurally equal terms are the same object.
+//
+// Since the children of a term are themselves unique, comparing two candidate terms only
+// compares their operators and the identities of their children, and the hash of a term is
+// computed once from the (cached) hashes of its children.  Once interned, equals() is in
+// effect a reference check.  The tables hold the terms weakly, so terms no longer used are
+// collected.
+//
+// Thread-safe.
+
+public class TermFactory {
+    private static final Interner<Expression> _expressions = Interners.newWeakInterner();
+    private static final Interner<Predicate> _predicates = Interners.newWeakInterner();
+
+    private static final AtomicLong _numRequests = new AtomicLong();
+    private static final AtomicLong _numCreated = new AtomicLong();
+
+    // The unique term that is equal to the given one
+    @SuppressWarnings("unchecked")
+    static <T extends Expression> T intern(T expression) {
+        T canonical = (T)_expressions.intern(expression);
+        count(canonical == expression);
+        return canonical;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends Predicate> T intern(T predicate) {
+        T canonical = (T)_predicates.intern(predicate);
+        count(canonical == predicate);
+        return canonical;
+    }
+
+    private static void count(boolean created) {
+        _numRequests.incrementAndGet();
+        if (created) {
+            _numCreated.incrementAndGet();
+        }
+    }
+
+    public static JsonObject getStatisticsJson() {
+        JsonObject statisticsJson = new JsonObject();
+        statisticsJson.addProperty("Requests", _numRequests.get());
+        statisticsJson.addProperty("Created", _numCreated.get());
+        statisticsJson.addProperty("Shared", _numRequests.get() - _numCreated.get());
+        return statisticsJson;
+    }
+}
@@ -8,11 +8,16 @@ final class UnaryPredicate extends Predicate {
     private final Operator _operator;
     private final Predicate _child;
 
-    public UnaryPredicate(Operator operator, Predicate child) {
+    private UnaryPredicate(Operator operator, Predicate child) {
+        super(31 * operator.ordinal() + child.hashCode());
         _operator = operator;
         _child = child;
     }
 
+    public static UnaryPredicate of(Operator operator, Predicate child) {
+        return TermFactory.intern(new UnaryPredicate(operator, child));
+    }
+
     @Override
     public Predicate.Operator getOperator() {
         return _operator;
@@ -70,19 +75,17 @@ final class UnaryPredicate extends Predicate {
         return constraints.toString();
     }
 
-    @Override
-    public Predicate clone() {
-        return new UnaryPredicate(_operator, _child);
-    }
-
     @Override
     public boolean equals(Object obj) {
-        if (obj == null || !(obj instanceof UnaryPredicate)) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof UnaryPredicate) || obj.hashCode() != hashCode()) {
             return false;
         }
 
         UnaryPredicate other = (UnaryPredicate)obj;
-        return _operator.equals(other.getOperator()) && _child.equals(other.getChild());
+        return _operator == other.getOperator() && _child == other.getChild();
     }
 
     @Override
@@ -4,9 +4,9 @@ import pathsent.Output;
 
 import soot.Type;
 
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.math.NumberUtils;
 
+import java.util.Objects;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -15,13 +15,17 @@ public final class VariableExpression extends Expression {
 
     private final Variable _variable;
 
-    public VariableExpression(Variable variable, Type type) {
-        super(type);
+    private VariableExpression(Variable variable, Type type) {
+        super(type, 31 * variable.hashCode() + Objects.hashCode(type));
         _variable = variable;
     }
 
-    public VariableExpression(Variable variable) {
-        this(variable, variable.getType());
+    public static VariableExpression of(Variable variable, Type type) {
+        return TermFactory.intern(new VariableExpression(variable, type));
+    }
+
+    public static VariableExpression of(Variable variable) {
+        return of(variable, variable.getType());
     }
 
     @Override
@@ -43,26 +47,18 @@ public final class VariableExpression extends Expression {
         return _variable.toString();
     }
 
-    @Override
-    public Expression clone() {
-        return new VariableExpression(_variable, this.getType());
-    }
-
     @Override
     public boolean equals(Object obj) {
-        if (obj == null || !(obj instanceof VariableExpression)) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof VariableExpression) || obj.hashCode() != hashCode()) {
             return false;
         }
 
         VariableExpression other = (VariableExpression)obj;
-        return _variable.equals(other.getVariable());
-    }
-
-    @Override
-    public int hashCode() {
-        return new HashCodeBuilder()
-                .append(_variable.toString())
-                .toHashCode();
+        return _variable.equals(other.getVariable())
+                && Objects.equals(getType(), other.getType());
     }
 
     @Override
@@ -1,7 +1,7 @@
 package pathsent.target.constraint;
 
+import pathsent.Budget;
 import pathsent.Output;
-import pathsent.target.StaticAnalysisTimeoutException;
 
 import soot.*;
 
@@ -146,9 +146,7 @@ public class   Z3ConstraintGenerator{
     private String generateZ3Constraint(Predicate constraint) {
         // In cases where the constraints are complex (e.g. in a long method with many loops),
         // make sure that we detect timeouts and stop analysis in for the current path.
-        if (Thread.interrupted()) {
-            throw new StaticAnalysisTimeoutException("ConstraintAnalysis");
-        }
+        Budget.current().check("ConstraintAnalysis");
         Output.debug("generateZ3Constraint: " + constraint.toString() + " (" + constraint.getClass() + ")");
         StringBuilder z3Constraint = new StringBuilder();
 
@@ -1,5 +1,6 @@
 package pathsent.target.constraint;
 
+import pathsent.Budget;
 import pathsent.Output;
 
 import soot.*;
@@ -16,6 +17,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Z3Solver {
+    private static final long SOLVER_TIMEOUT_MS = 10000;
+
     private final Predicate _constraint;
     private final com.microsoft.z3.Context _context;
     private final Model _model;
@@ -117,11 +120,14 @@ public class Z3Solver {
     }
 
     private Model generateModel() {
+        // A query gets at most SOLVER_TIMEOUT_MS, and no more than is left for the path.
+        Budget queryBudget = Budget.current().child("solver", SOLVER_TIMEOUT_MS);
+        queryBudget.check("ConstraintSolving");
+
         Solver solver = _context.mkSolver();
 
-        // Add a 10 second timeout for constraint solving.
         Params params = _context.mkParams();
-        params.add("timeout", 10000);
+        params.add("timeout", (int)Math.min(queryBudget.remainingMillis(), SOLVER_TIMEOUT_MS));
         solver.setParameters(params);
 
         try {
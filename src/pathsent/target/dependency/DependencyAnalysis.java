@@ -53,6 +53,7 @@ public class DependencyAnalysis {
 
         List<SupportingEvent> supportingEvents = new ArrayList<SupportingEvent>();
         for (Dependence dependence : event.getDependencies()) {
+            Budget.current().check("DependencyAnalysis");
             supportingEvents.addAll(resolveDependence(event, dependence, dependencyDepth));
         }
 
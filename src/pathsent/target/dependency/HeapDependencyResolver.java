@@ -1,10 +1,12 @@
 package pathsent.target.dependency;
 
+import pathsent.Budget;
 import pathsent.Output;
 import pathsent.target.*;
 import pathsent.target.constraint.*;
 import pathsent.target.event.*;
 import pathsent.target.traversal.CallGraphTraversal;
+import pathsent.target.traversal.UnitMatcher;
 
 import soot.*;
 import soot.jimple.*;
@@ -18,6 +20,12 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
     private final Map<HeapVariable, List<CachedHeapWriteEvent>> _cachedHeapWrites =
             new HashMap<HeapVariable, List<CachedHeapWriteEvent>>();
 
+    // Heap variables can only intersect if they refer to the same field, so candidates are
+    // looked up by field.  Without a points-to analysis this is all there is to aliasing (see
+    // HeapVariable) and every cached write to the field is a candidate.
+    private final Map<SootField, Set<HeapVariable>> _heapVariablesByField =
+            new HashMap<SootField, Set<HeapVariable>>();
+
     private HeapCallGraphPlugin _callGraphPlugin = new HeapCallGraphPlugin(_cachedHeapWrites);
 
     @Override
@@ -53,12 +61,14 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
     private SupportingEvent findCachedSupportingEvent(Event event, HeapVariable dependence) {
         // Instead of using equality, determine resolution by checking whether points-to sets
         // intersect with the specified heap variable dependence.
-        Set<HeapVariable> heapIntersections = _cachedHeapWrites.keySet().stream()
+        Set<HeapVariable> heapIntersections = _heapVariablesByField.getOrDefault(
+                dependence.getField(), Collections.<HeapVariable>emptySet()).stream()
                 .filter(x -> x.intersects(dependence))
                 .collect(Collectors.toSet());
 
         for (HeapVariable heapIntersection : heapIntersections) {
             for (CachedHeapWriteEvent cached : _cachedHeapWrites.get(heapIntersection)) {
+                Budget.current().check("DependencyAnalysis");
                 SupportingEvent supportingEvent = cached.getSupportingEvent(dependence);
                 if (supportingEvent == null) {
                     // This cached dependency is invalid and cannot be resolved.
@@ -83,17 +93,8 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
         }
 
         @Override
-        public boolean processUnit(SootMethod method, Unit unit) {
-            if (!(unit instanceof AssignStmt)) {
-                return false;
-            }
-
-            AssignStmt assignStmt = (AssignStmt)unit;
-            if (assignStmt.getLeftOp() instanceof FieldRef) {
-                return true;
-            }
-
-            return false;
+        public UnitMatcher getUnitMatcher() {
+            return UnitMatcher.fieldWrites();
         }
 
         @Override
@@ -105,6 +106,8 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
             CachedHeapWriteEvent cached = new CachedHeapWriteEvent(path);
             _cachedHeapWrites.computeIfAbsent(heapVariable,
                     k -> new ArrayList<CachedHeapWriteEvent>()).add(cached);
+            _heapVariablesByField.computeIfAbsent(heapVariable.getField(),
+                    k -> new LinkedHashSet<HeapVariable>()).add(heapVariable);
         }
     }
 
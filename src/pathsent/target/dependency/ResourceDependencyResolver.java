@@ -56,9 +56,9 @@ class ResourceDependencyResolver extends DependencyResolver<KeyValueAccessVariab
         int resourceId = ((NumberVariable)dependence.getKeyVariable()).getValue().intValue();
         String resourceValue = _resourceAnalysis.getStringResource(resourceId);
         if (resourceValue != null) {
-            Predicate resourceConstraint = new ExpressionPredicate(new StringExpression(
-                    Expression.Operator.STR_EQ, new VariableExpression(dependence),
-                    new VariableExpression(new StringVariable(resourceValue))));
+            Predicate resourceConstraint = ExpressionPredicate.of(StringExpression.of(
+                    Expression.Operator.STR_EQ, VariableExpression.of(dependence),
+                    VariableExpression.of(new StringVariable(resourceValue))));
 
             if (PathSentStaticAnalysis.Config.PrintOutput) {
                 Output.printConstraint("Resource dependence: "
@@ -10,7 +10,8 @@ import soot.jimple.toolkits.callgraph.Targets;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Collections;
 import java.util.List;
 
 // Class to hold a call path.
@@ -18,6 +19,9 @@ import java.util.List;
 //     entryPoint->node1, node1->node2, ..., nodeX->target node
 // and with a target Unit, where the unit appears in the target node's body.
 // A CallPath object should be able to represent any point in the app's code.
+//
+// The edge list is not copied: it must not change afterwards.  The path finder hands out
+// views into a shared path trie, so the call paths of one traversal share their prefixes.
 
 public final class CallPath {
     protected final List<Edge> _edges;
@@ -36,11 +40,19 @@ public final class CallPath {
         //edges.forEach(e -> { Output.debug("edge: " + e); });
 
         // Remove the first edge since it's just dummy method->entrypoint
-        _edges = new ArrayList<Edge>(edges.size() - 1);
-        _edges.addAll(edges.subList(1, edges.size()));
+        _edges = Collections.unmodifiableList(edges.subList(1, edges.size()));
 
-        _nodes = new ArrayList<MethodOrMethodContext>(edges.size());
-        edges.forEach(e -> { _nodes.add(e.getTgt()); });
+        _nodes = new AbstractList<MethodOrMethodContext>() {
+            @Override
+            public MethodOrMethodContext get(int index) {
+                return edges.get(index).getTgt();
+            }
+
+            @Override
+            public int size() {
+                return edges.size();
+            }
+        };
 
         _targetUnit = targetUnit;
     }
@@ -80,9 +92,11 @@ public final class CallPath {
             return false;
         }
 
+        // Alternative paths to the same target unit are different call paths.
         CallPath other = (CallPath)obj;
         return this.getTargetMethod().equals(other.getTargetMethod())
-                && this.getTargetUnit().equals(other.getTargetUnit());
+                && this.getTargetUnit().equals(other.getTargetUnit())
+                && this.getEdges().equals(other.getEdges());
     }
 
     @Override
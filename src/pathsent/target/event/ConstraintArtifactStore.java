@@ -0,0 +1,148 @@
+package pathsent.target.event;
+
+import pathsent.target.constraint.Predicate;
+import pathsent.target.constraint.Z3ConstraintGenerator;
+
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+// Content-addressed store of the output of the event chains, so that identical results of
+// different paths are generated and written once.
+//
+// Three things are deduplicated by fingerprint (a SHA-256 of their canonical text):
+//   - Execution constraints: the Z3 code of a predicate is generated once per distinct
+//     predicate.  The fingerprint of a predicate is its text plus the types of its variables.
+//   - Constraint directories: an event whose constraint files have the same content as an
+//     earlier event's (in the same vulnerability category) refers to that event's directory
+//     instead of writing a copy; its own directory holds only a reference.json.  The
+//     "# Start/Target" header of the files is not part of the content, so it names the
+//     first path that produced them.
+//   - Event chains: a chain with the same events (paths and constraints) as an earlier one
+//     is marked as a duplicate of it, and keeps its list of events.
+//
+// One store is used per analysis run.  Thread-safe.
+
+public class ConstraintArtifactStore {
+    private final ConcurrentMap<String, ExecutionConstraints> _executionConstraints =
+            new ConcurrentHashMap<String, ExecutionConstraints>();
+    private final ConcurrentMap<String, String> _directories =
+            new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, Integer> _eventChains =
+            new ConcurrentHashMap<String, Integer>();
+
+    private final AtomicInteger _numGeneratedConstraints = new AtomicInteger();
+    private final AtomicInteger _numReusedConstraints = new AtomicInteger();
+    private final AtomicInteger _numWrittenDirectories = new AtomicInteger();
+    private final AtomicInteger _numReusedDirectories = new AtomicInteger();
+    private final AtomicInteger _numDuplicateEventChains = new AtomicInteger();
+
+    // Generated Z3 code of a predicate
+    public static class ExecutionConstraints {
+        private final String _code;
+        private final JsonObject _variables;
+
+        private ExecutionConstraints(Z3ConstraintGenerator generator) {
+            _code = generator.getZ3ConstraintCode();
+            _variables = generator.getZ3VariableMapJson();
+        }
+
+        public String getCode() {
+            return _code;
+        }
+
+        // A copy, since it is added to the JSON of every event that uses it
+        public JsonObject getVariables() {
+            return _variables.deepCopy();
+        }
+    }
+
+    public ExecutionConstraints getExecutionConstraints(Predicate constraints) {
+        String fingerprint = fingerprint(getCanonicalText(constraints));
+        ExecutionConstraints executionConstraints = _executionConstraints.get(fingerprint);
+        if (executionConstraints != null) {
+            _numReusedConstraints.incrementAndGet();
+            return executionConstraints;
+        }
+
+        // Two threads may both generate the code of a new predicate; the first one is kept.
+        _numGeneratedConstraints.incrementAndGet();
+        executionConstraints = new ExecutionConstraints(new Z3ConstraintGenerator(constraints));
+        ExecutionConstraints existing =
+                _executionConstraints.putIfAbsent(fingerprint, executionConstraints);
+        return (existing != null) ? existing : executionConstraints;
+    }
+
+    // Registers the given directory for files with the given fingerprint.  Returns the
+    // directory, which the caller must then write the files to, or the directory registered
+    // earlier for the same fingerprint.
+    public String claimDirectory(String fingerprint, String directory) {
+        String existing = _directories.putIfAbsent(fingerprint, directory);
+        if (existing != null) {
+            _numReusedDirectories.incrementAndGet();
+            return existing;
+        }
+        _numWrittenDirectories.incrementAndGet();
+        return directory;
+    }
+
+    // Registers an event chain.  Returns the id of an earlier chain with the same fingerprint,
+    // or -1 if there is none.
+    public int claimEventChain(String fingerprint, int eventChainId) {
+        Integer existing = _eventChains.putIfAbsent(fingerprint, eventChainId);
+        if (existing != null) {
+            _numDuplicateEventChains.incrementAndGet();
+            return existing;
+        }
+        return -1;
+    }
+
+    public JsonObject getStatisticsJson() {
+        JsonObject statisticsJson = new JsonObject();
+        statisticsJson.addProperty("GeneratedExecutionConstraints",
+                _numGeneratedConstraints.get());
+        statisticsJson.addProperty("ReusedExecutionConstraints", _numReusedConstraints.get());
+        statisticsJson.addProperty("WrittenConstraintDirectories",
+                _numWrittenDirectories.get());
+        statisticsJson.addProperty("ReusedConstraintDirectories", _numReusedDirectories.get());
+        statisticsJson.addProperty("DuplicateEventChains", _numDuplicateEventChains.get());
+        return statisticsJson;
+    }
+
+    // The text of a predicate and the types of its variables, which the text leaves out
+    public static String getCanonicalText(Predicate constraints) {
+        List<String> variables = constraints.getAllVariables().stream()
+                .map(v -> v + ":" + v.getType())
+                .sorted()
+                .collect(Collectors.toList());
+        return constraints.toString() + "\n" + String.join("\n", variables);
+    }
+
+    // SHA-256 of the given parts, each followed by a separator, in hex
+    public static String fingerprint(String... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -2,7 +2,6 @@ package pathsent.target.event;
 
 import pathsent.Output;
 import pathsent.target.constraint.Predicate;
-import pathsent.target.constraint.Z3ConstraintGenerator;
 import pathsent.target.constraint.StringParameterConstraint;
 import pathsent.target.constraint.StringParameterZ3Generator;
 import pathsent.target.dependency.Dependence;
@@ -16,6 +15,7 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -43,6 +43,10 @@ public class Event {
     protected final List<Dependence> _dependencies = new ArrayList<Dependence>();
     protected List<StringParameterConstraint> _stringParameterConstraints = new ArrayList<>();
     protected Map<String, Object> _metadata = new HashMap<>();
+    private Map<String, String> _pathConstraintFiles = null;
+
+    private static final String METADATA_FILE_NAME = "metadata.json";
+    private static final String REFERENCE_FILE_NAME = "reference.json";
 
     public Event(CallPath path, Predicate constraints) {
         _path = path;
@@ -96,6 +100,7 @@ public class Event {
     public void setStringParameterConstraints(List<StringParameterConstraint> stringParameterConstraints) {
         _stringParameterConstraints = stringParameterConstraints != null ? 
             new ArrayList<>(stringParameterConstraints) : new ArrayList<>();
+        _pathConstraintFiles = null;
     }
 
     public boolean hasConstraints() {
@@ -107,6 +112,15 @@ public class Event {
     }
 
     public JsonObject toJson(String eventChainDirectory, int eventId) {
+        return toJson(eventChainDirectory, eventId, new ConstraintArtifactStore());
+    }
+
+    // Constraint files with the same content as an earlier event's are not written again:
+    // the event refers to the directory of the earlier event instead (ConstraintDirectory,
+    // relative to the constraints output directory), and its own directory holds only a
+    // reference.json naming that directory and the files it stands for.
+    public JsonObject toJson(String eventChainDirectory, int eventId,
+                             ConstraintArtifactStore artifactStore) {
         JsonObject eventJson = new JsonObject();
 
         eventJson.addProperty("Type", getTypeString());
@@ -119,56 +133,35 @@ public class Event {
         eventJson.add("Path", pathJson);
 
         // Only create constraint directories and files if we have actual constraints
-        String constraintBaseDir = null;
-        boolean hasAnyConstraints = hasConstraints();
-        
-        if (hasAnyConstraints) {
-            // Determine vulnerability type and create appropriate directory structure
-            constraintBaseDir = determineConstraintDirectory(eventChainDirectory);
-            File constraintDir = new File(constraintBaseDir);
-            if (!constraintDir.exists()) {
-                constraintDir.mkdirs();
-            }
+        if (!hasConstraints()) {
+            return eventJson;
         }
 
+        // Collect the constraint files, then write them unless an earlier event has the same
+        // ones.
+        String vulnDir = determineVulnerabilityDirectory();
+        Map<String, String> constraintFiles = new LinkedHashMap<String, String>();
+
         // Generate execution constraints (control flow)
-        if (_constraints != null && constraintBaseDir != null) {
-            Z3ConstraintGenerator z3Generator = new Z3ConstraintGenerator(_constraints);
+        if (_constraints != null) {
+            ConstraintArtifactStore.ExecutionConstraints executionConstraints =
+                    artifactStore.getExecutionConstraints(_constraints);
 
             String executionFileName = "execution.py";
-            String executionFilePath = constraintBaseDir + "/" + executionFileName;
-            writeConstraintFile(executionFilePath, z3Generator.getZ3ConstraintCode());
+            constraintFiles.put(executionFileName, executionConstraints.getCode());
             eventJson.addProperty("ExecutionConstraintFile", executionFileName);
 
-            eventJson.add("Variables", z3Generator.getZ3VariableMapJson());
+            eventJson.add("Variables", executionConstraints.getVariables());
         }
 
         // Generate path constraints (separate from execution constraints)
-        if (_stringParameterConstraints != null && !_stringParameterConstraints.isEmpty() && constraintBaseDir != null) {
-            StringParameterZ3Generator stringParamGenerator = 
-                new StringParameterZ3Generator(_stringParameterConstraints);
-
-            // Determine path constraint file type based on vulnerability type
+        Map<String, String> pathConstraintFiles = getPathConstraintFiles();
+        if (!pathConstraintFiles.isEmpty()) {
             StringParameterConstraint.PathType pathType = _stringParameterConstraints.get(0).getPathType();
-            String pathFileName;
-            
-            if (pathType == StringParameterConstraint.PathType.HARD_CODED) {
-                // For hijacking: plain text file
-                pathFileName = "path.txt";
-            } else {
-                // For traversal: Z3 constraints
-                pathFileName = "path.py";
-            }
-
-            String pathFilePath = constraintBaseDir + "/" + pathFileName;
-            writeConstraintFile(pathFilePath, stringParamGenerator.generatePathConstraints());
-            eventJson.addProperty("PathConstraintFile", pathFileName);
 
-            // Generate metadata file
-            String metadataFileName = "metadata.json";
-            String metadataFilePath = constraintBaseDir + "/" + metadataFileName;
-            writeStringParameterInfoFile(metadataFilePath, stringParamGenerator.getStringParameterInfoJson());
-            eventJson.addProperty("MetadataFile", metadataFileName);
+            constraintFiles.putAll(pathConstraintFiles);
+            eventJson.addProperty("PathConstraintFile", getPathConstraintFileName(pathType));
+            eventJson.addProperty("MetadataFile", METADATA_FILE_NAME);
 
             // Add vulnerability classification to JSON
             String vulnType = determineVulnerabilityType(pathType);
@@ -182,6 +175,47 @@ public class Event {
             Output.debug("STRING_PARAM: Generated execution_only constraints");
         }
 
+        // Determine vulnerability type and create appropriate directory structure
+        String constraintDir = vulnDir + "/constraints/" + extractEventId(eventChainDirectory);
+        List<String> contents = new ArrayList<String>();
+        contents.add(vulnDir);
+        constraintFiles.forEach((name, content) -> { contents.add(name); contents.add(content); });
+        String fingerprint = ConstraintArtifactStore.fingerprint(
+                contents.toArray(new String[contents.size()]));
+
+        String storedDir = artifactStore.claimDirectory(fingerprint, constraintDir);
+        String constraintBaseDir = new File(eventChainDirectory).getParent() + "/" + constraintDir;
+        File constraintDirFile = new File(constraintBaseDir);
+        if (!constraintDirFile.exists()) {
+            constraintDirFile.mkdirs();
+        }
+
+        if (storedDir.equals(constraintDir)) {
+            constraintFiles.forEach((name, content) -> {
+                if (name.equals(METADATA_FILE_NAME)) {
+                    writeStringParameterInfoFile(constraintBaseDir + "/" + name, content);
+                } else {
+                    writeConstraintFile(constraintBaseDir + "/" + name, content);
+                }
+            });
+        } else {
+            // Every event still gets a directory of its own, holding a reference record in
+            // place of the files, so that the output has one entry per event.
+            Output.debug("Constraint files of " + constraintDir + " are the same as "
+                    + storedDir + "'s");
+
+            JsonObject referenceJson = new JsonObject();
+            referenceJson.addProperty("ConstraintDirectory", storedDir);
+            referenceJson.addProperty("ConstraintFingerprint", fingerprint);
+            JsonArray filesJson = new JsonArray();
+            constraintFiles.keySet().forEach(filesJson::add);
+            referenceJson.add("Files", filesJson);
+            writeStringParameterInfoFile(constraintBaseDir + "/" + REFERENCE_FILE_NAME,
+                                         referenceJson.toString());
+        }
+        eventJson.addProperty("ConstraintDirectory", storedDir);
+        eventJson.addProperty("ConstraintFingerprint", fingerprint);
+
         // TODO
         // UI events
         //public String UIType = null;
@@ -192,38 +226,78 @@ public class Event {
 
         return eventJson;
     }
-    
+
+    // Canonical text of the event: its type, path, and constraints.  Events with the same
+    // fingerprint produce the same output.
+    public String getFingerprint() {
+        List<String> parts = new ArrayList<String>();
+        parts.add(getTypeString());
+        _path.getNodes().forEach(n -> { parts.add(n.method().getSignature()); });
+        parts.add(_path.getTargetUnit().toString());
+        parts.add((_constraints != null)
+                  ? ConstraintArtifactStore.getCanonicalText(_constraints) : "");
+        getPathConstraintFiles().forEach((name, content) -> {
+            parts.add(name);
+            parts.add(content);
+        });
+        return ConstraintArtifactStore.fingerprint(parts.toArray(new String[parts.size()]));
+    }
+
+    // The path constraint and metadata files of the string parameter constraints, by file
+    // name (empty if there are none).  Generated once.
+    private Map<String, String> getPathConstraintFiles() {
+        if (_pathConstraintFiles != null) {
+            return _pathConstraintFiles;
+        }
+
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        if (_stringParameterConstraints != null && !_stringParameterConstraints.isEmpty()) {
+            StringParameterZ3Generator stringParamGenerator =
+                new StringParameterZ3Generator(_stringParameterConstraints);
+
+            StringParameterConstraint.PathType pathType = _stringParameterConstraints.get(0).getPathType();
+            files.put(getPathConstraintFileName(pathType),
+                      stringParamGenerator.generatePathConstraints());
+            files.put(METADATA_FILE_NAME,
+                      stringParamGenerator.getStringParameterInfoJson().toString());
+        }
+
+        _pathConstraintFiles = files;
+        return files;
+    }
+
+    // Determine path constraint file type based on vulnerability type
+    private static String getPathConstraintFileName(StringParameterConstraint.PathType pathType) {
+        if (pathType == StringParameterConstraint.PathType.HARD_CODED) {
+            // For hijacking: plain text file
+            return "path.txt";
+        } else {
+            // For traversal: Z3 constraints
+            return "path.py";
+        }
+    }
+
     /**
-     * Determine the appropriate directory structure based on vulnerability type
+     * Determine the directory of the vulnerability type, relative to the constraints output
+     * directory
      */
-    private String determineConstraintDirectory(String baseDirectory) {
-        String vulnDir;
-        
+    private String determineVulnerabilityDirectory() {
         if (_stringParameterConstraints != null && !_stringParameterConstraints.isEmpty()) {
             // Events with string parameter constraints (file paths)
             StringParameterConstraint.PathType pathType = _stringParameterConstraints.get(0).getPathType();
             
             if (pathType == StringParameterConstraint.PathType.HARD_CODED) {
-                vulnDir = "hijacking";
+                return "hijacking";
             } else if (pathType == StringParameterConstraint.PathType.PARTIALLY_CONTROLLED) {
-                vulnDir = "traversal/partial";
+                return "traversal/partial";
             } else {
-                vulnDir = "traversal/full";
+                return "traversal/full";
             }
         } else {
             // Events with only execution constraints (no string parameters)
             // These are typically write operations, constructor calls, etc.
-            vulnDir = "execution_only";
+            return "execution_only";
         }
-        
-        // Extract event ID from base directory path
-        String eventIdStr = extractEventId(baseDirectory);
-        
-        // Get parent directory (package directory)
-        File baseDir = new File(baseDirectory);
-        String packageDir = baseDir.getParent();
-        
-        return packageDir + "/" + vulnDir + "/constraints/" + eventIdStr;
     }
     
     /**
@@ -264,10 +338,10 @@ public class Event {
         }
     }
 
-    protected void writeStringParameterInfoFile(String filePath, JsonObject infoJson) {
+    protected void writeStringParameterInfoFile(String filePath, String infoJson) {
         try {
             PrintWriter writer = new PrintWriter(filePath, "UTF-8");
-            writer.println(infoJson.toString());
+            writer.println(infoJson);
             writer.close();
         } catch (Exception e) {
             e.printStackTrace();
@@ -40,6 +40,15 @@ public class EventChain {
     }
 
     public JsonObject toJson() {
+        return toJson(new ConstraintArtifactStore());
+    }
+
+    // A chain with the same events as an earlier chain in the store is marked as a duplicate
+    // of it (DuplicateOf).  Its events are still listed, but their constraint files are those
+    // of the earlier chain's events.
+    public JsonObject toJson(ConstraintArtifactStore artifactStore) {
+        int originalId = artifactStore.claimEventChain(getFingerprint(), _id);
+
         String eventChainDirectory = PathSentStaticAnalysis.Config.OutputDirectory
                 + "/constraints/" + _id;
         
@@ -50,19 +59,29 @@ public class EventChain {
 
         eventChainJson.addProperty("Start", this.getStart());
         eventChainJson.addProperty("Target", this.getTarget());
+        if (originalId >= 0) {
+            eventChainJson.addProperty("DuplicateOf", Integer.toString(originalId));
+        }
 
         JsonArray eventsJson = new JsonArray();
         List<Event> events = Lists.reverse(_events);
         for (int eventId = 0; eventId < events.size(); eventId++) {
             Event event = events.get(eventId);
             // Pass eventChainDirectory but don't create it - Event.toJson will handle categorized paths
-            eventsJson.add(event.toJson(eventChainDirectory, eventId));
+            eventsJson.add(event.toJson(eventChainDirectory, eventId, artifactStore));
         }
         eventChainJson.add("Events", eventsJson);
 
         return eventChainJson;
     }
 
+    // Fingerprint of the events of the chain (their paths and constraints), in order
+    public String getFingerprint() {
+        String[] eventFingerprints = Lists.reverse(_events).stream()
+                .map(e -> e.getFingerprint()).toArray(String[]::new);
+        return ConstraintArtifactStore.fingerprint(eventFingerprints);
+    }
+
     private String getStart() {
         return _startMethod;
     }
@@ -1,9 +1,11 @@
 package pathsent.target.icc;
 
+import pathsent.target.BodyAnalysisCache;
 import pathsent.target.ManifestAnalysis;
 import soot.*;
 import soot.jimple.*;
 import soot.jimple.toolkits.callgraph.*;
+import soot.toolkits.scalar.UnitValueBoxPair;
 
 import java.util.*;
 
@@ -172,7 +174,7 @@ public class IccCallGraphEnhancer {
         // Extract Intent parameter
         if (invokeExpr.getArgCount() > 0) {
             Value intentValue = invokeExpr.getArg(0);
-            String action = extractIntentAction(sourceMethod.getActiveBody(), intentValue);
+            String action = extractIntentAction(sourceMethod.getActiveBody(), unit, intentValue);
             
             if (action != null) {
                 return new IccCommunication(sourceMethod, IccCommunication.Type.START_ACTIVITY, action, unit);
@@ -184,7 +186,7 @@ public class IccCallGraphEnhancer {
     private IccCommunication analyzeStartService(SootMethod sourceMethod, Unit unit, InvokeExpr invokeExpr) {
         if (invokeExpr.getArgCount() > 0) {
             Value intentValue = invokeExpr.getArg(0);
-            String action = extractIntentAction(sourceMethod.getActiveBody(), intentValue);
+            String action = extractIntentAction(sourceMethod.getActiveBody(), unit, intentValue);
             
             if (action != null) {
                 return new IccCommunication(sourceMethod, IccCommunication.Type.START_SERVICE, action, unit);
@@ -196,7 +198,7 @@ public class IccCallGraphEnhancer {
     private IccCommunication analyzeSendBroadcast(SootMethod sourceMethod, Unit unit, InvokeExpr invokeExpr) {
         if (invokeExpr.getArgCount() > 0) {
             Value intentValue = invokeExpr.getArg(0);
-            String action = extractIntentAction(sourceMethod.getActiveBody(), intentValue);
+            String action = extractIntentAction(sourceMethod.getActiveBody(), unit, intentValue);
             
             if (action != null) {
                 return new IccCommunication(sourceMethod, IccCommunication.Type.SEND_BROADCAST, action, unit);
@@ -230,13 +232,27 @@ public class IccCallGraphEnhancer {
     /**
      * Extract Intent action from Intent value using backward analysis
      */
-    private String extractIntentAction(Body body, Value intentValue) {
+    private String extractIntentAction(Body body, Unit iccUnit, Value intentValue) {
         // Simple backward analysis to find Intent action
         if (intentValue instanceof Local) {
             Local intentLocal = (Local) intentValue;
             
+            // Only the definitions of the Intent that reach the ICC call and the other uses
+            // of those definitions (e.g. setAction calls) can set the action, so look at
+            // these rather than the whole body, in body order.
+            BodyAnalysisCache.Entry bodyAnalyses = BodyAnalysisCache.get(body);
+            Set<Unit> candidateUnits = new HashSet<>();
+            for (Unit defUnit : bodyAnalyses.getLocalDefs().getDefsOfAt(intentLocal, iccUnit)) {
+                candidateUnits.add(defUnit);
+                for (UnitValueBoxPair use : bodyAnalyses.getLocalUses().getUsesOf(defUnit)) {
+                    candidateUnits.add(use.getUnit());
+                }
+            }
+            List<Unit> orderedUnits = new ArrayList<>(candidateUnits);
+            orderedUnits.sort(Comparator.comparingInt(u -> bodyAnalyses.getUnitNumber(u)));
+            
             // Look for Intent constructor calls or setAction calls
-            for (Unit unit : body.getUnits()) {
+            for (Unit unit : orderedUnits) {
                 if (unit instanceof AssignStmt) {
                     AssignStmt assignStmt = (AssignStmt) unit;
                     if (assignStmt.getLeftOp().equals(intentLocal)) {
@@ -1,5 +1,7 @@
 package pathsent.target.traversal;
 
+import pathsent.Output;
+
 import soot.*;
 import soot.jimple.toolkits.callgraph.*;
 
@@ -14,32 +16,24 @@ class AndroidAnyPathFinder extends SootCallGraphAnyPathFinder {
     public AndroidAnyPathFinder(CallGraph graph, Iterator<MethodOrMethodContext> entryMethods,
             EdgePredicate edgePredicate) {
         super(graph, entryMethods, edgePredicate);
-        
-        // Debug: AndroidAnyPathFinder created
-        System.err.println("PATHFINDER: AndroidAnyPathFinder created");
+
+        Output.debug(Output.Subsystem.Traversal, () -> "PATHFINDER: AndroidAnyPathFinder created");
+    }
+
+    public AndroidAnyPathFinder(CallGraph graph, List<Edge> entryEdges,
+            EdgePredicate edgePredicate) {
+        super(graph, entryEdges, edgePredicate);
     }
 
     @Override
-    protected Iterator<Edge> computeChildren(Edge edge) {
-        // Filter the traversal to only application classes, but allow java.io.* for file operations
-        SootClass currentClass = edge.getTgt().method().getDeclaringClass();
-        String className = currentClass.getName();
-        
-        System.err.println("PATHFINDER: computeChildren for edge to: " + edge.getTgt().method().getSignature());
-
-        // Allow application classes and java.io.* classes (for file operation targets)
-        if (currentClass.isApplicationClass() 
-                || className.startsWith("java.io.")) {
-            // Exclude android support libraries
-            if (className.startsWith("android.support.v")) {
-                System.err.println("  PATHFINDER: Excluding android.support class: " + className);
-                return Collections.<Edge>emptyList().iterator();
-            }
-            System.err.println("  PATHFINDER: Allowing traversal of: " + className);
-            return super.computeChildren(edge);
-        }
-
-        System.err.println("  PATHFINDER: Excluding non-application class: " + className);
-        return Collections.<Edge>emptyList().iterator();
+    protected boolean canExpand(int method) {
+        // Filter the traversal to application classes (without the Android support
+        // libraries), but allow java.io.* for file operations.  The class test is done once
+        // per method when the compact call graph is built.
+        boolean traversable = _graph.isTraversable(method);
+        Output.trace(Output.Subsystem.Traversal, () -> "  PATHFINDER: "
+                + (traversable ? "Allowing" : "Excluding") + " traversal of: "
+                + _graph.getMethod(method).method().getSignature());
+        return traversable;
     }
 }
@@ -0,0 +1,306 @@
+package pathsent.target.traversal;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Strongly connected components of the part of the call graph the path finder walks: the
+// call-site edges out of traversable methods (CompactCallGraph.isTraversable).  Recursive
+// and mutually recursive application methods end up in one component; every other method
+// is a component of its own.
+//
+// Components are numbered in the order Tarjan's algorithm completes them, which is a
+// reverse topological order of the condensed graph: the components a component calls into
+// always have smaller ids, so a loop over the ids sees callees before their callers, and a
+// loop backwards sees callers first.  The condensed graph is stored in compressed sparse row
+// form like the call graph itself, without duplicate edges and without self loops, so
+// reachability questions take a single pass over it.
+//
+// Built once per CompactCallGraph (see of()).  Immutable and shared between threads.
+
+public class CallGraphComponents {
+    private static volatile CallGraphComponents _latest = null;
+
+    private final CompactCallGraph _graph;
+
+    private final int[] _components;
+    private final int _numComponents;
+    private final BitSet _cyclicComponents = new BitSet();
+
+    // Members of component c are _members[_memberOffsets[c] .. _memberOffsets[c + 1] - 1]
+    private final int[] _memberOffsets;
+    private final int[] _members;
+
+    // Successors of component c are _successors[_successorOffsets[c] .. *[c + 1] - 1]
+    private final int[] _successorOffsets;
+    private final int[] _successors;
+
+    // The components of the given call graph view, shared with other callers while the view
+    // is the current one.
+    public static CallGraphComponents of(CompactCallGraph graph) {
+        CallGraphComponents latest = _latest;
+        if (latest == null || latest._graph != graph) {
+            synchronized (CallGraphComponents.class) {
+                latest = _latest;
+                if (latest == null || latest._graph != graph) {
+                    latest = new CallGraphComponents(graph);
+                    _latest = latest;
+                }
+            }
+        }
+        return latest;
+    }
+
+    private CallGraphComponents(CompactCallGraph graph) {
+        _graph = graph;
+        int numMethods = graph.getNumMethods();
+
+        _components = new int[numMethods];
+        _numComponents = findComponents();
+
+        // Members, by counting sort on the component
+        _memberOffsets = new int[_numComponents + 1];
+        for (int method = 0; method < numMethods; method++) {
+            _memberOffsets[_components[method] + 1]++;
+        }
+        for (int component = 0; component < _numComponents; component++) {
+            _memberOffsets[component + 1] += _memberOffsets[component];
+        }
+        _members = new int[numMethods];
+        int[] memberPositions = _memberOffsets.clone();
+        for (int method = 0; method < numMethods; method++) {
+            _members[memberPositions[_components[method]]++] = method;
+        }
+
+        // Condensed edges.  lastSource[c] is the component whose successors were last added
+        // with c among them, which removes duplicates without sorting.
+        _successorOffsets = new int[_numComponents + 1];
+        int[] successors = new int[Math.max(16, _numComponents)];
+        int[] lastSource = new int[_numComponents];
+        Arrays.fill(lastSource, -1);
+        int numSuccessors = 0;
+
+        for (int component = 0; component < _numComponents; component++) {
+            _successorOffsets[component] = numSuccessors;
+            for (int i = _memberOffsets[component]; i < _memberOffsets[component + 1]; i++) {
+                int method = _members[i];
+                if (!graph.isTraversable(method)) {
+                    continue;
+                }
+
+                for (int edge = graph.outOffset(method); edge < graph.outOffset(method + 1);
+                        edge++) {
+                    if (!graph.hasCallSite(edge)) {
+                        continue;
+                    }
+
+                    int successor = _components[graph.getTgt(edge)];
+                    if (successor == component) {
+                        _cyclicComponents.set(component);
+                    } else if (lastSource[successor] != component) {
+                        lastSource[successor] = component;
+                        if (numSuccessors == successors.length) {
+                            successors = Arrays.copyOf(successors, successors.length * 2);
+                        }
+                        successors[numSuccessors++] = successor;
+                    }
+                }
+            }
+        }
+        _successorOffsets[_numComponents] = numSuccessors;
+        _successors = Arrays.copyOf(successors, numSuccessors);
+    }
+
+    // Tarjan's algorithm with an explicit stack, since call chains can be deeper than the
+    // thread stack allows.  Fills in _components and returns the number of components.
+    private int findComponents() {
+        int numMethods = _graph.getNumMethods();
+        int[] indices = new int[numMethods];
+        int[] lowLinks = new int[numMethods];
+        Arrays.fill(indices, -1);
+
+        // Methods on Tarjan's stack, and the call stack of the depth-first search with the
+        // next out-edge to try for each frame
+        int[] stack = new int[numMethods];
+        BitSet onStack = new BitSet(numMethods);
+        int stackSize = 0;
+        int[] callStack = new int[numMethods];
+        int[] nextEdges = new int[numMethods];
+        int callStackSize = 0;
+
+        int nextIndex = 0;
+        int numComponents = 0;
+
+        for (int root = 0; root < numMethods; root++) {
+            if (indices[root] >= 0) {
+                continue;
+            }
+
+            indices[root] = lowLinks[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack.set(root);
+            callStack[callStackSize] = root;
+            nextEdges[callStackSize++] = _graph.outOffset(root);
+
+            while (callStackSize > 0) {
+                int method = callStack[callStackSize - 1];
+                int edgesEnd = _graph.isTraversable(method) ? _graph.outOffset(method + 1) : 0;
+
+                // Descend into the next unvisited callee
+                boolean descended = false;
+                while (nextEdges[callStackSize - 1] < edgesEnd) {
+                    int edge = nextEdges[callStackSize - 1]++;
+                    if (!_graph.hasCallSite(edge)) {
+                        continue;
+                    }
+
+                    int callee = _graph.getTgt(edge);
+                    if (indices[callee] < 0) {
+                        indices[callee] = lowLinks[callee] = nextIndex++;
+                        stack[stackSize++] = callee;
+                        onStack.set(callee);
+                        callStack[callStackSize] = callee;
+                        nextEdges[callStackSize++] = _graph.outOffset(callee);
+                        descended = true;
+                        break;
+                    } else if (onStack.get(callee)) {
+                        lowLinks[method] = Math.min(lowLinks[method], indices[callee]);
+                    }
+                }
+                if (descended) {
+                    continue;
+                }
+
+                // All callees done: close the component if the method is its root
+                callStackSize--;
+                if (lowLinks[method] == indices[method]) {
+                    int member;
+                    do {
+                        member = stack[--stackSize];
+                        onStack.clear(member);
+                        _components[member] = numComponents;
+                    } while (member != method);
+                    numComponents++;
+                }
+                if (callStackSize > 0) {
+                    int caller = callStack[callStackSize - 1];
+                    lowLinks[caller] = Math.min(lowLinks[caller], lowLinks[method]);
+                }
+            }
+        }
+        return numComponents;
+    }
+
+    public CompactCallGraph getGraph() {
+        return _graph;
+    }
+
+    public int getNumComponents() {
+        return _numComponents;
+    }
+
+    public int getComponent(int method) {
+        return _components[method];
+    }
+
+    public int getComponentSize(int component) {
+        return _memberOffsets[component + 1] - _memberOffsets[component];
+    }
+
+    // The members of component c are getMember(i) for i in
+    // memberOffset(c) .. memberOffset(c + 1) - 1.
+    public int memberOffset(int component) {
+        return _memberOffsets[component];
+    }
+
+    public int getMember(int index) {
+        return _members[index];
+    }
+
+    // Whether a call path can return to a method of the component, i.e. whether it has more
+    // than one method or a method that calls itself.
+    public boolean isCyclic(int component) {
+        return _cyclicComponents.get(component);
+    }
+
+    public int getNumCyclicComponents() {
+        return _cyclicComponents.cardinality();
+    }
+
+    // Whether the two methods are in the same cycle of calls
+    public boolean isSameCycle(int method1, int method2) {
+        int component = _components[method1];
+        return component == _components[method2] && isCyclic(component);
+    }
+
+    // The successors of component c in the condensed graph are getSuccessor(i) for i in
+    // successorOffset(c) .. successorOffset(c + 1) - 1.  They all have smaller ids than c.
+    public int successorOffset(int component) {
+        return _successorOffsets[component];
+    }
+
+    public int getSuccessor(int index) {
+        return _successors[index];
+    }
+
+    public int getNumCondensedEdges() {
+        return _successors.length;
+    }
+
+    // The components in topological order: callers before their callees
+    public int[] getTopologicalOrder() {
+        int[] order = new int[_numComponents];
+        for (int i = 0; i < _numComponents; i++) {
+            order[i] = _numComponents - 1 - i;
+        }
+        return order;
+    }
+
+    // The components reachable from the given method, including its own.
+    public BitSet getReachableComponents(int method) {
+        BitSet reached = new BitSet(_numComponents);
+        int start = _components[method];
+        reached.set(start);
+
+        // Every successor has a smaller id, so one backward sweep from the start component
+        // reaches everything.
+        for (int component = start; component >= 0;
+                component = reached.previousSetBit(component - 1)) {
+            for (int i = _successorOffsets[component]; i < _successorOffsets[component + 1];
+                    i++) {
+                reached.set(_successors[i]);
+            }
+        }
+        return reached;
+    }
+
+    // Sum of the weights of the components reachable from the given method, stopping once the
+    // sum reaches the limit.  Components of weight 0 are not searched past, so the weights
+    // must be closed under callers: a component that can reach one with a positive weight
+    // must have a positive weight itself.  With null weights, every method counts once.
+    public int countReachableMethods(int method, int[] weights, int limit) {
+        int start = _components[method];
+        if (weights != null && weights[start] == 0) {
+            return 0;
+        }
+
+        BitSet reached = new BitSet(_numComponents);
+        reached.set(start);
+        int count = 0;
+        for (int component = start; component >= 0;
+                component = reached.previousSetBit(component - 1)) {
+            count += (weights != null) ? weights[component] : getComponentSize(component);
+            if (count >= limit) {
+                return limit;
+            }
+
+            for (int i = _successorOffsets[component]; i < _successorOffsets[component + 1];
+                    i++) {
+                int successor = _successors[i];
+                if (weights == null || weights[successor] > 0) {
+                    reached.set(successor);
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -1,6 +1,9 @@
 package pathsent.target.traversal;
 
+import pathsent.Budget;
 import pathsent.Output;
+import pathsent.PathSentStaticAnalysis;
+import pathsent.PhaseMetrics;
 import pathsent.target.entrypoint.IEntryPointAnalysis;
 import pathsent.target.event.CallPath;
 
@@ -9,6 +12,10 @@ import soot.jimple.*;
 import soot.jimple.toolkits.callgraph.*;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /*
  * A class that gathers all necessary information from a single traversal of the call graph.
@@ -16,26 +23,60 @@ import java.util.*;
  * CallGraphTraversalPlugin which specifies whether a Unit (i.e. instruction) is of interest
  * stores the resulting call path for that instruction.
  *
- * An aggregate edge predicate is used with the path finder to track which plugin has
- * expressed interest in a given instruction.
+ * The units the plugins are interested in are indexed per method once, before the traversal
+ * (TargetUnitIndex).  An aggregate edge predicate looks up the target of each edge in that
+ * index to track which plugin has expressed interest in a given instruction.
  */
 
 public class CallGraphTraversal extends SceneTransformer {
     public static interface Plugin {
-        // Process the given unit and return true if this unit should be targeted
-        public boolean processUnit(SootMethod method, Unit unit);
+        // The units this plugin targets.  The traversal matches them against every method
+        // body once before it starts.  Plugins that return null are asked with
+        // processUnit() instead.
+        public default UnitMatcher getUnitMatcher() {
+            return null;
+        }
+
+        // Return true if the given unit should be targeted.  Only called for plugins without
+        // a unit matcher, once per unit before the traversal starts.
+        public default boolean processUnit(SootMethod method, Unit unit) {
+            return false;
+        }
 
-        // Process the resulting targeted call path
+        // Called on the traversal thread before the first path is reported.
+        public default void onTraversalStart() {
+        }
+
+        // Process the resulting targeted call path.  Always called on the traversal thread,
+        // in the same order for every run.  May block, e.g. until a consumer of the paths
+        // has caught up.
         public void onTargetPath(CallPath path);
+
+        // Called on the traversal thread after the last path has been reported, also if the
+        // traversal ran out of time.
+        public default void onTraversalEnd() {
+        }
     }
 
+    // The traversal gets at most this long, and at most this share of the time left in the
+    // run so that the targeted paths can still be analyzed.
+    private static final long TRAVERSAL_TIMEOUT_MS = 300000;
+    private static final double TRAVERSAL_RUN_SHARE = 0.5;
+
     private final IEntryPointAnalysis _entryPointAnalysis;
     private final List<Plugin> _plugins = new ArrayList<Plugin>();
 
+    // Classes of the exported components, whose entry points are searched first
+    private Set<String> _exportedComponents = Collections.emptySet();
+
     public CallGraphTraversal(IEntryPointAnalysis entryPointAnalysis) {
         _entryPointAnalysis = entryPointAnalysis;
     }
 
+    public void setExportedComponents(Set<String> exportedComponents) {
+        _exportedComponents = exportedComponents;
+    }
+
     public void addPlugin(Plugin plugin) {
         _plugins.add(plugin);
     }
@@ -43,6 +84,7 @@ public class CallGraphTraversal extends SceneTransformer {
     @Override
     protected void internalTransform(String phaseName, Map<String, String> options) {
         Output.progress("Traversing the call graph");
+        PhaseMetrics.startPhase("traversal");
         
         System.err.println("CALL-GRAPH-TRAVERSAL: ========== Starting Call Graph Traversal ==========");
         System.err.println("CALL-GRAPH-TRAVERSAL: Entry points: " + _entryPointAnalysis.getEntryPoints().size());
@@ -66,63 +108,39 @@ public class CallGraphTraversal extends SceneTransformer {
         }
 
         System.err.println("CALL-GRAPH-TRAVERSAL: Creating edge predicate and path finder...");
-        PluginBasedEdgePredicate edgePredicate = new PluginBasedEdgePredicate(_plugins);
-        AndroidAnyPathFinder pathFinder = new AndroidAnyPathFinder(
-                Scene.v().getCallGraph(), _entryPointAnalysis.getEntryPoints().iterator(),
-                edgePredicate);
-
+        Budget traversalBudget = Budget.run().share("traversal", TRAVERSAL_RUN_SHARE,
+                                                    TRAVERSAL_TIMEOUT_MS);
         int pathCount = 0;
         long startTime = System.currentTimeMillis();
-        final long OVERALL_TIMEOUT_MS = 300000; // 5 minutes total timeout
-        
+
         System.err.println("CALL-GRAPH-TRAVERSAL: Starting path discovery (timeout: " + 
-                          (OVERALL_TIMEOUT_MS/1000) + " seconds)...");
-        
-        for (List<Edge> path = pathFinder.next(); 
-             path != null && (System.currentTimeMillis() - startTime) < OVERALL_TIMEOUT_MS; 
-             path = pathFinder.next()) {
-            pathCount++;
-            System.err.println("CALL-GRAPH-TRAVERSAL: ===== Found Path #" + pathCount + " =====");
-            System.err.println("CALL-GRAPH-TRAVERSAL: Path length: " + path.size() + " edges");
-            System.err.println("CALL-GRAPH-TRAVERSAL: Path from: " + 
-                              path.get(0).getSrc().method().getSignature() + " to: " + 
-                              path.get(path.size()-1).getTgt().method().getSignature());
-            
-            Output.debug("TRAVERSAL: Found path with " + path.size() + " edges:");
-            for (int i = 0; i < path.size(); i++) {
-                Edge edge = path.get(i);
-                if (i < 3 || i >= path.size() - 3) { // Log first 3 and last 3 edges
-                    System.err.println("CALL-GRAPH-TRAVERSAL:   Edge " + i + ": " + 
-                                      edge.getSrc().method().getSignature() + " -> " + 
-                                      edge.getTgt().method().getSignature());
-                }
-                Output.debug("  Edge " + i + ": " + edge.getSrc().method().getSignature() + " -> " + edge.getTgt().method().getSignature());
-            }
-            
-            if (path.size() > 6) {
-                System.err.println("CALL-GRAPH-TRAVERSAL:   ... (" + (path.size() - 6) + " edges omitted) ...");
-            }
-            
-            for (Plugin plugin : _plugins) {
-                for (Unit targetUnit : edgePredicate.getTargetUnitsForPlugin(plugin)) {
-                    System.err.println("CALL-GRAPH-TRAVERSAL: Creating CallPath for plugin: " + 
-                                      plugin.getClass().getSimpleName() + ", target unit: " + targetUnit);
-                    Output.debug("TRAVERSAL: Creating CallPath for target unit: " + targetUnit);
-                    CallPath newCallPath = new CallPath(path, targetUnit);
-                    plugin.onTargetPath(newCallPath);
-                }
-            }
-            
-            // Progress tracking
-            if (pathCount % 5 == 0) {
-                long elapsed = System.currentTimeMillis() - startTime;
-                System.err.println("CALL-GRAPH-TRAVERSAL: Progress: " + pathCount + " paths found in " + 
-                                  (elapsed / 1000) + " seconds");
+                          (traversalBudget.remainingMillis()/1000) + " seconds)...");
+
+        // Only methods that can reach a unit some plugin is interested in are searched.
+        CompactCallGraph compactGraph = CompactCallGraph.of(Scene.v().getCallGraph());
+        TargetUnitIndex targetIndex = new TargetUnitIndex(compactGraph,
+                Scene.v().getCallGraph(), _plugins);
+        TargetRelevance relevance = new TargetRelevance(compactGraph,
+                targetIndex.getTargetMethods(), _exportedComponents);
+        Output.log(String.format("Traversal limited to %d of %d call graph methods that can "
+                + "reach one of %d target methods", relevance.getNumRelevantMethods(),
+                compactGraph.getNumMethods(), relevance.getNumTargetMethods()));
+
+        // The path finders take their per-entry-point budgets from the traversal budget.
+        _plugins.forEach(p -> { p.onTraversalStart(); });
+        try (Budget.Scope scope = traversalBudget.enter()) {
+            if (PathSentStaticAnalysis.Config.MultiThreading) {
+                pathCount = traverseInParallel(traversalBudget, targetIndex, relevance,
+                                               startTime);
+            } else {
+                pathCount = traverse(traversalBudget, targetIndex, relevance, startTime);
             }
+        } finally {
+            _plugins.forEach(p -> { p.onTraversalEnd(); });
         }
-        
+
         long totalTime = System.currentTimeMillis() - startTime;
-        boolean timedOut = totalTime >= OVERALL_TIMEOUT_MS;
+        boolean timedOut = traversalBudget.isExpired();
         
         System.err.println("CALL-GRAPH-TRAVERSAL: ========== Traversal Complete ==========");
         System.err.println("CALL-GRAPH-TRAVERSAL: Total paths found: " + pathCount);
@@ -136,42 +154,172 @@ public class CallGraphTraversal extends SceneTransformer {
         }
     }
 
-    private class PluginBasedEdgePredicate implements EdgePredicate {
-        private final Map<Plugin, List<Unit>> _pluginTargets =
-                new HashMap<Plugin, List<Unit>>();
+    // Single depth-first search over all entry points, the most promising first.  A method
+    // is only explored from the first entry points that reach it.
+    private int traverse(Budget traversalBudget, TargetUnitIndex targetIndex,
+                         TargetRelevance relevance, long startTime) {
+        PluginBasedEdgePredicate edgePredicate = new PluginBasedEdgePredicate(targetIndex);
+        AndroidAnyPathFinder pathFinder = new AndroidAnyPathFinder(
+                Scene.v().getCallGraph(), _entryPointAnalysis.getEntryPoints().iterator(),
+                edgePredicate);
+        pathFinder.guideBy(relevance);
+        pathFinder.setPathsPerTarget(PathSentStaticAnalysis.Config.PathsPerTarget);
+
+        int pathCount = 0;
+        for (List<Edge> path = pathFinder.next();
+             path != null && !traversalBudget.isExpired();
+             path = pathFinder.next()) {
+            pathCount++;
+            reportPath(pathCount, path, edgePredicate.getPluginTargets(), startTime);
+        }
+
+        return pathCount;
+    }
+
+    // One depth-first search per entry edge on a fork/join pool.  Every search has its own
+    // visited state and edge predicate; the target unit index is shared.  The paths are
+    // reported on this thread in entry edge order, as soon as the searches of all earlier
+    // entry edges have finished; as in the single search, a target method is only reported
+    // through the first paths that reach it, up to the configured number of paths per
+    // target.
+    private int traverseInParallel(Budget traversalBudget, TargetUnitIndex targetIndex,
+                                   TargetRelevance relevance, long startTime) {
+        CallGraph callGraph = Scene.v().getCallGraph();
+        List<Edge> entryEdges = relevance.prioritizeEntryEdges(
+                SootCallGraphAnyPathFinder.getEntryEdges(
+                        callGraph, _entryPointAnalysis.getEntryPoints().iterator()));
 
-        public PluginBasedEdgePredicate(List<Plugin> plugins) {
-            plugins.forEach(p -> { _pluginTargets.put(p, new ArrayList<Unit>()); });
+        List<Callable<List<FoundPath>>> tasks = new ArrayList<Callable<List<FoundPath>>>();
+        for (Edge entryEdge : entryEdges) {
+            tasks.add(() -> {
+                try (Budget.Scope scope = traversalBudget.enter()) {
+                    return findPaths(callGraph, entryEdge, traversalBudget, targetIndex,
+                                     relevance);
+                }
+            });
         }
 
-        @Override
-        public boolean want(Edge e) {
-            SootMethod tgtMethod = e.getTgt().method();
-            if (!tgtMethod.hasActiveBody()) {
-                return false;
-            }
+        int numThreads = getNumberOfTraversalThreads();
+        Output.log(Output.Subsystem.Traversal, () -> "CALL-GRAPH-TRAVERSAL: Searching "
+                + entryEdges.size() + " entry edges on " + numThreads + " threads");
 
-            clearPluginTargets();
-            boolean isTarget = false;
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        List<Future<List<FoundPath>>> results = new ArrayList<Future<List<FoundPath>>>();
+        tasks.forEach(t -> { results.add(pool.submit(t)); });
+        pool.shutdown();
 
-            for (Unit unit : tgtMethod.getActiveBody().getUnits()) {
-                for (Map.Entry<Plugin, List<Unit>> pluginEntry : _pluginTargets.entrySet()) {
-                    if (pluginEntry.getKey().processUnit(tgtMethod, unit)) {
-                        pluginEntry.getValue().add(unit);
-                        isTarget = true;
-                    }
+        int pathsPerTarget = PathSentStaticAnalysis.Config.PathsPerTarget;
+        Map<MethodOrMethodContext, Integer> reportedPaths =
+                new HashMap<MethodOrMethodContext, Integer>();
+        int pathCount = 0;
+        for (int i = 0; i < results.size(); i++) {
+            List<FoundPath> foundPaths;
+            try {
+                foundPaths = results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                Output.warn("Traversal from " + entryEdges.get(i).getTgt() + " failed: "
+                        + e.getCause());
+                continue;
+            }
+
+            for (FoundPath foundPath : foundPaths) {
+                MethodOrMethodContext target =
+                        foundPath.Edges.get(foundPath.Edges.size() - 1).getTgt();
+                if (reportedPaths.merge(target, 1, Integer::sum) <= pathsPerTarget) {
+                    pathCount++;
+                    reportPath(pathCount, foundPath.Edges, foundPath.PluginTargets, startTime);
                 }
             }
+        }
+
+        return pathCount;
+    }
+
+    // In multi-threaded mode the targeted paths are analyzed while the traversal runs, so
+    // the entry edges are searched on half of the threads and the paths analyzed on the
+    // others.
+    public static int getNumberOfTraversalThreads() {
+        return Math.max(1, PathSentStaticAnalysis.Config.NumberOfThreads / 2);
+    }
+
+    private List<FoundPath> findPaths(CallGraph callGraph, Edge entryEdge,
+                                      Budget traversalBudget, TargetUnitIndex targetIndex,
+                                      TargetRelevance relevance) {
+        PluginBasedEdgePredicate edgePredicate = new PluginBasedEdgePredicate(targetIndex);
+        AndroidAnyPathFinder pathFinder = new AndroidAnyPathFinder(
+                callGraph, Collections.singletonList(entryEdge), edgePredicate);
+        pathFinder.guideBy(relevance);
+        pathFinder.setPathsPerTarget(PathSentStaticAnalysis.Config.PathsPerTarget);
 
-            return isTarget;
+        List<FoundPath> foundPaths = new ArrayList<FoundPath>();
+        for (List<Edge> path = pathFinder.next();
+             path != null && !traversalBudget.isExpired();
+             path = pathFinder.next()) {
+            foundPaths.add(new FoundPath(path, edgePredicate.getPluginTargets()));
         }
+        return foundPaths;
+    }
 
-        public List<Unit> getTargetUnitsForPlugin(Plugin plugin) {
-            return _pluginTargets.get(plugin);
+    private static class FoundPath {
+        public final List<Edge> Edges;
+        public final Map<Plugin, List<Unit>> PluginTargets;
+
+        public FoundPath(List<Edge> edges, Map<Plugin, List<Unit>> pluginTargets) {
+            Edges = edges;
+            PluginTargets = pluginTargets;
+        }
+    }
+
+    private void reportPath(int pathCount, List<Edge> path,
+                            Map<Plugin, List<Unit>> pluginTargets, long startTime) {
+        Output.debug(Output.Subsystem.Traversal, () -> "Found path #" + pathCount + " ("
+                + path.size() + " edges) from: " + path.get(0).getSrc().method().getSignature()
+                + " to: " + path.get(path.size() - 1).getTgt().method().getSignature());
+        if (Output.isEnabled(Output.Subsystem.Traversal, Output.Level.TRACE)) {
+            for (int i = 0; i < path.size(); i++) {
+                Edge edge = path.get(i);
+                int edgeIndex = i;
+                Output.trace(Output.Subsystem.Traversal, () -> "  Edge " + edgeIndex + ": "
+                        + edge.getSrc().method().getSignature() + " -> "
+                        + edge.getTgt().method().getSignature());
+            }
+        }
+
+        for (Plugin plugin : _plugins) {
+            for (Unit targetUnit : pluginTargets.getOrDefault(plugin,
+                    Collections.<Unit>emptyList())) {
+                Output.debug(Output.Subsystem.Traversal, () -> "Creating CallPath for plugin: "
+                        + plugin.getClass().getSimpleName() + ", target unit: " + targetUnit);
+                CallPath newCallPath = new CallPath(path, targetUnit);
+                plugin.onTargetPath(newCallPath);
+            }
+        }
+
+        // Progress tracking
+        if (pathCount % 5 == 0) {
+            Output.log(Output.Subsystem.Traversal, () -> "Traversal progress: " + pathCount
+                    + " paths found in "
+                    + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
+        }
+    }
+
+    private static class PluginBasedEdgePredicate implements EdgePredicate {
+        private final TargetUnitIndex _targetIndex;
+        private Map<Plugin, List<Unit>> _pluginTargets = null;
+
+        public PluginBasedEdgePredicate(TargetUnitIndex targetIndex) {
+            _targetIndex = targetIndex;
+        }
+
+        @Override
+        public boolean want(Edge e) {
+            _pluginTargets = _targetIndex.getTargets(e.getTgt());
+            return _pluginTargets != null;
         }
 
-        private void clearPluginTargets() {
-            _pluginTargets.forEach((p, t) -> { t.clear(); });
+        // The targets of the last wanted edge, by plugin.  Immutable.
+        public Map<Plugin, List<Unit>> getPluginTargets() {
+            return _pluginTargets;
         }
     }
 }
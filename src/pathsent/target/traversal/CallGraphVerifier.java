@@ -18,12 +18,16 @@ import java.util.*;
  */
 public class CallGraphVerifier {
     private final CallGraph _callGraph;
+    private final CompactCallGraph _compactGraph;
+    private final CallGraphComponents _components;
     private final IEntryPointAnalysis _entryPointAnalysis;
     private final IccCallGraphEnhancer _iccEnhancer;
     
     public CallGraphVerifier(CallGraph callGraph, IEntryPointAnalysis entryPointAnalysis, 
                            IccCallGraphEnhancer iccEnhancer) {
         _callGraph = callGraph;
+        _compactGraph = CompactCallGraph.of(callGraph);
+        _components = CallGraphComponents.of(_compactGraph);
         _entryPointAnalysis = entryPointAnalysis;
         _iccEnhancer = iccEnhancer;
     }
@@ -63,27 +67,14 @@ public class CallGraphVerifier {
     private void printCallGraphStatistics() {
         System.err.println("CALL-GRAPH-VERIFIER: === Call Graph Statistics ===");
         
-        int totalEdges = 0;
-        int totalNodes = 0;
+        int totalEdges = _compactGraph.getNumEdges();
+        int totalNodes = _compactGraph.getNumMethods();
         int applicationNodes = 0;
         int frameworkNodes = 0;
         
-        Set<MethodOrMethodContext> allNodes = new HashSet<>();
-        
-        // Count edges and collect nodes
-        Iterator<Edge> allEdges = _callGraph.iterator();
-        while (allEdges.hasNext()) {
-            Edge edge = allEdges.next();
-            totalEdges++;
-            allNodes.add(edge.getSrc());
-            allNodes.add(edge.getTgt());
-        }
-        
         // Categorize nodes
-        for (MethodOrMethodContext node : allNodes) {
-            totalNodes++;
-            SootClass nodeClass = node.method().getDeclaringClass();
-            if (nodeClass.isApplicationClass()) {
+        for (int node = 0; node < totalNodes; node++) {
+            if (_compactGraph.isApplicationMethod(node)) {
                 applicationNodes++;
             } else {
                 frameworkNodes++;
@@ -96,6 +87,32 @@ public class CallGraphVerifier {
         System.err.println("CALL-GRAPH-VERIFIER: Framework nodes: " + frameworkNodes);
         System.err.println("CALL-GRAPH-VERIFIER: Application ratio: " + 
                           (totalNodes > 0 ? String.format("%.1f%%", (applicationNodes * 100.0 / totalNodes)) : "0%"));
+        
+        // Recursion in the part of the graph the path finder walks
+        int largestComponent = -1;
+        int methodsInCycles = 0;
+        for (int component = 0; component < _components.getNumComponents(); component++) {
+            if (!_components.isCyclic(component)) {
+                continue;
+            }
+            methodsInCycles += _components.getComponentSize(component);
+            if (largestComponent < 0 || _components.getComponentSize(component)
+                    > _components.getComponentSize(largestComponent)) {
+                largestComponent = component;
+            }
+        }
+        
+        System.err.println("CALL-GRAPH-VERIFIER: Strongly connected components: " + 
+                          _components.getNumComponents() + " (" + 
+                          _components.getNumCondensedEdges() + " condensed edges)");
+        System.err.println("CALL-GRAPH-VERIFIER: Recursive components: " + 
+                          _components.getNumCyclicComponents() + " (" + methodsInCycles + " methods)");
+        if (largestComponent >= 0) {
+            int root = _components.getMember(_components.memberOffset(largestComponent));
+            System.err.println("CALL-GRAPH-VERIFIER: Largest recursive component: " + 
+                              _components.getComponentSize(largestComponent) + " methods, e.g. " + 
+                              _compactGraph.getMethod(root).method().getSignature());
+        }
     }
     
     /**
@@ -112,8 +129,11 @@ public class CallGraphVerifier {
         int entryPointsWithIncomingEdges = 0;
         
         for (MethodOrMethodContext entryPoint : entryPoints) {
-            boolean hasOutgoing = _callGraph.edgesOutOf(entryPoint).hasNext();
-            boolean hasIncoming = _callGraph.edgesInto(entryPoint).hasNext();
+            int node = _compactGraph.getMethodId(entryPoint);
+            int outDegree = (node >= 0) ? _compactGraph.getOutDegree(node) : 0;
+            int inDegree = (node >= 0) ? _compactGraph.getInDegree(node) : 0;
+            boolean hasOutgoing = outDegree > 0;
+            boolean hasIncoming = inDegree > 0;
             
             if (hasOutgoing || hasIncoming) {
                 connectedEntryPoints++;
@@ -123,14 +143,14 @@ public class CallGraphVerifier {
                 entryPointsWithOutgoingEdges++;
                 System.err.println("CALL-GRAPH-VERIFIER: Entry point with outgoing edges: " + 
                                   entryPoint.method().getSignature() + 
-                                  " (" + countEdges(_callGraph.edgesOutOf(entryPoint)) + " edges)");
+                                  " (" + outDegree + " edges)");
             }
             
             if (hasIncoming) {
                 entryPointsWithIncomingEdges++;
                 System.err.println("CALL-GRAPH-VERIFIER: Entry point with incoming edges: " + 
                                   entryPoint.method().getSignature() + 
-                                  " (" + countEdges(_callGraph.edgesInto(entryPoint)) + " edges)");
+                                  " (" + inDegree + " edges)");
             }
             
             if (!hasOutgoing && !hasIncoming) {
@@ -203,18 +223,18 @@ public class CallGraphVerifier {
         Set<String> sourceComponents = new HashSet<>();
         Set<String> targetComponents = new HashSet<>();
         
-        Iterator<Edge> allEdges = _callGraph.iterator();
-        while (allEdges.hasNext()) {
-            Edge edge = allEdges.next();
-            
-            SootClass srcClass = edge.getSrc().method().getDeclaringClass();
-            SootClass tgtClass = edge.getTgt().method().getDeclaringClass();
+        for (int edge = 0; edge < _compactGraph.getNumEdges(); edge++) {
+            int src = _compactGraph.getSrc(edge);
+            int tgt = _compactGraph.getTgt(edge);
             
             // Only consider application classes
-            if (!srcClass.isApplicationClass() || !tgtClass.isApplicationClass()) {
+            if (!_compactGraph.isApplicationMethod(src)
+                    || !_compactGraph.isApplicationMethod(tgt)) {
                 continue;
             }
             
+            SootClass srcClass = _compactGraph.getMethod(src).method().getDeclaringClass();
+            SootClass tgtClass = _compactGraph.getMethod(tgt).method().getDeclaringClass();
             totalApplicationEdges++;
             sourceComponents.add(srcClass.getName());
             targetComponents.add(tgtClass.getName());
@@ -222,7 +242,7 @@ public class CallGraphVerifier {
             // Check if this could be an ICC edge (between different components)
             if (!srcClass.equals(tgtClass)) {
                 // Check if target method is a lifecycle method
-                String tgtMethodName = edge.getTgt().method().getName();
+                String tgtMethodName = _compactGraph.getMethod(tgt).method().getName();
                 if (isLifecycleMethod(tgtMethodName)) {
                     interComponentEdges++;
                     System.err.println("CALL-GRAPH-VERIFIER: Potential ICC edge: " + 
@@ -315,12 +335,11 @@ public class CallGraphVerifier {
         int receiverToService = 0;
         // ... other combinations
         
-        Iterator<Edge> allEdges = _callGraph.iterator();
-        while (allEdges.hasNext()) {
-            Edge edge = allEdges.next();
-            
-            String srcClassName = edge.getSrc().method().getDeclaringClass().getName();
-            String tgtClassName = edge.getTgt().method().getDeclaringClass().getName();
+        for (int edge = 0; edge < _compactGraph.getNumEdges(); edge++) {
+            String srcClassName = _compactGraph.getMethod(_compactGraph.getSrc(edge)).method()
+                    .getDeclaringClass().getName();
+            String tgtClassName = _compactGraph.getMethod(_compactGraph.getTgt(edge)).method()
+                    .getDeclaringClass().getName();
             
             // Count cross-component edges
             if (activities.contains(srcClassName) && services.contains(tgtClassName)) {
@@ -355,8 +374,7 @@ public class CallGraphVerifier {
     private void checkOrphanedNodes() {
         System.err.println("CALL-GRAPH-VERIFIER: === Orphaned Nodes Analysis ===");
         
-        Set<SootMethod> applicationMethods = new HashSet<>();
-        Set<MethodOrMethodContext> connectedMethods = new HashSet<>();
+        Set<SootMethod> applicationMethods = new LinkedHashSet<>();
         
         // Collect all application methods
         for (SootClass clazz : Scene.v().getApplicationClasses()) {
@@ -367,24 +385,10 @@ public class CallGraphVerifier {
             }
         }
         
-        // Collect all methods in call graph
-        Iterator<Edge> allEdges = _callGraph.iterator();
-        while (allEdges.hasNext()) {
-            Edge edge = allEdges.next();
-            connectedMethods.add(edge.getSrc());
-            connectedMethods.add(edge.getTgt());
-        }
-        
-        // Find orphaned application methods
+        // Find orphaned application methods (the call graph has ids for methods with edges)
         int orphanedCount = 0;
         for (SootMethod appMethod : applicationMethods) {
-            boolean isConnected = false;
-            for (MethodOrMethodContext connectedMethod : connectedMethods) {
-                if (connectedMethod.method().equals(appMethod)) {
-                    isConnected = true;
-                    break;
-                }
-            }
+            boolean isConnected = _compactGraph.getMethodId(appMethod) >= 0;
             
             if (!isConnected) {
                 orphanedCount++;
@@ -420,11 +424,9 @@ public class CallGraphVerifier {
         int frameworkToApp = 0;
         int frameworkToFramework = 0;
         
-        Iterator<Edge> allEdges = _callGraph.iterator();
-        while (allEdges.hasNext()) {
-            Edge edge = allEdges.next();
-            boolean srcIsApp = edge.getSrc().method().getDeclaringClass().isApplicationClass();
-            boolean tgtIsApp = edge.getTgt().method().getDeclaringClass().isApplicationClass();
+        for (int edge = 0; edge < _compactGraph.getNumEdges(); edge++) {
+            boolean srcIsApp = _compactGraph.isApplicationMethod(_compactGraph.getSrc(edge));
+            boolean tgtIsApp = _compactGraph.isApplicationMethod(_compactGraph.getTgt(edge));
             
             if (srcIsApp && tgtIsApp) {
                 appToApp++;
@@ -454,73 +456,69 @@ public class CallGraphVerifier {
         }
     }
     
-    /**
-     * Helper method to count edges from an iterator
-     */
-    private int countEdges(Iterator<Edge> edges) {
-        int count = 0;
-        while (edges.hasNext()) {
-            edges.next();
-            count++;
-        }
-        return count;
-    }
-    
     /**
      * Find a SootMethod in the call graph and return its context
      */
     private MethodOrMethodContext findMethodInCallGraph(SootMethod method) {
-        Iterator<Edge> allEdges = _callGraph.iterator();
-        while (allEdges.hasNext()) {
-            Edge edge = allEdges.next();
-            if (edge.getSrc().method().equals(method)) {
-                return edge.getSrc();
-            }
-            if (edge.getTgt().method().equals(method)) {
-                return edge.getTgt();
-            }
-        }
-        return null;
+        int node = _compactGraph.getMethodId(method);
+        return (node >= 0) ? _compactGraph.getMethod(node) : null;
     }
     
     /**
      * Quick connectivity check for specific entry point
      */
     public boolean isEntryPointConnected(MethodOrMethodContext entryPoint) {
-        return _callGraph.edgesOutOf(entryPoint).hasNext() || _callGraph.edgesInto(entryPoint).hasNext();
+        int node = _compactGraph.getMethodId(entryPoint);
+        return node >= 0;
+    }
+    
+    /**
+     * Check whether the path finder can reach a method from another one (one pass over the
+     * condensed call graph)
+     */
+    public boolean canReach(MethodOrMethodContext from, MethodOrMethodContext to) {
+        int fromNode = _compactGraph.getMethodId(from);
+        int toNode = _compactGraph.getMethodId(to);
+        if (fromNode < 0 || toNode < 0) {
+            return from.equals(to);
+        }
+        return _components.getReachableComponents(fromNode).get(_components.getComponent(toNode));
     }
     
     /**
      * Count reachable methods from an entry point (BFS traversal)
      */
     public int countReachableMethods(MethodOrMethodContext entryPoint, int maxDepth) {
-        Set<MethodOrMethodContext> visited = new HashSet<>();
-        Queue<MethodOrMethodContext> queue = new LinkedList<>();
-        Map<MethodOrMethodContext, Integer> depths = new HashMap<>();
-        
-        queue.add(entryPoint);
-        visited.add(entryPoint);
-        depths.put(entryPoint, 0);
+        int entryNode = _compactGraph.getMethodId(entryPoint);
+        if (entryNode < 0) {
+            return 1;
+        }
         
-        while (!queue.isEmpty()) {
-            MethodOrMethodContext current = queue.poll();
-            int currentDepth = depths.get(current);
-            
-            if (currentDepth >= maxDepth) {
-                continue;
-            }
-            
-            Iterator<Edge> outEdges = _callGraph.edgesOutOf(current);
-            while (outEdges.hasNext()) {
-                MethodOrMethodContext target = outEdges.next().getTgt();
-                if (!visited.contains(target)) {
-                    visited.add(target);
-                    depths.put(target, currentDepth + 1);
-                    queue.add(target);
+        // The queue holds each node once, so it doubles as the visited list; the depth of a
+        // node only increases along the queue, so one counter per level is enough.
+        BitSet visited = new BitSet(_compactGraph.getNumMethods());
+        int[] queue = new int[_compactGraph.getNumMethods()];
+        int head = 0;
+        int tail = 0;
+        
+        queue[tail++] = entryNode;
+        visited.set(entryNode);
+        
+        for (int depth = 0; depth < maxDepth && head < tail; depth++) {
+            int levelEnd = tail;
+            while (head < levelEnd) {
+                int current = queue[head++];
+                for (int edge = _compactGraph.outOffset(current);
+                        edge < _compactGraph.outOffset(current + 1); edge++) {
+                    int target = _compactGraph.getTgt(edge);
+                    if (!visited.get(target)) {
+                        visited.set(target);
+                        queue[tail++] = target;
+                    }
                 }
             }
         }
         
-        return visited.size();
+        return tail;
     }
-}
\ No newline at end of file
+}
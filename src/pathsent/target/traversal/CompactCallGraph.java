@@ -0,0 +1,215 @@
+package pathsent.target.traversal;
+
+import soot.MethodOrMethodContext;
+import soot.SootClass;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Frozen, array-based view of soot's call graph for the traversals that run after it is
+// complete (path finding, call graph verification).
+//
+// Methods and edges are numbered densely.  The out-edges of a method are stored in
+// compressed sparse row form: they are the edge ids outOffset(m) to outOffset(m + 1) - 1, in
+// the order CallGraph.edgesOutOf() returns them, so walking the graph needs no iterators or
+// edge lists.  The in-edges are stored the same way in a separate index array.  Edge and
+// method objects are only needed at the boundaries, e.g. to hand a found path to the edge
+// predicate and the plugins.
+//
+// The view does not follow later changes to the call graph; of() builds a new one when the
+// number of edges has changed.  It is immutable and can be shared between threads.
+
+public class CompactCallGraph {
+    private static volatile CompactCallGraph _latest = null;
+
+    private final CallGraph _callGraph;
+    private final int _numSootEdges;
+
+    private final MethodOrMethodContext[] _methods;
+    private final Map<MethodOrMethodContext, Integer> _methodIds;
+    private final BitSet _applicationMethods = new BitSet();
+    private final BitSet _traversableMethods = new BitSet();
+
+    private final Edge[] _edges;
+    private final Map<Edge, Integer> _edgeIds;
+    private final int[] _edgeSrc;
+    private final int[] _edgeTgt;
+    private final BitSet _callSiteEdges = new BitSet();
+
+    private final int[] _outOffsets;
+    private final int[] _inOffsets;
+    private final int[] _inEdges;
+
+    // The view of the given call graph, shared with other callers while the graph does not
+    // change.
+    public static CompactCallGraph of(CallGraph callGraph) {
+        CompactCallGraph latest = _latest;
+        if (latest == null || latest._callGraph != callGraph
+                || latest._numSootEdges != callGraph.size()) {
+            synchronized (CompactCallGraph.class) {
+                latest = _latest;
+                if (latest == null || latest._callGraph != callGraph
+                        || latest._numSootEdges != callGraph.size()) {
+                    latest = new CompactCallGraph(callGraph);
+                    _latest = latest;
+                }
+            }
+        }
+        return latest;
+    }
+
+    private CompactCallGraph(CallGraph callGraph) {
+        _callGraph = callGraph;
+        _numSootEdges = callGraph.size();
+
+        // Number the methods in the order they first appear in the call graph.
+        List<MethodOrMethodContext> methods = new ArrayList<MethodOrMethodContext>();
+        _methodIds = new HashMap<MethodOrMethodContext, Integer>();
+        for (Iterator<Edge> edgeIter = callGraph.iterator(); edgeIter.hasNext(); ) {
+            Edge edge = edgeIter.next();
+            addMethod(methods, edge.getSrc());
+            addMethod(methods, edge.getTgt());
+        }
+        _methods = methods.toArray(new MethodOrMethodContext[methods.size()]);
+
+        // Out-edges, numbered so that the out-edges of a method are consecutive
+        _edges = new Edge[_numSootEdges];
+        _edgeIds = new IdentityHashMap<Edge, Integer>(_numSootEdges);
+        _edgeSrc = new int[_numSootEdges];
+        _edgeTgt = new int[_numSootEdges];
+        _outOffsets = new int[_methods.length + 1];
+
+        int numEdges = 0;
+        for (int method = 0; method < _methods.length; method++) {
+            _outOffsets[method] = numEdges;
+            for (Iterator<Edge> edgeIter = callGraph.edgesOutOf(_methods[method]);
+                    edgeIter.hasNext(); ) {
+                Edge edge = edgeIter.next();
+                _edges[numEdges] = edge;
+                _edgeIds.put(edge, numEdges);
+                _edgeSrc[numEdges] = method;
+                _edgeTgt[numEdges] = _methodIds.get(edge.getTgt());
+                if (edge.srcUnit() != null) {
+                    _callSiteEdges.set(numEdges);
+                }
+                numEdges++;
+            }
+        }
+        _outOffsets[_methods.length] = numEdges;
+
+        // In-edges, by counting sort on the target
+        _inOffsets = new int[_methods.length + 1];
+        for (int edge = 0; edge < numEdges; edge++) {
+            _inOffsets[_edgeTgt[edge] + 1]++;
+        }
+        for (int method = 0; method < _methods.length; method++) {
+            _inOffsets[method + 1] += _inOffsets[method];
+        }
+        _inEdges = new int[numEdges];
+        int[] inPositions = _inOffsets.clone();
+        for (int edge = 0; edge < numEdges; edge++) {
+            _inEdges[inPositions[_edgeTgt[edge]]++] = edge;
+        }
+    }
+
+    private void addMethod(List<MethodOrMethodContext> methods, MethodOrMethodContext method) {
+        if (_methodIds.containsKey(method)) {
+            return;
+        }
+
+        int id = methods.size();
+        methods.add(method);
+        _methodIds.put(method, id);
+
+        SootClass declaringClass = method.method().getDeclaringClass();
+        String className = declaringClass.getName();
+        if (declaringClass.isApplicationClass()) {
+            _applicationMethods.set(id);
+        }
+
+        // Path finding follows application classes (without the Android support libraries)
+        // and java.io.* for file operation targets.
+        if ((declaringClass.isApplicationClass() || className.startsWith("java.io."))
+                && !className.startsWith("android.support.v")) {
+            _traversableMethods.set(id);
+        }
+    }
+
+    public int getNumMethods() {
+        return _methods.length;
+    }
+
+    public int getNumEdges() {
+        return _edges.length;
+    }
+
+    // -1 if the method has no edges
+    public int getMethodId(MethodOrMethodContext method) {
+        Integer id = _methodIds.get(method);
+        return (id != null) ? id : -1;
+    }
+
+    public MethodOrMethodContext getMethod(int method) {
+        return _methods[method];
+    }
+
+    public boolean isApplicationMethod(int method) {
+        return _applicationMethods.get(method);
+    }
+
+    public boolean isTraversable(int method) {
+        return _traversableMethods.get(method);
+    }
+
+    // -1 if the edge is not part of this view
+    public int getEdgeId(Edge edge) {
+        Integer id = _edgeIds.get(edge);
+        return (id != null) ? id : -1;
+    }
+
+    public Edge getEdge(int edge) {
+        return _edges[edge];
+    }
+
+    public int getSrc(int edge) {
+        return _edgeSrc[edge];
+    }
+
+    public int getTgt(int edge) {
+        return _edgeTgt[edge];
+    }
+
+    // Whether the edge has a call site (soot also adds edges without one, e.g. for <clinit>)
+    public boolean hasCallSite(int edge) {
+        return _callSiteEdges.get(edge);
+    }
+
+    // The out-edges of a method are the edge ids outOffset(m) .. outOffset(m + 1) - 1.
+    public int outOffset(int method) {
+        return _outOffsets[method];
+    }
+
+    public int getOutDegree(int method) {
+        return _outOffsets[method + 1] - _outOffsets[method];
+    }
+
+    public int getInDegree(int method) {
+        return _inOffsets[method + 1] - _inOffsets[method];
+    }
+
+    // The in-edges of a method are inEdge(i) for i in inOffset(m) .. inOffset(m + 1) - 1.
+    public int inOffset(int method) {
+        return _inOffsets[method];
+    }
+
+    public int inEdge(int index) {
+        return _inEdges[index];
+    }
+}
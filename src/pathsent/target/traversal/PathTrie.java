@@ -0,0 +1,125 @@
+package pathsent.target.traversal;
+
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// Trie of the call paths returned by a path finder.  A path is a node of the trie; it stores
+// its last edge and a link to the path without it, so paths that share a prefix (e.g. the
+// alternative paths to the same target, or to targets in the same subtree) share its nodes
+// instead of each holding a copy of the edge list.
+//
+// Paths are handed out as read-only List<Edge> views.  A view walks the parent links, which
+// is cheap for the path lengths the path finder allows.  Not thread-safe: each path finder
+// has its own trie.
+
+class PathTrie {
+    private static final int ROOT = -1;
+
+    private final CompactCallGraph _graph;
+
+    private int[] _edges = new int[64];
+    private int[] _parents = new int[64];
+    private int[] _lengths = new int[64];
+    private int _numNodes = 0;
+
+    // (parent, edge id) -> node
+    private final Map<Long, Integer> _children = new HashMap<Long, Integer>();
+
+    public PathTrie(CompactCallGraph graph) {
+        _graph = graph;
+    }
+
+    // The path made of the first length edge ids of the given array.
+    public List<Edge> getPath(int[] edges, int length) {
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            node = getChild(node, edges[i]);
+        }
+        return new PathView(node);
+    }
+
+    public int getNumNodes() {
+        return _numNodes;
+    }
+
+    private int getChild(int parent, int edge) {
+        Long key = ((long)parent << 32) | (edge & 0xffffffffL);
+        Integer child = _children.get(key);
+        if (child != null) {
+            return child;
+        }
+
+        if (_numNodes == _edges.length) {
+            int capacity = _edges.length * 2;
+            _edges = Arrays.copyOf(_edges, capacity);
+            _parents = Arrays.copyOf(_parents, capacity);
+            _lengths = Arrays.copyOf(_lengths, capacity);
+        }
+
+        int node = _numNodes++;
+        _edges[node] = edge;
+        _parents[node] = parent;
+        _lengths[node] = (parent == ROOT) ? 1 : _lengths[parent] + 1;
+        _children.put(key, node);
+        return node;
+    }
+
+    private class PathView extends AbstractList<Edge> {
+        private final int _node;
+
+        public PathView(int node) {
+            _node = node;
+        }
+
+        @Override
+        public int size() {
+            return (_node == ROOT) ? 0 : _lengths[_node];
+        }
+
+        @Override
+        public Edge get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+            }
+
+            int node = _node;
+            for (int i = size() - 1; i > index; i--) {
+                node = _parents[node];
+            }
+            return _graph.getEdge(_edges[node]);
+        }
+
+        @Override
+        public Iterator<Edge> iterator() {
+            // Collect the edge ids once rather than walking from the end for every element.
+            int[] edges = new int[size()];
+            for (int node = _node, i = edges.length - 1; i >= 0; node = _parents[node], i--) {
+                edges[i] = _edges[node];
+            }
+
+            return new Iterator<Edge>() {
+                private int _next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return _next < edges.length;
+                }
+
+                @Override
+                public Edge next() {
+                    if (_next >= edges.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return _graph.getEdge(edges[_next++]);
+                }
+            };
+        }
+    }
+}
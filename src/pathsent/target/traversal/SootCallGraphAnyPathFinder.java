@@ -1,5 +1,6 @@
 package pathsent.target.traversal;
 
+import pathsent.Budget;
 import pathsent.Output;
 
 import soot.MethodOrMethodContext;
@@ -8,50 +9,147 @@ import soot.jimple.toolkits.callgraph.Edge;
 import soot.jimple.toolkits.callgraph.EdgePredicate;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Stack;
 
 // Performs a depth-first search over soot's call-graph by its following edges.  An edge
 // predicate object should be passed in that indicates whether a particular target
 // edge/node is interesting and its path should be returned.
 
 // This is a stack-based search and should only be used for an any-path traversal of the
-// call-graph.
+// call-graph.  It runs on the CompactCallGraph view: the path is a stack of edge ids, and
+// every frame keeps its position in the out-edges of its node, so searching allocates
+// nothing until a path is returned.  Returned paths are views into a PathTrie, so paths
+// with a common prefix share it.
+//
+// Every node is pushed at most k times (setPathsPerTarget(), 1 by default), and never while
+// it is already on the path.  With k = 1 every node is reached through exactly one path;
+// with a larger k, a target is returned through up to k distinct paths.  The search still
+// does at most k times the work of the single-path search, rather than enumerating all
+// paths.
+//
+// When guided by a TargetRelevance, the search only descends into methods that can reach a
+// target within the depth limit, tries the callees nearest to a target first, and starts
+// with the most promising entry points.  Each entry point gets a share of the time left in
+// the traversal in proportion to the number of methods it can reach, so the time an entry
+// point does not use goes to the ones after it, and an iteration limit that grows with that
+// number.
+//
+// Recursion is handled on the strongly connected components of the call graph
+// (CallGraphComponents): the size of an entry point is counted on the condensed graph, and
+// a method already visited is not entered again from a method in the same cycle of calls,
+// so with k > 1 the alternative paths differ in how they reach a cycle, not in how many
+// times they go around it.
 
 public class SootCallGraphAnyPathFinder {
-    protected final CallGraph _graph;
-    private final Iterator<Edge> _entryPoints;
-
-    protected final Stack<Edge> _currentPath = new Stack<Edge>();
+    protected final CompactCallGraph _graph;
+    private int[] _entryEdges;
+    private int[] _entryEdgeSizes;
+    private long _remainingEntryEdgeSize;
+    private int _nextEntryEdge = 0;
+
+    // The current path: edge ids, and for each the next out-edge of its target to try
+    private final int[] _pathEdges;
+    private final int[] _pathChildren;
+    private int _pathLength = 0;
     private final EdgePredicate _edgePredicate;
 
-    protected final Map<MethodOrMethodContext, Iterator<Edge>> _pendingEdges =
-            new LinkedHashMap<MethodOrMethodContext, Iterator<Edge>>(1000);
-    
-    // Limits to prevent infinite loops
-    private static final int MAX_ITERATIONS_PER_ENTRY_POINT = 1000;
+    // Number of times each node has been pushed since the search started, and the nodes on
+    // the current path
+    private final int[] _visitCounts;
+    private final BitSet _onPath = new BitSet();
+    private int _numVisited = 0;
+    private int _pathsPerTarget = 1;
+
+    private final PathTrie _pathTrie;
+    private final CallGraphComponents _components;
+
+    // Nodes that can lead to a wanted edge, and the search order (null if unknown)
+    private TargetRelevance _relevance = null;
+    private boolean _started = false;
+
+    // Limits to prevent infinite loops.  Every entry point gets at least
+    // MIN_ITERATIONS_PER_ENTRY_POINT iterations, and ITERATIONS_PER_METHOD per visit of a
+    // method it can reach (counting at most MAX_ENTRY_POINT_SIZE methods).
+    private static final int MIN_ITERATIONS_PER_ENTRY_POINT = 1000;
+    private static final int ITERATIONS_PER_METHOD = 2;
+    private static final int MAX_ENTRY_POINT_SIZE = 10000;
     private static final int MAX_PATH_DEPTH = 50;
-    private static final long TIMEOUT_PER_ENTRY_POINT_MS = 30000; // 30 seconds
-    
+
+    private final Budget _traversalBudget = Budget.current();
+    private Budget _entryPointBudget;
     private long _entryPointStartTime;
     private int _currentEntryPointIterations;
+    private int _maxEntryPointIterations;
 
     public SootCallGraphAnyPathFinder(CallGraph graph, MethodOrMethodContext entryMethod,
             EdgePredicate edgePredicate) {
-        _graph = graph;
-        _entryPoints = graph.edgesInto(entryMethod);
-        _edgePredicate = edgePredicate;
-
-        initializeTraversal();
+        this(graph, getEntryEdges(graph, Collections.singletonList(entryMethod).iterator()),
+             edgePredicate);
     }
 
     public SootCallGraphAnyPathFinder(CallGraph graph,
             Iterator<MethodOrMethodContext> entryMethods, EdgePredicate edgePredicate) {
-        _graph = graph;
+        this(graph, getEntryEdges(graph, entryMethods), edgePredicate);
+    }
+
+    // Searches from the given entry edges only.  Each path finder has its own visited state,
+    // so several of them can search the same call graph concurrently.
+    public SootCallGraphAnyPathFinder(CallGraph graph, List<Edge> entryEdges,
+            EdgePredicate edgePredicate) {
+        _graph = CompactCallGraph.of(graph);
+        _entryEdges = entryEdges.stream().mapToInt(e -> _graph.getEdgeId(e))
+                .filter(e -> e >= 0).toArray();
+        _edgePredicate = edgePredicate;
+
+        // A path can be one edge longer than the limit before it is cut back.
+        _pathEdges = new int[MAX_PATH_DEPTH + 2];
+        _pathChildren = new int[MAX_PATH_DEPTH + 2];
+        _visitCounts = new int[_graph.getNumMethods()];
+        _pathTrie = new PathTrie(_graph);
+        _components = CallGraphComponents.of(_graph);
+    }
+
+    // Returns each target through up to the given number of paths.  Must be called before
+    // the first call to next().
+    public void setPathsPerTarget(int pathsPerTarget) {
+        _pathsPerTarget = Math.max(1, pathsPerTarget);
+    }
+
+    // Only descends into the relevant methods, in the order given by the relevance.  Must be
+    // called before the first call to next().
+    void guideBy(TargetRelevance relevance) {
+        _relevance = relevance;
+    }
+
+    private boolean isRelevant(int method) {
+        return _relevance == null || _relevance.isRelevant(method);
+    }
+
+    private boolean canVisit(int method) {
+        return _visitCounts[method] < _pathsPerTarget && !_onPath.get(method)
+                && isRelevant(method);
+    }
 
+    // Whether a target can still be reached through the given method after pushing it.
+    private boolean isWithinDepth(int method) {
+        return _relevance == null
+                || _pathLength + 1 + _relevance.getDistance(method) <= MAX_PATH_DEPTH;
+    }
+
+    private boolean isCycleRevisit(int method, int callee) {
+        return _visitCounts[callee] > 0 && _components.isSameCycle(method, callee);
+    }
+
+    // The out-edge at the given position of a node's out-edges, in search order
+    private int getChildEdge(int index) {
+        return (_relevance != null) ? _relevance.getChildEdge(index) : index;
+    }
+
+    public static List<Edge> getEntryEdges(CallGraph graph,
+            Iterator<MethodOrMethodContext> entryMethods) {
         ArrayList<Edge> entryEdges = new ArrayList<Edge>();
         while (entryMethods.hasNext()) {
             Iterator<Edge> edgeIter = graph.edgesInto(entryMethods.next());
@@ -59,80 +157,143 @@ public class SootCallGraphAnyPathFinder {
                 entryEdges.add(edgeIter.next());
             }
         }
-        _entryPoints = entryEdges.iterator();
-        _edgePredicate = edgePredicate;
-
-        initializeTraversal();
+        return entryEdges;
     }
 
     private void initializeTraversal() {
-        if (_entryPoints != null && _entryPoints.hasNext()) {
-            Edge entryEdge = _entryPoints.next();
-            System.err.println("PATH-FINDER: Starting traversal from " + entryEdge.toString());
-            Output.debug("Starting traversal from " + entryEdge.toString());
+        if (_relevance != null) {
+            _entryEdges = _relevance.prioritizeEntryEdges(_entryEdges);
+        }
+
+        _entryEdgeSizes = new int[_entryEdges.length];
+        _remainingEntryEdgeSize = 0;
+        for (int i = 0; i < _entryEdges.length; i++) {
+            _entryEdgeSizes[i] = countReachableMethods(_graph.getTgt(_entryEdges[i]));
+            _remainingEntryEdgeSize += _entryEdgeSizes[i];
+        }
+
+        if (!startNextEntryPoint()) {
+            Output.warn(Output.Subsystem.Traversal,
+                    () -> "PATH-FINDER: No entry points available for traversal");
+        }
+    }
+
+    // Number of relevant methods the search can reach from the given one, up to
+    // MAX_ENTRY_POINT_SIZE.
+    private int countReachableMethods(int entryNode) {
+        if (_relevance != null) {
+            return _relevance.countReachableMethods(entryNode, MAX_ENTRY_POINT_SIZE);
+        }
+        return _components.countReachableMethods(entryNode, null, MAX_ENTRY_POINT_SIZE);
+    }
+
+    // Starts the search from the next entry edge whose target can still be visited.
+    // Returns false if there is none left.
+    private boolean startNextEntryPoint() {
+        while (_nextEntryEdge < _entryEdges.length) {
+            int entryIndex = _nextEntryEdge++;
+            int entryEdge = _entryEdges[entryIndex];
+
+            // The size of a skipped entry point is taken out of the remaining size too, so
+            // its share goes to the entry points after it.
+            long remainingSize = _remainingEntryEdgeSize;
+            _remainingEntryEdgeSize -= _entryEdgeSizes[entryIndex];
+
+            if (!canVisit(_graph.getTgt(entryEdge))) {
+                Output.trace(Output.Subsystem.Traversal,
+                        () -> "PATH-FINDER: Skipping visited or irrelevant entry point: "
+                        + getTgtSignature(entryEdge));
+                continue;
+            }
 
             // Reset counters for new entry point
+            int size = Math.max(1, _entryEdgeSizes[entryIndex]);
+            double share = (remainingSize > size) ? (double)size / remainingSize : 1.0;
             _entryPointStartTime = System.currentTimeMillis();
+            _entryPointBudget = _traversalBudget.share("entry-point", share, 0);
             _currentEntryPointIterations = 0;
-
-            _currentPath.push(entryEdge);
-            _pendingEdges.put(entryEdge.getTgt(), computeChildren(entryEdge));
-            
-            System.err.println("PATH-FINDER: Initialized with entry point: " + 
-                              entryEdge.getTgt().method().getSignature() + 
-                              ", children: " + getChildrenCount(entryEdge));
-        } else {
-            System.err.println("PATH-FINDER: WARNING - No entry points available for traversal");
+            _maxEntryPointIterations = Math.max(MIN_ITERATIONS_PER_ENTRY_POINT,
+                    ITERATIONS_PER_METHOD * _pathsPerTarget * size);
+
+            push(entryEdge);
+
+            Output.debug(Output.Subsystem.Traversal, () -> "PATH-FINDER: Starting entry point: "
+                    + getTgtSignature(entryEdge) + ", children: " + getChildrenCount(entryEdge)
+                    + ", reachable methods: " + size + ", budget: "
+                    + (_entryPointBudget.isLimited()
+                       ? (_entryPointBudget.remainingMillis() / 1000) + "s" : "unlimited")
+                    + ", " + _maxEntryPointIterations + " iterations");
+            return true;
         }
+
+        return false;
     }
 
     public List<Edge> next() {
-        while (!_currentPath.empty()) {
+        if (!_started) {
+            _started = true;
+            initializeTraversal();
+        }
+
+        while (_pathLength > 0) {
             _currentEntryPointIterations++;
             long currentTime = System.currentTimeMillis();
             long elapsed = currentTime - _entryPointStartTime;
-            
-            // Check timeout per entry point
-            if (elapsed > TIMEOUT_PER_ENTRY_POINT_MS) {
-                System.err.println("PATH-FINDER: WARNING - Entry point timeout (" + 
-                                  (TIMEOUT_PER_ENTRY_POINT_MS/1000) + "s) reached after " + 
-                                  _currentEntryPointIterations + " iterations. Skipping to next entry point.");
+
+            // Stop once the whole traversal is out of time.
+            if (_traversalBudget.isExpired()) {
+                Output.warn(Output.Subsystem.Traversal,
+                        () -> "PATH-FINDER: Traversal budget exhausted after "
+                        + _currentEntryPointIterations + " iterations of the current entry point");
+                clearPath();
+                return null;
+            }
+
+            // Check the time budget of the entry point
+            if (_entryPointBudget.isExpired()) {
+                Output.warn(Output.Subsystem.Traversal, () -> "PATH-FINDER: Entry point budget ("
+                        + (elapsed/1000) + "s) used up after " + _currentEntryPointIterations
+                        + " iterations. Skipping to next entry point.");
                 moveToNextEntryPoint();
                 continue;
             }
-            
+
             // Check iteration limit per entry point
-            if (_currentEntryPointIterations > MAX_ITERATIONS_PER_ENTRY_POINT) {
-                System.err.println("PATH-FINDER: WARNING - Entry point iteration limit (" + 
-                                  MAX_ITERATIONS_PER_ENTRY_POINT + ") reached. Skipping to next entry point.");
+            if (_currentEntryPointIterations > _maxEntryPointIterations) {
+                Output.warn(Output.Subsystem.Traversal,
+                        () -> "PATH-FINDER: Entry point iteration limit ("
+                        + _maxEntryPointIterations
+                        + ") reached. Skipping to next entry point.");
                 moveToNextEntryPoint();
                 continue;
             }
-            
+
             // Check path depth limit
-            if (_currentPath.size() > MAX_PATH_DEPTH) {
-                System.err.println("PATH-FINDER: WARNING - Path depth limit (" + MAX_PATH_DEPTH + 
-                                  ") reached. Backtracking.");
-                _currentPath.pop(); // Force backtrack
+            if (_pathLength > MAX_PATH_DEPTH) {
+                Output.debug(Output.Subsystem.Traversal, () -> "PATH-FINDER: Path depth limit ("
+                        + MAX_PATH_DEPTH + ") reached. Backtracking.");
+                pop(); // Force backtrack
+                continueTraversal();
                 continue;
             }
-            
-            Edge currentEdge = _currentPath.peek();
+
+            int currentEdge = _pathEdges[_pathLength - 1];
 
             // Log current path exploration state
             if (_currentEntryPointIterations % 100 == 0) {
-                System.err.println("PATH-FINDER: Entry point iteration " + _currentEntryPointIterations + 
-                                  ", path depth: " + _currentPath.size() + 
-                                  ", pending nodes: " + _pendingEdges.size() + 
-                                  ", elapsed: " + (elapsed/1000) + "s" +
-                                  ", current: " + currentEdge.getTgt().method().getSignature());
+                Output.debug(Output.Subsystem.Traversal, () -> "PATH-FINDER: Entry point iteration "
+                        + _currentEntryPointIterations + ", path depth: " + _pathLength
+                        + ", visited nodes: " + _numVisited + ", elapsed: "
+                        + (elapsed/1000) + "s" + ", current: " + getTgtSignature(currentEdge));
             }
 
-            if (_edgePredicate.want(currentEdge)) {
+            if (_edgePredicate.want(_graph.getEdge(currentEdge))) {
                 List<Edge> path = currentPath();
-                System.err.println("PATH-FINDER: Found target path after " + _currentEntryPointIterations + 
-                                  " iterations (" + (elapsed/1000) + "s), path length: " + path.size() + 
-                                  ", target: " + currentEdge.getTgt().method().getSignature());
+                Output.debug(Output.Subsystem.Traversal,
+                        () -> "PATH-FINDER: Found target path after "
+                        + _currentEntryPointIterations + " iterations (" + (elapsed/1000)
+                        + "s), path length: " + path.size() + ", target: "
+                        + getTgtSignature(currentEdge));
                 continueTraversal();
                 return path;
             }
@@ -140,46 +301,78 @@ public class SootCallGraphAnyPathFinder {
             continueTraversal();
         }
 
-        System.err.println("PATH-FINDER: Finished all entry points. Total iterations: " + 
-                          _currentEntryPointIterations + ", time: " + 
-                          ((System.currentTimeMillis() - _entryPointStartTime)/1000) + "s");
+        Output.debug(Output.Subsystem.Traversal,
+                () -> "PATH-FINDER: Finished all entry points. Total iterations: "
+                + _currentEntryPointIterations + ", time: "
+                + ((System.currentTimeMillis() - _entryPointStartTime)/1000) + "s");
         return null;
     }
 
     protected List<Edge> currentPath() {
-        ArrayList<Edge> result = new ArrayList<Edge>();
-        _currentPath.iterator().forEachRemaining(e -> { result.add(e); });
-        return result;
+        return _pathTrie.getPath(_pathEdges, _pathLength);
     }
 
-    private void continueTraversal() {
-        while (!_currentPath.empty()) {
-            Edge currentEdge = _currentPath.peek();
-            Iterator<Edge> children = _pendingEdges.get(currentEdge.getTgt());
+    // Whether the search continues into the callees of the given method.
+    protected boolean canExpand(int method) {
+        return true;
+    }
+
+    private void push(int edge) {
+        int node = _graph.getTgt(edge);
+        if (_visitCounts[node]++ == 0) {
+            _numVisited++;
+        }
+        _onPath.set(node);
 
-            while (children.hasNext()) {
-                Edge child = children.next();
+        _pathEdges[_pathLength] = edge;
+        _pathChildren[_pathLength] = canExpand(node)
+                ? _graph.outOffset(node) : _graph.outOffset(node + 1);
+        _pathLength++;
+    }
 
-                if (!_pendingEdges.containsKey(child.getTgt())) {
+    private int pop() {
+        int edge = _pathEdges[--_pathLength];
+        _onPath.clear(_graph.getTgt(edge));
+        return edge;
+    }
+
+    private void clearPath() {
+        while (_pathLength > 0) {
+            pop();
+        }
+    }
+
+    private void continueTraversal() {
+        while (_pathLength > 0) {
+            int node = _graph.getTgt(_pathEdges[_pathLength - 1]);
+            int childrenEnd = _graph.outOffset(node + 1);
+
+            while (_pathChildren[_pathLength - 1] < childrenEnd) {
+                int child = getChildEdge(_pathChildren[_pathLength - 1]++);
+
+                // Edges without a call site are not followed, and neither are edges into
+                // methods that cannot lead to a wanted edge (within the depth limit), have
+                // used up their visits, or were visited before and are only reached again
+                // around a cycle.
+                int childNode = _graph.getTgt(child);
+                if (_graph.hasCallSite(child) && canVisit(childNode)
+                        && isWithinDepth(childNode) && !isCycleRevisit(node, childNode)) {
                     // This is a new node we have not yet explored.
-                    _currentPath.push(child);
-                    Iterator<Edge> childChildren = computeChildren(child);
-                    _pendingEdges.put(child.getTgt(), childChildren);
-                    
+                    push(child);
+
                     // Log new node exploration
-                    System.err.println("PATH-FINDER: Exploring new node: " + 
-                                      child.getTgt().method().getSignature() + 
-                                      ", depth: " + _currentPath.size() + 
-                                      ", children: " + getChildrenCount(child));
+                    Output.trace(Output.Subsystem.Traversal,
+                            () -> "PATH-FINDER: Exploring new node: "
+                            + getTgtSignature(child) + ", depth: "
+                            + _pathLength + ", children: " + getChildrenCount(child));
                     return;
                 }
             }
 
             // We have no more unvisited edges for the current node, so move backwards
-            Edge poppedEdge = _currentPath.pop();
-            System.err.println("PATH-FINDER: Backtracking from: " + 
-                              poppedEdge.getTgt().method().getSignature() + 
-                              ", new depth: " + _currentPath.size());
+            int poppedEdge = pop();
+            Output.trace(Output.Subsystem.Traversal, () -> "PATH-FINDER: Backtracking from: "
+                    + getTgtSignature(poppedEdge) + ", new depth: " + _pathLength);
         }
 
         // We're done with the paths stemming from the current entry-point.  Move on to the
@@ -187,81 +380,42 @@ public class SootCallGraphAnyPathFinder {
         moveToNextEntryPoint();
         return;
     }
-    
+
     /**
      * Move to the next entry point, resetting counters and state
      */
     private void moveToNextEntryPoint() {
         // Clear current path and prepare for next entry point
-        _currentPath.clear();
-        
-        System.err.println("PATH-FINDER: Finished current entry point after " + 
-                          _currentEntryPointIterations + " iterations in " + 
-                          ((System.currentTimeMillis() - _entryPointStartTime)/1000) + "s");
-        System.err.println("PATH-FINDER: Checking for next entry point...");
-        
-        while (_entryPoints.hasNext()) {
-            Edge nextEntryPoint = _entryPoints.next();
-
-            if (!_pendingEdges.containsKey(nextEntryPoint.getTgt())) {
-                // We have not yet visited this entry-point during our previous exploration.
-                System.err.println("PATH-FINDER: Starting next entry point: " + 
-                                  nextEntryPoint.getTgt().method().getSignature());
-                
-                // Reset counters for new entry point
-                _entryPointStartTime = System.currentTimeMillis();
-                _currentEntryPointIterations = 0;
-                
-                _currentPath.push(nextEntryPoint);
-                _pendingEdges.put(nextEntryPoint.getTgt(), computeChildren(nextEntryPoint));
-                return;
-            } else {
-                System.err.println("PATH-FINDER: Skipping already visited entry point: " + 
-                                  nextEntryPoint.getTgt().method().getSignature());
-            }
+        clearPath();
+
+        Output.debug(Output.Subsystem.Traversal,
+                () -> "PATH-FINDER: Finished current entry point after "
+                + _currentEntryPointIterations + " iterations in "
+                + ((System.currentTimeMillis() - _entryPointStartTime)/1000) + "s");
+        Output.trace(Output.Subsystem.Traversal,
+                () -> "PATH-FINDER: Checking for next entry point...");
+
+        if (!startNextEntryPoint()) {
+            Output.debug(Output.Subsystem.Traversal,
+                    () -> "PATH-FINDER: No more entry points to explore");
         }
-
-        System.err.println("PATH-FINDER: No more entry points to explore");
     }
 
-    protected Iterator<Edge> computeChildren(Edge edge) {
-        // CallGraph.edgesOutOf() sometimes return non-sensical edges...
-        List<Edge> result = new ArrayList<Edge>();
-
-        Iterator<Edge> outEdgeIter = _graph.edgesOutOf(edge.getTgt());
-        int totalEdges = 0;
-        int validEdges = 0;
-        
-        while (outEdgeIter.hasNext()) {
-            totalEdges++;
-            Edge outEdge = outEdgeIter.next();
-
-            if (outEdge.srcUnit() != null) {
-                result.add(outEdge);
-                validEdges++;
-            }
-        }
-
-        System.err.println("PATH-FINDER: computeChildren for " + edge.getTgt().method().getSignature() + 
-                          ": " + validEdges + "/" + totalEdges + " valid edges");
-
-        return result.iterator();
+    private String getTgtSignature(int edge) {
+        return _graph.getMethod(_graph.getTgt(edge)).method().getSignature();
     }
-    
+
     /**
      * Helper method to count children for logging
      */
-    private int getChildrenCount(Edge edge) {
-        Iterator<Edge> outEdgeIter = _graph.edgesOutOf(edge.getTgt());
+    private int getChildrenCount(int edge) {
+        int node = _graph.getTgt(edge);
         int count = 0;
-        
-        while (outEdgeIter.hasNext()) {
-            Edge outEdge = outEdgeIter.next();
-            if (outEdge.srcUnit() != null) {
+        for (int child = _graph.outOffset(node); child < _graph.outOffset(node + 1); child++) {
+            if (_graph.hasCallSite(child)) {
                 count++;
             }
         }
-        
         return count;
     }
 }
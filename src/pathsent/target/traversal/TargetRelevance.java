@@ -0,0 +1,161 @@
+package pathsent.target.traversal;
+
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+// Computes the methods of the call graph that can reach a unit some traversal plugin is
+// interested in, so the path finder does not descend into the (usually much larger) rest
+// of the graph, and guides the path finder towards the targets in the rest.
+//
+// The seeds are the methods whose bodies contain a unit that a plugin targets (see
+// TargetUnitIndex).  From there, a backward breadth-first search follows the call-site edges
+// into the seeds, but only out of methods the path finder expands
+// (CompactCallGraph.isTraversable, the same filter as AndroidAnyPathFinder), so a method is
+// relevant exactly if the path finder could reach a target from it.  The search also gives
+// the distance of every relevant method to its nearest target, in calls.
+//
+// The path finder tries the callees of a method nearest first (getChildEdge), skips callees
+// whose nearest target is deeper than its depth limit, and searches the entry points of
+// exported components first, nearest first (prioritizeEntryEdges).
+//
+// The relevant methods are closed under callers, so the relevant methods reachable from a
+// method are counted on the condensed call graph (CallGraphComponents), weighting each
+// component by its relevant methods.
+
+class TargetRelevance {
+    private static final int UNREACHABLE = Integer.MAX_VALUE / 2;
+
+    private final CompactCallGraph _graph;
+    private final BitSet _relevantMethods;
+    private final int _numTargetMethods;
+    private final int[] _distances;
+    private final int[] _childEdges;
+    private final Set<String> _exportedComponents;
+    private final CallGraphComponents _components;
+    private final int[] _componentWeights;
+
+    public TargetRelevance(CompactCallGraph graph, BitSet targetMethods,
+                           Set<String> exportedComponents) {
+        _graph = graph;
+        _relevantMethods = new BitSet(graph.getNumMethods());
+        _distances = new int[graph.getNumMethods()];
+        Arrays.fill(_distances, UNREACHABLE);
+        _exportedComponents = exportedComponents;
+
+        int[] queue = new int[graph.getNumMethods()];
+        int tail = 0;
+
+        for (int method = targetMethods.nextSetBit(0); method >= 0;
+                method = targetMethods.nextSetBit(method + 1)) {
+            _relevantMethods.set(method);
+            _distances[method] = 0;
+            queue[tail++] = method;
+        }
+        _numTargetMethods = tail;
+
+        for (int head = 0; head < tail; head++) {
+            int callee = queue[head];
+            for (int i = graph.inOffset(callee); i < graph.inOffset(callee + 1); i++) {
+                int edge = graph.inEdge(i);
+                int caller = graph.getSrc(edge);
+                if (graph.hasCallSite(edge) && graph.isTraversable(caller)
+                        && !_relevantMethods.get(caller)) {
+                    _relevantMethods.set(caller);
+                    _distances[caller] = _distances[callee] + 1;
+                    queue[tail++] = caller;
+                }
+            }
+        }
+
+        // The out-edges of every method, nearest callee first (in call graph order otherwise)
+        _childEdges = new int[graph.getNumEdges()];
+        for (int method = 0; method < graph.getNumMethods(); method++) {
+            int offset = graph.outOffset(method);
+            int degree = graph.getOutDegree(method);
+            long[] keys = new long[degree];
+            for (int i = 0; i < degree; i++) {
+                keys[i] = ((long)_distances[graph.getTgt(offset + i)] << 32) | i;
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < degree; i++) {
+                _childEdges[offset + i] = offset + (int)keys[i];
+            }
+        }
+
+        _components = CallGraphComponents.of(graph);
+        _componentWeights = new int[_components.getNumComponents()];
+        for (int method = _relevantMethods.nextSetBit(0); method >= 0;
+                method = _relevantMethods.nextSetBit(method + 1)) {
+            _componentWeights[_components.getComponent(method)]++;
+        }
+    }
+
+    public boolean isRelevant(int method) {
+        return _relevantMethods.get(method);
+    }
+
+    public int getNumTargetMethods() {
+        return _numTargetMethods;
+    }
+
+    public int getNumRelevantMethods() {
+        return _relevantMethods.cardinality();
+    }
+
+    // Number of relevant methods reachable from the given one (including itself), up to the
+    // given limit.
+    public int countReachableMethods(int method, int limit) {
+        return _components.countReachableMethods(method, _componentWeights, limit);
+    }
+
+    // Calls from the method to the nearest method with a target unit (a very large number
+    // if the method is not relevant).
+    public int getDistance(int method) {
+        return _distances[method];
+    }
+
+    // The out-edges of method m in search order are getChildEdge(i) for i in
+    // outOffset(m) .. outOffset(m + 1) - 1.
+    public int getChildEdge(int index) {
+        return _childEdges[index];
+    }
+
+    public boolean isExportedComponent(int method) {
+        return _exportedComponents.contains(
+                _graph.getMethod(method).method().getDeclaringClass().getName());
+    }
+
+    // Entry edges into exported components first, then the nearest to a target first.  Edges
+    // of equal priority keep their order.
+    public int[] prioritizeEntryEdges(int[] entryEdges) {
+        return Arrays.stream(entryEdges).boxed().sorted(getEntryEdgeOrder())
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    // Edges that are not part of the call graph view go last.
+    public List<Edge> prioritizeEntryEdges(List<Edge> entryEdges) {
+        Comparator<Integer> order = getEntryEdgeOrder();
+        List<Edge> sorted = new ArrayList<Edge>(entryEdges);
+        Collections.sort(sorted, (a, b) -> {
+            int idA = _graph.getEdgeId(a);
+            int idB = _graph.getEdgeId(b);
+            if (idA < 0 || idB < 0) {
+                return Boolean.compare(idA < 0, idB < 0);
+            }
+            return order.compare(idA, idB);
+        });
+        return sorted;
+    }
+
+    private Comparator<Integer> getEntryEdgeOrder() {
+        return Comparator.<Integer, Boolean>comparing(e -> !isExportedComponent(_graph.getTgt(e)))
+                .thenComparingInt(e -> _distances[_graph.getTgt(e)]);
+    }
+}
@@ -0,0 +1,85 @@
+package pathsent.target.traversal;
+
+import pathsent.Output;
+import pathsent.target.traversal.CallGraphTraversal.Plugin;
+
+import soot.*;
+import soot.jimple.toolkits.callgraph.*;
+
+import java.util.*;
+
+// The units each traversal plugin targets, per method of the call graph.  Built in a single
+// pass over the method bodies before the traversal starts, so the edge predicate only has to
+// look up the target of an edge.
+//
+// Plugins with a UnitMatcher are matched declaratively; the others are asked with
+// Plugin.processUnit().  The index is immutable once built and is shared by the traversal
+// threads.
+
+class TargetUnitIndex {
+    private final CompactCallGraph _graph;
+    private final Map<Integer, Map<Plugin, List<Unit>>> _targets =
+            new HashMap<Integer, Map<Plugin, List<Unit>>>();
+    private final BitSet _targetMethods = new BitSet();
+
+    public TargetUnitIndex(CompactCallGraph graph, CallGraph callGraph, List<Plugin> plugins) {
+        _graph = graph;
+
+        List<UnitMatcher> matchers = new ArrayList<UnitMatcher>();
+        for (Plugin plugin : plugins) {
+            UnitMatcher matcher = plugin.getUnitMatcher();
+            if (matcher != null) {
+                matcher.resolve();
+            }
+            matchers.add(matcher);
+        }
+
+        for (int method = 0; method < graph.getNumMethods(); method++) {
+            SootMethod sootMethod = graph.getMethod(method).method();
+            if (!sootMethod.hasActiveBody()) {
+                continue;
+            }
+
+            Map<Plugin, List<Unit>> methodTargets = null;
+            for (Unit unit : sootMethod.getActiveBody().getUnits()) {
+                for (int i = 0; i < plugins.size(); i++) {
+                    Plugin plugin = plugins.get(i);
+                    UnitMatcher matcher = matchers.get(i);
+                    boolean isTarget = (matcher != null)
+                            ? matcher.matches(unit, callGraph)
+                            : plugin.processUnit(sootMethod, unit);
+                    if (!isTarget) {
+                        continue;
+                    }
+
+                    Output.debug(Output.Subsystem.CallGraph, () -> "CallGraph: FOUND TARGET for "
+                            + plugin.getClass().getSimpleName() + " in "
+                            + sootMethod.getSignature() + ": " + unit);
+
+                    if (methodTargets == null) {
+                        methodTargets = new LinkedHashMap<Plugin, List<Unit>>();
+                    }
+                    methodTargets.computeIfAbsent(plugin, k -> new ArrayList<Unit>()).add(unit);
+                }
+            }
+
+            if (methodTargets != null) {
+                methodTargets.replaceAll((p, t) -> Collections.unmodifiableList(t));
+                _targets.put(method, Collections.unmodifiableMap(methodTargets));
+                _targetMethods.set(method);
+            }
+        }
+    }
+
+    // The targeted units of the given method by plugin (only plugins with at least one
+    // target), or null if the method has none.
+    public Map<Plugin, List<Unit>> getTargets(MethodOrMethodContext method) {
+        int methodId = _graph.getMethodId(method);
+        return (methodId >= 0) ? _targets.get(methodId) : null;
+    }
+
+    // Read-only
+    public BitSet getTargetMethods() {
+        return _targetMethods;
+    }
+}
@@ -0,0 +1,112 @@
+package pathsent.target.traversal;
+
+import pathsent.Output;
+
+import soot.*;
+import soot.jimple.*;
+import soot.jimple.toolkits.callgraph.*;
+import soot.util.NumberedString;
+
+import java.util.*;
+
+// Declarative description of the units a traversal plugin targets, so that the traversal can
+// match every method body once before it starts instead of asking the plugins about every
+// unit each time an edge is visited.
+//
+// A matcher selects statements by kind: field writes, or invocations of one of a set of
+// methods.  An invocation matches if its declared method or one of its call graph targets is
+// in the set.  The method signatures are resolved once to the declaring SootClass and the
+// interned sub-signature, so matching compares identities instead of building signature
+// strings.
+
+public class UnitMatcher {
+    private enum Kind { FIELD_WRITE, INVOCATION }
+
+    private final Kind _kind;
+    private final Collection<String> _signatures;
+
+    // Declaring class -> sub-signatures of the matched methods, filled in by resolve()
+    private final Map<SootClass, Set<NumberedString>> _methods =
+            new IdentityHashMap<SootClass, Set<NumberedString>>();
+
+    private UnitMatcher(Kind kind, Collection<String> signatures) {
+        _kind = kind;
+        _signatures = signatures;
+    }
+
+    // Assignments to an instance or static field
+    public static UnitMatcher fieldWrites() {
+        return new UnitMatcher(Kind.FIELD_WRITE, Collections.emptySet());
+    }
+
+    // Invocations of any of the given methods, e.g. "<java.io.File: boolean delete()>".  The
+    // signatures are read when the traversal starts.
+    public static UnitMatcher invocationsOf(Collection<String> signatures) {
+        return new UnitMatcher(Kind.INVOCATION, signatures);
+    }
+
+    // Resolves the method signatures against the scene.  Called once by the traversal before
+    // matches(); methods whose class is not in the scene cannot be invoked and are dropped.
+    void resolve() {
+        _methods.clear();
+
+        for (String signature : _signatures) {
+            String className;
+            String subSignature;
+            try {
+                className = Scene.signatureToClass(signature);
+                subSignature = Scene.signatureToSubsignature(signature);
+            } catch (RuntimeException e) {
+                Output.warn("Ignoring malformed target method signature: " + signature);
+                continue;
+            }
+
+            SootClass declaringClass = Scene.v().getSootClassUnsafe(className, false);
+            if (declaringClass == null) {
+                continue;
+            }
+
+            _methods.computeIfAbsent(declaringClass, k -> Collections.newSetFromMap(
+                    new IdentityHashMap<NumberedString, Boolean>()))
+                    .add(Scene.v().getSubSigNumberer().findOrAdd(subSignature));
+        }
+    }
+
+    public boolean matches(Unit unit, CallGraph callGraph) {
+        switch (_kind) {
+            case FIELD_WRITE:
+                return (unit instanceof AssignStmt)
+                        && (((AssignStmt)unit).getLeftOp() instanceof FieldRef);
+
+            case INVOCATION:
+                Stmt stmt = (Stmt)unit;
+                if (_methods.isEmpty() || !stmt.containsInvokeExpr()) {
+                    return false;
+                }
+
+                // Declared target
+                SootMethodRef methodRef = stmt.getInvokeExpr().getMethodRef();
+                if (isMatchedMethod(methodRef.getDeclaringClass(),
+                                    methodRef.getSubSignature())) {
+                    return true;
+                }
+
+                // Resolved targets
+                Iterator<Edge> edgeIter = callGraph.edgesOutOf(unit);
+                while (edgeIter.hasNext()) {
+                    SootMethod tgtMethod = edgeIter.next().tgt();
+                    if (isMatchedMethod(tgtMethod.getDeclaringClass(),
+                                        tgtMethod.getNumberedSubSignature())) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+        return false;
+    }
+
+    private boolean isMatchedMethod(SootClass declaringClass, NumberedString subSignature) {
+        Set<NumberedString> subSignatures = _methods.get(declaringClass);
+        return subSignatures != null && subSignatures.contains(subSignature);
+    }
+}
@@ -27,17 +27,26 @@ declare -A path_results
 
 echo "=== VULNERABILITY COUNT ANALYSIS ==="
 
+# Counts the constraint directories under $1 that have the file $2, either written or
+# shared with another directory (a reference.json listing the file)
+count_constraint_files() {
+    local written referenced
+    written=$(find "$1" -name "$2" | wc -l)
+    referenced=$(find "$1" -name "reference.json" -exec grep -l "\"$2\"" {} + | wc -l)
+    echo $((written + referenced))
+}
+
 # Count vulnerabilities by type
 if [[ -d "$OUTPUT_DIR/hijacking/constraints" ]]; then
-    hijacking_count=$(find "$OUTPUT_DIR/hijacking/constraints" -name "metadata.json" | wc -l)
+    hijacking_count=$(count_constraint_files "$OUTPUT_DIR/hijacking/constraints" "metadata.json")
 fi
 
 if [[ -d "$OUTPUT_DIR/traversal/partial/constraints" ]]; then
-    partial_count=$(find "$OUTPUT_DIR/traversal/partial/constraints" -name "metadata.json" | wc -l)
+    partial_count=$(count_constraint_files "$OUTPUT_DIR/traversal/partial/constraints" "metadata.json")
 fi
 
 if [[ -d "$OUTPUT_DIR/traversal/full/constraints" ]]; then
-    full_count=$(find "$OUTPUT_DIR/traversal/full/constraints" -name "metadata.json" | wc -l)
+    full_count=$(count_constraint_files "$OUTPUT_DIR/traversal/full/constraints" "metadata.json")
 fi
 
 total_vulnerabilities=$((hijacking_count + partial_count + full_count))
@@ -50,11 +59,11 @@ echo ""
 
 # Verify file type consistency
 if [[ -d "$OUTPUT_DIR/hijacking/constraints" ]]; then
-    hijacking_txt_count=$(find "$OUTPUT_DIR/hijacking/constraints" -name "path.txt" | wc -l)
+    hijacking_txt_count=$(count_constraint_files "$OUTPUT_DIR/hijacking/constraints" "path.txt")
 fi
 
 if [[ -d "$OUTPUT_DIR/traversal" ]]; then
-    traversal_py_count=$(find "$OUTPUT_DIR/traversal" -name "path.py" | wc -l)
+    traversal_py_count=$(count_constraint_files "$OUTPUT_DIR/traversal" "path.py")
 fi
 
 echo "=== FILE TYPE VERIFICATION ==="